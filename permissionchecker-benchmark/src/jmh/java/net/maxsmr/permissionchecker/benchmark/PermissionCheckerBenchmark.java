@@ -0,0 +1,100 @@
+package net.maxsmr.permissionchecker.benchmark;
+
+import net.maxsmr.permissionchecker.core.FakePermissionPlatform;
+import net.maxsmr.permissionchecker.core.PermissionCheckerCore;
+import net.maxsmr.permissionchecker.core.RequestCodes;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PermissionCheckerBenchmark {
+
+    static final float RUNTIME_RATIO = 0.25f;
+    static final long SEED = 42;
+    /** every n-th declared permission is ignored */
+    static final int IGNORE_STEP = 10;
+
+    static final Object HOST = new Object();
+
+    static final PermissionCheckerCore.Events NO_EVENTS = new PermissionCheckerCore.Events() {
+        @Override
+        public void onDismissAll() {
+        }
+
+        @Override
+        public void onGranted(@NotNull String permission) {
+        }
+
+        @Override
+        public void onDenied(@NotNull String permission) {
+        }
+    };
+
+    @Param({"10", "50", "100", "500"})
+    public int manifestSize;
+
+    @Param({"0.0", "0.5", "1.0"})
+    public float grantRatio;
+
+    private PermissionCheckerCore<Object> checker;
+
+    private List<Integer> usedCodes;
+
+    private int lastRequestCode;
+
+    /** last declared, not ignored: full scan of ignore list */
+    private String notIgnoredPermission;
+
+    @Setup
+    public void setUp() {
+        FakePermissionPlatform platform = FakePermissionPlatform.create(manifestSize, RUNTIME_RATIO, grantRatio, SEED);
+        List<String> manifest = platform.getManifest();
+        List<String> ignore = new ArrayList<>();
+        for (int i = IGNORE_STEP - 1; i < manifest.size(); i += IGNORE_STEP) {
+            ignore.add(manifest.get(i));
+        }
+        checker = new PermissionCheckerCore<>(platform, NO_EVENTS, false, ignore, null);
+        usedCodes = new ArrayList<>(checker.getPermissionsWithCodes().values());
+        lastRequestCode = usedCodes.isEmpty() ? RequestCodes.NO_REQUEST_CODE : usedCodes.get(usedCodes.size() - 1);
+        notIgnoredPermission = manifest.get(manifest.size() - 1);
+    }
+
+    @Benchmark
+    public boolean checkAppPermissions() {
+        return checker.checkAppPermissions();
+    }
+
+    @Benchmark
+    public boolean requestAppPermissions() {
+        return checker.requestAppPermissions(HOST);
+    }
+
+    @Benchmark
+    public String getPermissionForRequestCode() {
+        return checker.getPermissionForRequestCode(lastRequestCode);
+    }
+
+    @Benchmark
+    public int generateRequestCode() {
+        return RequestCodes.generateRequestCode(usedCodes);
+    }
+
+    @Benchmark
+    public boolean shouldIgnorePermission() {
+        return checker.shouldIgnorePermission(notIgnoredPermission, false);
+    }
+}
@@ -0,0 +1,64 @@
+package net.maxsmr.permissionchecker.benchmark;
+
+import net.maxsmr.permissionchecker.core.PermissionEventRecorder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording cost which is paid on every check / request in release builds;
+ * gc.alloc.rate.norm of record benchmarks should be 0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PermissionEventRecorderBenchmark {
+
+    private static final String PERMISSION = "android.permission.CAMERA";
+
+    private PermissionEventRecorder recorder;
+
+    private PermissionEventRecorder disabledRecorder;
+
+    private PermissionEventRecorder fullRecorder;
+
+    @Setup
+    public void setUp() {
+        recorder = new PermissionEventRecorder(PermissionEventRecorder.DEFAULT_CAPACITY);
+        disabledRecorder = new PermissionEventRecorder(PermissionEventRecorder.DEFAULT_CAPACITY);
+        disabledRecorder.setEnabled(false);
+        fullRecorder = new PermissionEventRecorder(PermissionEventRecorder.DEFAULT_CAPACITY);
+        for (int i = 0; i < fullRecorder.getCapacity(); i++) {
+            fullRecorder.record(PermissionEventRecorder.Type.CHECK, PERMISSION, i, true);
+        }
+    }
+
+    @Benchmark
+    public void record() {
+        recorder.record(PermissionEventRecorder.Type.CHECK, PERMISSION, 1, true);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        recorder.record(PermissionEventRecorder.Type.CHECK, PERMISSION, 1, true);
+    }
+
+    @Benchmark
+    public void recordDisabled() {
+        disabledRecorder.record(PermissionEventRecorder.Type.CHECK, PERMISSION, 1, true);
+    }
+
+    @Benchmark
+    public String dumpJson() {
+        return fullRecorder.dumpJson();
+    }
+}
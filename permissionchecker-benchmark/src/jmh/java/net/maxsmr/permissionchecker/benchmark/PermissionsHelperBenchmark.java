@@ -0,0 +1,54 @@
+package net.maxsmr.permissionchecker.benchmark;
+
+import net.maxsmr.permissionchecker.core.FakePermissionPlatform;
+import net.maxsmr.permissionchecker.core.FakePermissionStore;
+import net.maxsmr.permissionchecker.core.PermissionsHelperCore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static net.maxsmr.permissionchecker.benchmark.PermissionCheckerBenchmark.RUNTIME_RATIO;
+import static net.maxsmr.permissionchecker.benchmark.PermissionCheckerBenchmark.SEED;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PermissionsHelperBenchmark {
+
+    @Param({"10", "50", "100", "500"})
+    public int manifestSize;
+
+    @Param({"0.0", "0.5", "1.0"})
+    public float grantRatio;
+
+    private PermissionsHelperCore<Object> helper;
+
+    private List<String> manifest;
+
+    @Setup
+    public void setUp() {
+        FakePermissionPlatform platform = FakePermissionPlatform.create(manifestSize, RUNTIME_RATIO, grantRatio, SEED);
+        helper = new PermissionsHelperCore<>(platform, new FakePermissionStore());
+        manifest = platform.getManifest();
+    }
+
+    @Benchmark
+    public Set<String> filterPermissionsByApiVersion() {
+        return helper.filterPermissionsByApiVersion(manifest);
+    }
+
+    @Benchmark
+    public PermissionsHelperCore.Decision decide() {
+        return helper.decide(manifest);
+    }
+}
@@ -0,0 +1,431 @@
+package net.maxsmr.permissionchecker.benchmark;
+
+import net.maxsmr.permissionchecker.core.FakePermissionPlatform;
+import net.maxsmr.permissionchecker.core.FakePermissionStore;
+import net.maxsmr.permissionchecker.core.PermissionCheckerCore;
+import net.maxsmr.permissionchecker.core.PermissionPlatform;
+import net.maxsmr.permissionchecker.core.PermissionsHelperCore;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Drives {@link PermissionCheckerCore} and {@link PermissionsHelperCore} through random user behavior
+ * (grant, deny, deny with "don't ask again", changes in settings, rotation, process death)
+ * on generated manifests and checks invariants after each step.
+ * Same seed gives same sessions, so any violation can be replayed by its seed and session index
+ */
+public final class FlowSimulator {
+
+    public enum Action {
+        /** splash start: check all, request missing */
+        START,
+        GRANT,
+        DENY,
+        DENY_DONT_ASK_AGAIN,
+        REVOKE_IN_SETTINGS,
+        GRANT_IN_SETTINGS,
+        ROTATE,
+        PROCESS_DEATH
+    }
+
+    private static final Object HOST = new Object();
+
+    private static final int MAX_REPORTED_VIOLATIONS = 20;
+
+    private static final float MAX_SPECIAL_RATIO = 0.2f;
+
+    private static final PermissionCheckerCore.Events NO_EVENTS = new PermissionCheckerCore.Events() {
+        @Override
+        public void onDismissAll() {
+        }
+
+        @Override
+        public void onGranted(@NotNull String permission) {
+        }
+
+        @Override
+        public void onDenied(@NotNull String permission) {
+        }
+    };
+
+    private final long seed;
+
+    private final int stepsPerSession;
+
+    private final int maxManifestSize;
+
+    public FlowSimulator(long seed, int stepsPerSession, int maxManifestSize) {
+        if (stepsPerSession <= 0) {
+            throw new IllegalArgumentException("incorrect steps count: " + stepsPerSession);
+        }
+        if (maxManifestSize <= 0) {
+            throw new IllegalArgumentException("incorrect manifest size: " + maxManifestSize);
+        }
+        this.seed = seed;
+        this.stepsPerSession = stepsPerSession;
+        this.maxManifestSize = maxManifestSize;
+    }
+
+    /**
+     * args: [sessions] [steps per session] [seed] [max manifest size]
+     */
+    public static void main(String[] args) {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        int maxManifestSize = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+        Report report = new FlowSimulator(seed, steps, maxManifestSize).run(sessions);
+        System.out.println(report);
+        if (report.violationsCount > 0) {
+            System.exit(1);
+        }
+    }
+
+    @NotNull
+    public Report run(int sessions) {
+        Report report = new Report(seed);
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            new Session(i, report).run();
+        }
+        report.elapsedNanos = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+        report.allocatedBytes = allocatedBefore >= 0 && allocatedAfter >= 0 ? allocatedAfter - allocatedBefore : -1;
+        report.sessions = sessions;
+        return report;
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private final class Session {
+
+        private final int index;
+
+        @NotNull
+        private final Report report;
+
+        @NotNull
+        private final Random random;
+
+        @NotNull
+        private final FakePermissionPlatform platform;
+
+        @NotNull
+        private final FakePermissionStore store = new FakePermissionStore();
+
+        private final boolean showAllSystemDialogs;
+
+        @NotNull
+        private final List<String> permissionsToIgnore = new ArrayList<>();
+
+        @NotNull
+        private final List<String> permissionsToIgnoreAfterCheck = new ArrayList<>();
+
+        @NotNull
+        private final List<String> runtimePermissions;
+
+        /**
+         * Runtime and special permissions, which can be changed on settings screen
+         */
+        @NotNull
+        private final List<String> settingsPermissions;
+
+        private PermissionCheckerCore<Object> checker;
+
+        private PermissionsHelperCore<Object> helper;
+
+        private int step;
+
+        @Nullable
+        private Action action;
+
+        Session(int index, @NotNull Report report) {
+            this.index = index;
+            this.report = report;
+            random = new Random(seed * 31 + index);
+            float runtimeRatio = 0.1f + random.nextFloat() * 0.8f;
+            platform = FakePermissionPlatform.create(1 + random.nextInt(maxManifestSize),
+                    runtimeRatio, random.nextFloat() * Math.min(MAX_SPECIAL_RATIO, 1f - runtimeRatio), random.nextFloat(), random.nextLong());
+            showAllSystemDialogs = random.nextBoolean();
+            for (String permission : platform.getManifest()) {
+                int value = random.nextInt(20);
+                if (value == 0) {
+                    permissionsToIgnore.add(permission);
+                } else if (value == 1) {
+                    permissionsToIgnoreAfterCheck.add(permission);
+                }
+            }
+            runtimePermissions = new ArrayList<>();
+            settingsPermissions = new ArrayList<>();
+            for (String permission : platform.getManifest()) {
+                if (!platform.isRequiredByApiVersion(permission)) {
+                    continue;
+                }
+                PermissionPlatform.Kind kind = platform.getKind(permission);
+                if (kind == PermissionPlatform.Kind.RUNTIME) {
+                    runtimePermissions.add(permission);
+                }
+                if (kind != PermissionPlatform.Kind.INSTALL_TIME) {
+                    settingsPermissions.add(permission);
+                }
+            }
+        }
+
+        void run() {
+            if (!createChecker()) {
+                return;
+            }
+            for (step = 0; step < stepsPerSession; step++) {
+                action = nextAction();
+                try {
+                    perform(action);
+                } catch (RuntimeException e) {
+                    violation("crash: " + e);
+                    return;
+                }
+                verifyInvariants();
+                report.steps++;
+            }
+        }
+
+        private boolean createChecker() {
+            try {
+                checker = new PermissionCheckerCore<>(platform, NO_EVENTS, showAllSystemDialogs, permissionsToIgnore, permissionsToIgnoreAfterCheck);
+            } catch (RuntimeException e) {
+                violation("crash on init: " + e);
+                return false;
+            }
+            helper = new PermissionsHelperCore<>(platform, store);
+            Collection<Integer> codes = checker.getPermissionsWithCodes().values();
+            if (new HashSet<>(codes).size() != codes.size()) {
+                violation("duplicate request codes: " + codes);
+            }
+            return true;
+        }
+
+        @NotNull
+        private Action nextAction() {
+            int value = random.nextInt(100);
+            if (platform.hasPendingRequests()) {
+                // system dialog is shown
+                if (value < 40) {
+                    return Action.GRANT;
+                } else if (value < 70) {
+                    return Action.DENY;
+                } else if (value < 85) {
+                    return Action.DENY_DONT_ASK_AGAIN;
+                } else if (value < 93) {
+                    return Action.ROTATE;
+                }
+                return Action.PROCESS_DEATH;
+            }
+            if (value < 40) {
+                return Action.START;
+            } else if (value < 55) {
+                return Action.REVOKE_IN_SETTINGS;
+            } else if (value < 70) {
+                return Action.GRANT_IN_SETTINGS;
+            } else if (value < 90) {
+                return Action.ROTATE;
+            }
+            return Action.PROCESS_DEATH;
+        }
+
+        private void perform(@NotNull Action action) {
+            switch (action) {
+                case START:
+                    start();
+                    break;
+                case GRANT:
+                case DENY:
+                case DENY_DONT_ASK_AGAIN:
+                    answer(action);
+                    break;
+                case REVOKE_IN_SETTINGS:
+                case GRANT_IN_SETTINGS:
+                    if (!settingsPermissions.isEmpty()) {
+                        String permission = settingsPermissions.get(random.nextInt(settingsPermissions.size()));
+                        platform.setGranted(permission, action == Action.GRANT_IN_SETTINGS);
+                        platform.setBlocked(permission, false);
+                        platform.setShowRationale(permission, false);
+                    }
+                    break;
+                case ROTATE:
+                    rotate();
+                    break;
+                case PROCESS_DEATH:
+                    processDeath();
+                    break;
+            }
+        }
+
+        private void start() {
+            boolean allGranted = checker.checkAppPermissions();
+            if (!checker.isAllPermissionsChecked()) {
+                violation("not all permissions are checked after checkAppPermissions");
+            }
+            Set<String> registered = new HashSet<>(checker.getPermissions());
+            registered.addAll(checker.getSpecialPermissions());
+            for (String permission : registered) {
+                if (platform.isGranted(permission) != checker.getLastGrantedPermissions().contains(permission)) {
+                    violation("checked state of " + permission + " differs from platform");
+                }
+            }
+            if (!allGranted) {
+                checker.requestAppPermissions(HOST, false);
+            }
+
+            PermissionsHelperCore.Decision decision = helper.decide(runtimePermissions);
+            if (decision instanceof PermissionsHelperCore.Decision.AllGranted) {
+                for (String permission : runtimePermissions) {
+                    if (!platform.isGranted(permission)) {
+                        violation("helper decided all granted, but " + permission + " is not granted");
+                        break;
+                    }
+                }
+            }
+            for (String permission : store.getAll()) {
+                if (platform.isGranted(permission)) {
+                    violation("granted " + permission + " is still stored as permanently denied");
+                }
+            }
+        }
+
+        private void answer(@NotNull Action action) {
+            FakePermissionPlatform.Request request = platform.pollPendingRequest();
+            if (request == null) {
+                return;
+            }
+            int[] results = new int[request.permissions.length];
+            for (int i = 0; i < request.permissions.length; i++) {
+                String permission = request.permissions[i];
+                if (action == Action.GRANT && !platform.isBlocked(permission)) {
+                    platform.setGranted(permission, true);
+                    platform.setShowRationale(permission, false);
+                    results[i] = PermissionPlatform.PERMISSION_GRANTED;
+                } else {
+                    if (action == Action.DENY_DONT_ASK_AGAIN) {
+                        platform.setBlocked(permission, true);
+                    }
+                    platform.setShowRationale(permission, !platform.isBlocked(permission));
+                    results[i] = PermissionPlatform.PERMISSION_DENIED;
+                }
+            }
+            checker.onRequestPermissionsResult(HOST, request.requestCode, request.permissions, results);
+            helper.onRequestPermissionsResult(HOST, request.permissions, results);
+        }
+
+        private void rotate() {
+            byte[] state = checker.saveState();
+            if (!checker.restoreState(state)) {
+                violation("state was not restored on the same instance");
+            } else if (!Arrays.equals(state, checker.saveState())) {
+                violation("state changed after save / restore");
+            }
+        }
+
+        private void processDeath() {
+            byte[] state = checker.saveState();
+            boolean wasAllPermissionsChecked = checker.isAllPermissionsChecked();
+            if (!createChecker()) {
+                return;
+            }
+            if (!checker.restoreState(state)) {
+                violation("state was not restored after process death");
+            } else if (!Arrays.equals(state, checker.saveState())) {
+                violation("state changed after process death");
+            } else if (wasAllPermissionsChecked && !checker.isAllPermissionsChecked()) {
+                violation("all permissions were checked before process death, but not after restore");
+            }
+        }
+
+        private void verifyInvariants() {
+            Set<String> granted = checker.getLastGrantedPermissions();
+            for (String permission : checker.getLastDeniedPermissions()) {
+                if (granted.contains(permission)) {
+                    violation(permission + " is both granted and denied");
+                    break;
+                }
+            }
+            if (checker.getLastGrantedPermissionsCount() + checker.getLastDeniedPermissionsCount()
+                    > checker.getPermissionsCount() + checker.getSpecialPermissionsCount()) {
+                violation("more checked permissions than registered");
+            }
+            if (checker.hasPendingRequests() != platform.hasPendingRequests()) {
+                violation("pending requests of checker (" + checker.hasPendingRequests()
+                        + ") differ from shown system dialogs (" + platform.hasPendingRequests() + ")");
+            }
+        }
+
+        private void violation(@NotNull String message) {
+            report.violationsCount++;
+            if (report.violations.size() < MAX_REPORTED_VIOLATIONS) {
+                report.violations.add("session " + index + ", step " + step + " (" + action + "): " + message);
+            }
+        }
+    }
+
+    public static final class Report {
+
+        public final long seed;
+
+        public int sessions;
+
+        public long steps;
+
+        public long elapsedNanos;
+
+        /** -1 if not supported by JVM */
+        public long allocatedBytes;
+
+        public int violationsCount;
+
+        public final List<String> violations = new ArrayList<>();
+
+        Report(long seed) {
+            this.seed = seed;
+        }
+
+        public double getSessionsPerSecond() {
+            return elapsedNanos > 0 ? sessions * 1e9 / elapsedNanos : 0;
+        }
+
+        public double getStepsPerSecond() {
+            return elapsedNanos > 0 ? steps * 1e9 / elapsedNanos : 0;
+        }
+
+        @NotNull
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("seed %d: %d sessions, %d steps in %.1f ms (%.0f sessions/s, %.0f steps/s)",
+                    seed, sessions, steps, elapsedNanos / 1e6, getSessionsPerSecond(), getStepsPerSecond()));
+            if (allocatedBytes >= 0 && steps > 0) {
+                sb.append(String.format(", %.0f bytes allocated per step", (double) allocatedBytes / steps));
+            }
+            sb.append('\n').append("violations: ").append(violationsCount);
+            for (String violation : violations) {
+                sb.append('\n').append("  ").append(violation);
+            }
+            return sb.toString();
+        }
+    }
+}
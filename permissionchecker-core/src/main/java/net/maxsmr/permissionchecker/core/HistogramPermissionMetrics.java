@@ -0,0 +1,117 @@
+package net.maxsmr.permissionchecker.core;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process {@link PermissionMetrics} with counters and {@link LatencyHistogram}s,
+ * to be periodically read (and reset) by app telemetry; reporting doesn't allocate
+ */
+public class HistogramPermissionMetrics implements PermissionMetrics {
+
+    public enum Counter {
+        CHECKS,
+        CHECKS_GRANTED,
+        REQUESTS,
+        RESULTS_GRANTED,
+        RESULTS_DENIED,
+        DIALOGS_SHOWN,
+        PERMANENT_DENIALS,
+        SETTINGS_ROUND_TRIPS,
+        SETTINGS_ROUND_TRIPS_GRANTED
+    }
+
+    public enum Latency {
+        /** duration of single check */
+        CHECK,
+        /** from request to granted result */
+        TIME_TO_GRANT,
+        /** from request to denied result */
+        TIME_TO_DENY,
+        /** from settings suggestion to return */
+        SETTINGS_ROUND_TRIP
+    }
+
+    private final AtomicLongArray mCounters = new AtomicLongArray(Counter.values().length);
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[Latency.values().length];
+
+    public HistogramPermissionMetrics() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public long getCount(@NotNull Counter counter) {
+        return mCounters.get(counter.ordinal());
+    }
+
+    /**
+     * @return values in ns
+     */
+    @NotNull
+    public LatencyHistogram getHistogram(@NotNull Latency latency) {
+        return mHistograms[latency.ordinal()];
+    }
+
+    /**
+     * Starts new period (e.g. session) after its values were sent
+     */
+    public void reset() {
+        for (int i = 0; i < mCounters.length(); i++) {
+            mCounters.set(i, 0);
+        }
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+
+    @Override
+    public void onCheck(@NotNull String permission, boolean granted, long durationNanos) {
+        increment(Counter.CHECKS);
+        if (granted) {
+            increment(Counter.CHECKS_GRANTED);
+        }
+        record(Latency.CHECK, durationNanos);
+    }
+
+    @Override
+    public void onRequestSent(@NotNull String permission, int requestCode) {
+        increment(Counter.REQUESTS);
+    }
+
+    @Override
+    public void onResult(@NotNull String permission, int requestCode, boolean granted, long latencyNanos) {
+        increment(granted ? Counter.RESULTS_GRANTED : Counter.RESULTS_DENIED);
+        record(granted ? Latency.TIME_TO_GRANT : Latency.TIME_TO_DENY, latencyNanos);
+    }
+
+    @Override
+    public void onDialogShown(@Nullable String permission, int requestCode) {
+        increment(Counter.DIALOGS_SHOWN);
+    }
+
+    @Override
+    public void onPermanentlyDenied(@NotNull String permission) {
+        increment(Counter.PERMANENT_DENIALS);
+    }
+
+    @Override
+    public void onSettingsRoundTrip(int requestCode, boolean allGranted, long durationNanos) {
+        increment(Counter.SETTINGS_ROUND_TRIPS);
+        if (allGranted) {
+            increment(Counter.SETTINGS_ROUND_TRIPS_GRANTED);
+        }
+        record(Latency.SETTINGS_ROUND_TRIP, durationNanos);
+    }
+
+    private void increment(@NotNull Counter counter) {
+        mCounters.incrementAndGet(counter.ordinal());
+    }
+
+    private void record(@NotNull Latency latency, long valueNanos) {
+        mHistograms[latency.ordinal()].record(valueNanos);
+    }
+}
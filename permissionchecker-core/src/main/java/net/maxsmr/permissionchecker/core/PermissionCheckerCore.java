@@ -0,0 +1,558 @@
+package net.maxsmr.permissionchecker.core;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static net.maxsmr.permissionchecker.core.RequestCodes.NO_REQUEST_CODE;
+
+/**
+ * Request codes, checked / granted / denied state and request decisions of app permissions,
+ * one permission per system request; platform calls go through {@link PermissionPlatform}
+ *
+ * @param <H> host of system requests
+ */
+public class PermissionCheckerCore<H> {
+
+    /**
+     * Events that should be reflected in UI (granted / denied dialogs)
+     */
+    public interface Events {
+
+        void onDismissAll();
+
+        void onGranted(@NotNull String permission);
+
+        void onDenied(@NotNull String permission);
+
+        /**
+         * Any change of known state, including checks without UI events and ignored permissions
+         */
+        default void onStateChanged(@NotNull String permission, boolean isGranted) {
+        }
+    }
+
+    private static final int STATE_VERSION = 2;
+    private static final int STATE_HEADER_SIZE = 4 * 4;
+    private static final int STATE_ENTRY_SIZE = 4 + 1;
+    private static final int STATE_SPECIAL_ENTRY_SIZE = 1;
+
+    private static final byte STATE_FLAG_CHECKED = 1;
+    private static final byte STATE_FLAG_GRANTED = 1 << 1;
+    private static final byte STATE_FLAG_DENIED = 1 << 2;
+    private static final byte STATE_FLAG_PENDING = 1 << 3;
+
+    @NotNull
+    private final PermissionPlatform<H> mPlatform;
+
+    @NotNull
+    private final Events mEvents;
+
+    @NotNull
+    private final PermissionEventRecorder mRecorder = PermissionEventRecorder.getDefault();
+
+    private boolean isReleased = false;
+
+    private final boolean mShowAllSystemDialogs;
+
+    private final Map<String, Integer> mPermissionsRequestCodes = new LinkedHashMap<>();
+
+    /** reverse of {@link #mPermissionsRequestCodes} */
+    private final Map<Integer, String> mRequestCodesPermissions = new HashMap<>();
+
+    @NotNull
+    private final Set<String> mSpecialPermissions = new LinkedHashSet<>();
+
+    @NotNull
+    private final Set<String> mPermissionsToIgnore = new HashSet<>();
+
+    @NotNull
+    private final Set<String> mPermissionsToIgnoreAfterCheck = new HashSet<>();
+
+    /**
+     * all last granted permissions (including {@link PermissionCheckerCore#mSpecialPermissions} set)
+     */
+    private Set<String> mLastGrantedPermissions = new LinkedHashSet<>();
+    /**
+     * all last denied permissions (including {@link PermissionCheckerCore#mSpecialPermissions} set)
+     */
+    private Set<String> mLastDeniedPermissions = new LinkedHashSet<>();
+
+    private Set<String> mCheckedPermissions = new LinkedHashSet<>();
+
+    /**
+     * request codes of system requests waiting for result
+     */
+    private final Set<Integer> mPendingRequestCodes = new LinkedHashSet<>();
+
+    /**
+     * {@link System#nanoTime()} of sending pending requests, not restored with state
+     */
+    private final Map<Integer, Long> mRequestSentNanos = new HashMap<>();
+
+    public PermissionCheckerCore(@NotNull PermissionPlatform<H> platform, @NotNull Events events, boolean showAllSystemDialogs,
+                                 @Nullable Collection<String> permissionsToIgnore, @Nullable Collection<String> permissionsToIgnoreAfterCheck) {
+        mPlatform = platform;
+        mEvents = events;
+        mShowAllSystemDialogs = showAllSystemDialogs;
+        if (permissionsToIgnore != null) {
+            mPermissionsToIgnore.addAll(permissionsToIgnore);
+        }
+        if (permissionsToIgnoreAfterCheck != null) {
+            mPermissionsToIgnoreAfterCheck.addAll(permissionsToIgnoreAfterCheck);
+        }
+        init();
+    }
+
+    private void init() {
+        List<String> runtime = new ArrayList<>();
+        for (String permission : mPlatform.getRequestedPermissions()) {
+            if (!shouldIgnorePermission(permission, false)) {
+                switch (mPlatform.getKind(permission)) {
+                    case SPECIAL:
+                        mSpecialPermissions.add(permission);
+                        break;
+                    case RUNTIME:
+                        runtime.add(permission);
+                        break;
+                    default:
+                        // granted at install time - no need to check or request
+                        break;
+                }
+            }
+        }
+        // one permission per request: requested in plan order, so prerequisites go first
+        for (String permission : RequestPlanner.flatten(new RequestPlanner(mPlatform).plan(runtime, Collections.<String>emptySet()))) {
+            generateRequestCodeForPermission(permission);
+        }
+    }
+
+    private synchronized void checkReleased() {
+        if (isReleased) {
+            throw new IllegalStateException(PermissionCheckerCore.class.getSimpleName() + " was released");
+        }
+    }
+
+    public synchronized boolean isReleased() {
+        return isReleased;
+    }
+
+    public synchronized void release() {
+        checkReleased();
+        clearCheckedPermissions();
+        mLastGrantedPermissions = null;
+        mLastDeniedPermissions = null;
+        mCheckedPermissions = null;
+        mPendingRequestCodes.clear();
+        mRequestSentNanos.clear();
+        mPermissionsRequestCodes.clear();
+        mRequestCodesPermissions.clear();
+        isReleased = true;
+    }
+
+    @NotNull
+    public PermissionPlatform<H> getPlatform() {
+        return mPlatform;
+    }
+
+    public boolean shouldIgnorePermission(@Nullable String permission, boolean afterCheck) {
+        if (permission == null || permission.isEmpty()) {
+            return false;
+        }
+        boolean ignore = false;
+        for (String ignorePermission : (!afterCheck ? mPermissionsToIgnore : mPermissionsToIgnoreAfterCheck)) {
+            if (permission.equalsIgnoreCase(ignorePermission)) {
+                ignore = true;
+                break;
+            }
+        }
+        return ignore;
+    }
+
+    public boolean isAllPermissionsChecked() {
+        return getLastGrantedPermissionsCount() + getLastDeniedPermissionsCount() == getPermissionsCount() + getSpecialPermissionsCount();
+    }
+
+    public boolean isAllPermissionsGranted() {
+        if (isAllPermissionsChecked()) {
+            int ignoreCount = 0;
+            for (String ignorePermission : mPermissionsToIgnoreAfterCheck) {
+                if (getLastDeniedPermissions().contains(ignorePermission)) {
+                    ignoreCount++;
+                }
+            }
+            return getLastGrantedPermissionsCount() + ignoreCount == getPermissionsCount() + getSpecialPermissionsCount();
+        }
+        return false;
+    }
+
+    public boolean hasPermissionsToIgnore() {
+        return !mPermissionsToIgnore.isEmpty();
+    }
+
+    public boolean hasPermissionsToIgnoreAfterCheck() {
+        return !mPermissionsToIgnoreAfterCheck.isEmpty();
+    }
+
+    public synchronized int getPermissionsCount() {
+        return mPermissionsRequestCodes.size();
+    }
+
+    public synchronized Set<String> getPermissions() {
+        return Collections.unmodifiableSet(mPermissionsRequestCodes.keySet());
+    }
+
+    public synchronized Map<String, Integer> getPermissionsWithCodes() {
+        return Collections.unmodifiableMap(mPermissionsRequestCodes);
+    }
+
+    public synchronized int getLastGrantedPermissionsCount() {
+        return mLastGrantedPermissions.size();
+    }
+
+    public synchronized Set<String> getLastGrantedPermissions() {
+        return Collections.unmodifiableSet(mLastGrantedPermissions);
+    }
+
+    public synchronized int getLastDeniedPermissionsCount() {
+        return mLastDeniedPermissions.size();
+    }
+
+    public synchronized Set<String> getLastDeniedPermissions() {
+        return Collections.unmodifiableSet(mLastDeniedPermissions);
+    }
+
+    public synchronized int getSpecialPermissionsCount() {
+        return mSpecialPermissions.size();
+    }
+
+    public synchronized Set<String> getSpecialPermissions() {
+        return Collections.unmodifiableSet(mSpecialPermissions);
+    }
+
+    private synchronized int generateRequestCodeForPermission(String permission) {
+        if (permission != null && !permission.isEmpty()) {
+            Integer requestCode = mPermissionsRequestCodes.get(permission);
+            if (requestCode != null) {
+                return requestCode;
+            }
+            int newCode = RequestCodes.generateRequestCode(mRequestCodesPermissions.keySet());
+            mPermissionsRequestCodes.put(permission, newCode);
+            mRequestCodesPermissions.put(newCode, permission);
+            return newCode;
+        }
+        return NO_REQUEST_CODE;
+    }
+
+    @NotNull
+    private synchronized Map<String, Integer> permissionsRequestCodes(boolean isChecked) {
+        Map<String, Integer> copy = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : mPermissionsRequestCodes.entrySet()) {
+            if (!isChecked && !mCheckedPermissions.contains(entry.getKey())
+                    || (isChecked && (mCheckedPermissions.contains(entry.getKey())))) {
+                copy.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return copy;
+    }
+
+    public synchronized int getRequestCodeForPermission(String permission) {
+        Integer code = mPermissionsRequestCodes.get(permission);
+        return code != null ? code : NO_REQUEST_CODE;
+    }
+
+    @Nullable
+    public synchronized String getPermissionForRequestCode(int code) {
+        return mRequestCodesPermissions.get(code);
+    }
+
+    /**
+     * @param host used to request next not checked permissions
+     */
+    public synchronized boolean onRequestPermissionsResult(@NotNull H host, int requestCode, @NotNull String[] permissions, @NotNull int[] grantResults) {
+        checkReleased();
+
+        if (permissions.length == 0 || grantResults.length == 0) {
+            return false;
+        }
+
+        if (permissions.length > 1) {
+            throw new IllegalArgumentException("permissions must contain only one element");
+        }
+
+        if (grantResults.length > 1) {
+            throw new IllegalArgumentException("grantResults must contain only one element");
+        }
+
+        mPendingRequestCodes.remove(requestCode);
+        Long sentNanos = mRequestSentNanos.remove(requestCode);
+
+        String permission = getPermissionForRequestCode(requestCode);
+
+        if (permission == null) {
+            throw new RuntimeException("unregistered permission with requestCode: " + requestCode);
+        }
+
+        boolean granted = grantResults[0] == PermissionPlatform.PERMISSION_GRANTED;
+        mRecorder.record(PermissionEventRecorder.Type.RESULT, permission, requestCode, granted);
+        PermissionMetricsRegistry.get().onResult(permission, requestCode, granted,
+                sentNanos != null ? System.nanoTime() - sentNanos : PermissionMetrics.UNKNOWN_LATENCY);
+        if (!granted) {
+            handlePermissionDenied(permission, !shouldIgnorePermission(permission, true));
+        } else {
+            handlePermissionGranted(permission, !shouldIgnorePermission(permission, true));
+        }
+
+        return granted && (mShowAllSystemDialogs ||
+                (!isAllPermissionsChecked() ? requestAppPermissions(host, false, permissionsRequestCodes(false).entrySet(), null) : isAllPermissionsGranted())); // remove already checked permissions
+    }
+
+    public synchronized boolean hasPendingRequests() {
+        return !mPendingRequestCodes.isEmpty();
+    }
+
+    /**
+     * Compact state for saved instance state: request codes, checked / granted / denied
+     * and pending requests of registered permissions, granted / denied of special permissions
+     */
+    @NotNull
+    public synchronized byte[] saveState() {
+        checkReleased();
+        ByteBuffer buffer = ByteBuffer.allocate(STATE_HEADER_SIZE + mPermissionsRequestCodes.size() * STATE_ENTRY_SIZE
+                + mSpecialPermissions.size() * STATE_SPECIAL_ENTRY_SIZE);
+        buffer.putInt(STATE_VERSION);
+        buffer.putInt(mPermissionsRequestCodes.size());
+        buffer.putInt(mSpecialPermissions.size());
+        buffer.putInt(permissionsHash());
+        for (Map.Entry<String, Integer> entry : mPermissionsRequestCodes.entrySet()) {
+            int code = entry.getValue();
+            byte flags = stateFlags(entry.getKey());
+            if (mPendingRequestCodes.contains(code)) {
+                flags |= STATE_FLAG_PENDING;
+            }
+            buffer.putInt(code);
+            buffer.put(flags);
+        }
+        for (String special : mSpecialPermissions) {
+            buffer.put(stateFlags(special));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Restores state from {@link #saveState()} (e.g. after process death), including request codes,
+     * so results of in-flight requests can still be handled
+     *
+     * @return false if state doesn't match registered permissions and was not applied
+     */
+    public synchronized boolean restoreState(@Nullable byte[] state) {
+        checkReleased();
+        if (state == null || state.length < STATE_HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(state);
+        if (buffer.getInt() != STATE_VERSION
+                || buffer.getInt() != mPermissionsRequestCodes.size()
+                || buffer.getInt() != mSpecialPermissions.size()
+                || buffer.getInt() != permissionsHash()
+                || buffer.remaining() != mPermissionsRequestCodes.size() * STATE_ENTRY_SIZE
+                + mSpecialPermissions.size() * STATE_SPECIAL_ENTRY_SIZE) {
+            return false;
+        }
+        Set<Integer> codes = new HashSet<>();
+        for (int i = 0; i < mPermissionsRequestCodes.size(); i++) {
+            codes.add(buffer.getInt(STATE_HEADER_SIZE + i * STATE_ENTRY_SIZE));
+        }
+        if (codes.size() != mPermissionsRequestCodes.size()) {
+            // duplicate codes
+            return false;
+        }
+        clearCheckedPermissions();
+        mPendingRequestCodes.clear();
+        mRequestSentNanos.clear();
+        mRequestCodesPermissions.clear();
+        for (Map.Entry<String, Integer> entry : mPermissionsRequestCodes.entrySet()) {
+            String permission = entry.getKey();
+            int code = buffer.getInt();
+            byte flags = buffer.get();
+            entry.setValue(code);
+            mRequestCodesPermissions.put(code, permission);
+            restoreStateFlags(permission, flags);
+            if ((flags & STATE_FLAG_PENDING) != 0) {
+                mPendingRequestCodes.add(code);
+            }
+        }
+        for (String special : mSpecialPermissions) {
+            restoreStateFlags(special, buffer.get());
+        }
+        return true;
+    }
+
+    private int permissionsHash() {
+        return 31 * mPermissionsRequestCodes.keySet().hashCode() + mSpecialPermissions.hashCode();
+    }
+
+    private byte stateFlags(@NotNull String permission) {
+        byte flags = 0;
+        if (mCheckedPermissions.contains(permission)) {
+            flags |= STATE_FLAG_CHECKED;
+        }
+        if (mLastGrantedPermissions.contains(permission)) {
+            flags |= STATE_FLAG_GRANTED;
+        }
+        if (mLastDeniedPermissions.contains(permission)) {
+            flags |= STATE_FLAG_DENIED;
+        }
+        return flags;
+    }
+
+    private void restoreStateFlags(@NotNull String permission, byte flags) {
+        if ((flags & STATE_FLAG_CHECKED) != 0) {
+            mCheckedPermissions.add(permission);
+        }
+        if ((flags & STATE_FLAG_GRANTED) != 0) {
+            mLastGrantedPermissions.add(permission);
+        }
+        if ((flags & STATE_FLAG_DENIED) != 0) {
+            mLastDeniedPermissions.add(permission);
+        }
+    }
+
+    public synchronized void clearCheckedPermissions() {
+        mLastGrantedPermissions = new LinkedHashSet<>();
+        mLastDeniedPermissions = new LinkedHashSet<>();
+        mCheckedPermissions = new LinkedHashSet<>();
+    }
+
+    /**
+     * @return false if at least one permission is not granted, true otherwise
+     */
+    public synchronized boolean checkAppPermissions() {
+        checkReleased();
+        boolean has = true;
+        clearCheckedPermissions();
+        for (String permission : mPermissionsRequestCodes.keySet()) {
+            if (isGranted(permission)) {
+                handlePermissionGranted(permission, false);
+            } else {
+                handlePermissionDenied(permission, false);
+                has = false;
+            }
+            mCheckedPermissions.add(permission);
+        }
+        for (String special : mSpecialPermissions) {
+            if (isGranted(special)) {
+                handlePermissionGranted(special, false);
+            } else {
+                handlePermissionDenied(special, false);
+                has = false;
+            }
+        }
+        return has;
+    }
+
+    /**
+     * @return false if at least one system dialog was not shown on missing permission, true if all dialogs were shown
+     */
+    public boolean requestAppPermissions(@NotNull H host) {
+        return requestAppPermissions(host, true);
+    }
+
+    /**
+     * @param recheck false to reuse results of preceding {@link #checkAppPermissions()} instead of checking
+     *                each permission again (if all permissions were checked)
+     */
+    public synchronized boolean requestAppPermissions(@NotNull H host, boolean recheck) {
+        Set<String> knownGranted = !recheck && isAllPermissionsChecked() ? new HashSet<>(mLastGrantedPermissions) : null;
+        return requestAppPermissions(host, true, mPermissionsRequestCodes.entrySet(), knownGranted);
+    }
+
+    private synchronized boolean requestAppPermissions(@NotNull H host, boolean clear, @NotNull Set<Map.Entry<String, Integer>> permissionsRequestCodes,
+                                                       @Nullable Set<String> knownGranted) {
+        checkReleased();
+        if (clear) {
+            clearCheckedPermissions();
+            mPendingRequestCodes.clear();
+            mRequestSentNanos.clear();
+            mEvents.onDismissAll();
+        }
+        boolean result = false;
+        boolean systemDialogShowed = false;
+        for (Map.Entry<String, Integer> entry : permissionsRequestCodes) {
+            String permission = entry.getKey();
+            boolean has = knownGranted != null ? knownGranted.contains(permission) : isGranted(permission);
+            if (has || !systemDialogShowed || mShowAllSystemDialogs) {
+                result = true;
+                if (has) {
+                    handlePermissionGranted(permission, !shouldIgnorePermission(permission, true));
+                } else if (!mPlatform.shouldShowRationale(host, permission)) {
+                    mPlatform.requestPermissions(host, new String[]{permission}, entry.getValue());
+                    mRecorder.record(PermissionEventRecorder.Type.REQUEST_SENT, permission, entry.getValue());
+                    PermissionMetricsRegistry.get().onRequestSent(permission, entry.getValue());
+                    systemDialogShowed = true;
+                    result = false;
+                    mPendingRequestCodes.add(entry.getValue());
+                    mRequestSentNanos.put(entry.getValue(), System.nanoTime());
+                } else {
+                    result = false;
+                    handlePermissionDenied(permission, !shouldIgnorePermission(permission, true));
+                }
+                mCheckedPermissions.add(permission);
+            }
+        }
+        for (String special : mSpecialPermissions) {
+            if (knownGranted != null ? !knownGranted.contains(special) : !isGranted(special)) {
+                mPlatform.requestPermissions(host, new String[]{special}, NO_REQUEST_CODE);
+                mRecorder.record(PermissionEventRecorder.Type.REQUEST_SENT, special, NO_REQUEST_CODE);
+                PermissionMetricsRegistry.get().onRequestSent(special, NO_REQUEST_CODE);
+            }
+        }
+        return result;
+    }
+
+    private boolean isGranted(@NotNull String permission) {
+        long start = System.nanoTime();
+        boolean granted = mPlatform.isGranted(permission);
+        PermissionMetricsRegistry.get().onCheck(permission, granted, System.nanoTime() - start);
+        Integer code = mPermissionsRequestCodes.get(permission);
+        mRecorder.record(PermissionEventRecorder.Type.CHECK, permission, code != null ? code : NO_REQUEST_CODE, granted);
+        return granted;
+    }
+
+    private synchronized void handlePermissionGranted(String permission, boolean notify) {
+        if (!mPermissionsRequestCodes.containsKey(permission) && !mSpecialPermissions.contains(permission)) {
+            throw new IllegalArgumentException("no such permission: " + permission);
+        }
+        mLastGrantedPermissions.add(permission);
+        mLastDeniedPermissions.remove(permission);
+        mEvents.onStateChanged(permission, true);
+        if (notify) {
+            checkReleased();
+            mEvents.onGranted(permission);
+        }
+    }
+
+    private synchronized void handlePermissionDenied(String permission, boolean notify) {
+        if (!mPermissionsRequestCodes.containsKey(permission) && !mSpecialPermissions.contains(permission)) {
+            throw new IllegalArgumentException("no such permission: " + permission);
+        }
+        mLastDeniedPermissions.add(permission);
+        mLastGrantedPermissions.remove(permission);
+        mEvents.onStateChanged(permission, false);
+        if (notify) {
+            checkReleased();
+            mEvents.onDenied(permission);
+        }
+    }
+}
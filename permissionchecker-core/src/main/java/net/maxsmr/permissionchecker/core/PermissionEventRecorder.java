@@ -0,0 +1,307 @@
+package net.maxsmr.permissionchecker.core;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Always-on fixed size ring buffer of permission flow events for bug reports;
+ * recording is lock-free and doesn't allocate, oldest events are overwritten
+ */
+public final class PermissionEventRecorder {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /** {@link Event#getValue()} for events without value */
+    public static final int NO_VALUE = -1;
+
+    private static final PermissionEventRecorder sDefault = new PermissionEventRecorder(DEFAULT_CAPACITY);
+
+    private static final Type[] TYPES = Type.values();
+
+    public enum Type {
+        /** value: 1 if granted, 0 otherwise */
+        CHECK,
+        REQUEST_SENT,
+        /** value: 1 if granted, 0 otherwise */
+        RESULT,
+        /** value: 1 if permission was granted, 0 if denied */
+        DIALOG_SHOWN,
+        SETTINGS_OPENED,
+        /** value: 1 if all awaited permissions were granted, 0 otherwise */
+        SETTINGS_RETURNED,
+        PERMANENTLY_DENIED
+    }
+
+    @NotNull
+    public static PermissionEventRecorder getDefault() {
+        return sDefault;
+    }
+
+    private final int mMask;
+
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /**
+     * Per slot: sequence number + 1 of written event, negative while it's being written
+     */
+    private final AtomicLongArray mSlotSequences;
+
+    private final AtomicLongArray mTimestamps;
+
+    /**
+     * type (16 bits) | value (16 bits) | request code (32 bits)
+     */
+    private final AtomicLongArray mData;
+
+    private final AtomicReferenceArray<String> mPermissions;
+
+    private volatile long mClearedSequence = 0;
+
+    private volatile boolean mEnabled = true;
+
+    /**
+     * @param capacity rounded up to power of 2
+     */
+    public PermissionEventRecorder(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("incorrect capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mSlotSequences = new AtomicLongArray(size);
+        mTimestamps = new AtomicLongArray(size);
+        mData = new AtomicLongArray(size);
+        mPermissions = new AtomicReferenceArray<>(size);
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public void record(@NotNull Type type, @Nullable String permission, int requestCode) {
+        record(type, permission, requestCode, NO_VALUE);
+    }
+
+    public void record(@NotNull Type type, @Nullable String permission, int requestCode, boolean value) {
+        record(type, permission, requestCode, value ? 1 : 0);
+    }
+
+    /**
+     * @param value in range [-1, Short.MAX_VALUE]
+     */
+    public void record(@NotNull Type type, @Nullable String permission, int requestCode, int value) {
+        if (!mEnabled) {
+            return;
+        }
+        long sequence = mSequence.getAndIncrement();
+        int slot = (int) (sequence & mMask);
+        // readers skip the slot until it's published with ordered store of its sequence
+        mSlotSequences.set(slot, -(sequence + 1));
+        mTimestamps.lazySet(slot, System.nanoTime());
+        mData.lazySet(slot, ((long) type.ordinal() << 48) | ((long) (value & 0xFFFF) << 32) | (requestCode & 0xFFFFFFFFL));
+        mPermissions.lazySet(slot, permission);
+        mSlotSequences.lazySet(slot, sequence + 1);
+    }
+
+    /**
+     * @return recorded events from oldest to newest; events being written at the moment are skipped
+     */
+    @NotNull
+    public List<Event> snapshot() {
+        long last = mSequence.get();
+        long first = Math.max(mClearedSequence, last - getCapacity());
+        List<Event> events = new ArrayList<>((int) (last - first));
+        for (long sequence = first; sequence < last; sequence++) {
+            int slot = (int) (sequence & mMask);
+            if (mSlotSequences.get(slot) != sequence + 1) {
+                continue;
+            }
+            long timestamp = mTimestamps.get(slot);
+            long data = mData.get(slot);
+            String permission = mPermissions.get(slot);
+            if (mSlotSequences.get(slot) != sequence + 1) {
+                // overwritten while reading
+                continue;
+            }
+            short value = (short) (data >>> 32);
+            events.add(new Event(sequence, timestamp, TYPES[(int) (data >>> 48)], permission, (int) data, value));
+        }
+        return Collections.unmodifiableList(events);
+    }
+
+    /**
+     * Events recorded before this call are not included in next dumps
+     */
+    public void clear() {
+        mClearedSequence = mSequence.get();
+    }
+
+    /**
+     * One event per line, timestamps in ms relative to the oldest event
+     */
+    @NotNull
+    public String dumpText() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            dumpText(sb);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+
+    public void dumpText(@NotNull Appendable out) throws IOException {
+        List<Event> events = snapshot();
+        long start = events.isEmpty() ? 0 : events.get(0).getTimestampNanos();
+        for (Event event : events) {
+            out.append('#').append(String.valueOf(event.getSequence()))
+                    .append(" +").append(String.format(Locale.US, "%.3f", (event.getTimestampNanos() - start) / 1e6)).append("ms ")
+                    .append(event.getType().name());
+            if (event.getPermission() != null) {
+                out.append(' ').append(event.getPermission());
+            }
+            if (event.getRequestCode() != RequestCodes.NO_REQUEST_CODE) {
+                out.append(" code=").append(String.valueOf(event.getRequestCode()));
+            }
+            if (event.getValue() != NO_VALUE) {
+                out.append(" value=").append(String.valueOf(event.getValue()));
+            }
+            out.append('\n');
+        }
+    }
+
+    /**
+     * JSON array of events with monotonic timestamps in ns
+     */
+    @NotNull
+    public String dumpJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append('[');
+        boolean first = true;
+        for (Event event : snapshot()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("{\"seq\":").append(event.getSequence())
+                    .append(",\"timeNs\":").append(event.getTimestampNanos())
+                    .append(",\"type\":\"").append(event.getType().name()).append('"');
+            if (event.getPermission() != null) {
+                sb.append(",\"permission\":");
+                appendJsonString(sb, event.getPermission());
+            }
+            sb.append(",\"requestCode\":").append(event.getRequestCode());
+            if (event.getValue() != NO_VALUE) {
+                sb.append(",\"value\":").append(event.getValue());
+            }
+            sb.append('}');
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+
+    private static void appendJsonString(@NotNull StringBuilder sb, @NotNull String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    public static final class Event {
+
+        private final long sequence;
+
+        private final long timestampNanos;
+
+        @NotNull
+        private final Type type;
+
+        @Nullable
+        private final String permission;
+
+        private final int requestCode;
+
+        private final int value;
+
+        Event(long sequence, long timestampNanos, @NotNull Type type, @Nullable String permission, int requestCode, int value) {
+            this.sequence = sequence;
+            this.timestampNanos = timestampNanos;
+            this.type = type;
+            this.permission = permission;
+            this.requestCode = requestCode;
+            this.value = value;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return {@link System#nanoTime()} at the moment of recording
+         */
+        public long getTimestampNanos() {
+            return timestampNanos;
+        }
+
+        @NotNull
+        public Type getType() {
+            return type;
+        }
+
+        @Nullable
+        public String getPermission() {
+            return permission;
+        }
+
+        public int getRequestCode() {
+            return requestCode;
+        }
+
+        /**
+         * @return {@link #NO_VALUE} if there is no value for this event type
+         */
+        public int getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return "Event{" +
+                    "sequence=" + sequence +
+                    ", timestampNanos=" + timestampNanos +
+                    ", type=" + type +
+                    ", permission='" + permission + '\'' +
+                    ", requestCode=" + requestCode +
+                    ", value=" + value +
+                    '}';
+        }
+    }
+}
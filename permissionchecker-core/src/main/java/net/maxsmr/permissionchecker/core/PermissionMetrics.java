@@ -0,0 +1,64 @@
+package net.maxsmr.permissionchecker.core;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Service provider interface for permission flow telemetry, installed via {@link PermissionMetricsRegistry};
+ * called on hot paths (including main thread), so implementations should be cheap and not block
+ */
+public interface PermissionMetrics {
+
+    /** latency value when start of the measured interval is unknown (e.g. after process death) */
+    long UNKNOWN_LATENCY = -1;
+
+    PermissionMetrics NONE = new PermissionMetrics() {
+        @Override
+        public void onCheck(@NotNull String permission, boolean granted, long durationNanos) {
+        }
+
+        @Override
+        public void onRequestSent(@NotNull String permission, int requestCode) {
+        }
+
+        @Override
+        public void onResult(@NotNull String permission, int requestCode, boolean granted, long latencyNanos) {
+        }
+
+        @Override
+        public void onDialogShown(@Nullable String permission, int requestCode) {
+        }
+
+        @Override
+        public void onPermanentlyDenied(@NotNull String permission) {
+        }
+
+        @Override
+        public void onSettingsRoundTrip(int requestCode, boolean allGranted, long durationNanos) {
+        }
+    };
+
+    void onCheck(@NotNull String permission, boolean granted, long durationNanos);
+
+    void onRequestSent(@NotNull String permission, int requestCode);
+
+    /**
+     * @param latencyNanos time since request was sent or {@link #UNKNOWN_LATENCY}
+     */
+    void onResult(@NotNull String permission, int requestCode, boolean granted, long latencyNanos);
+
+    /**
+     * @param permission null for dialogs about several permissions
+     */
+    void onDialogShown(@Nullable String permission, int requestCode);
+
+    /**
+     * Permission was denied with "don't ask again" and wasn't known as such before
+     */
+    void onPermanentlyDenied(@NotNull String permission);
+
+    /**
+     * @param durationNanos from showing settings suggestion to returning to app or {@link #UNKNOWN_LATENCY}
+     */
+    void onSettingsRoundTrip(int requestCode, boolean allGranted, long durationNanos);
+}
@@ -0,0 +1,29 @@
+package net.maxsmr.permissionchecker.core;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Holds {@link PermissionMetrics} used by checkers and helpers; {@link PermissionMetrics#NONE} by default
+ */
+public final class PermissionMetricsRegistry {
+
+    @NotNull
+    private static volatile PermissionMetrics sMetrics = PermissionMetrics.NONE;
+
+    private PermissionMetricsRegistry() {
+        throw new AssertionError("no instances.");
+    }
+
+    @NotNull
+    public static PermissionMetrics get() {
+        return sMetrics;
+    }
+
+    /**
+     * @param metrics null to disable reporting
+     */
+    public static void install(@Nullable PermissionMetrics metrics) {
+        sMetrics = metrics != null ? metrics : PermissionMetrics.NONE;
+    }
+}
@@ -0,0 +1,52 @@
+package net.maxsmr.permissionchecker.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+
+/**
+ * Everything permission logic needs from the platform: check, request, rationale and manifest
+ *
+ * @param <H> host of system requests (e.g. Activity)
+ */
+public interface PermissionPlatform<H> {
+
+    /** value of granted result, same as PackageManager.PERMISSION_GRANTED */
+    int PERMISSION_GRANTED = 0;
+
+    /** value of denied result, same as PackageManager.PERMISSION_DENIED */
+    int PERMISSION_DENIED = -1;
+
+    enum Kind {
+        /** granted at install time (normal, signature), not checked or requested */
+        INSTALL_TIME,
+        /** granted by user via system dialog */
+        RUNTIME,
+        /** granted by user via special settings screen (e.g. WRITE_SETTINGS, SYSTEM_ALERT_WINDOW) */
+        SPECIAL
+    }
+
+    boolean isGranted(@NotNull String permission);
+
+    boolean shouldShowRationale(@NotNull H host, @NotNull String permission);
+
+    /**
+     * Shows system dialog for runtime permissions or opens settings screen for special one
+     */
+    void requestPermissions(@NotNull H host, @NotNull String[] permissions, int requestCode);
+
+    /**
+     * @return permissions declared in the app manifest
+     */
+    @NotNull
+    Collection<String> getRequestedPermissions();
+
+    @NotNull
+    Kind getKind(@NotNull String permission);
+
+    /**
+     * @return false if permission is declared, but not needed on current api version
+     * (e.g. WRITE_EXTERNAL_STORAGE with scoped storage)
+     */
+    boolean isRequiredByApiVersion(@NotNull String permission);
+}
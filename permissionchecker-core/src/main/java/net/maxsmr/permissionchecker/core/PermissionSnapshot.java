@@ -0,0 +1,182 @@
+package net.maxsmr.permissionchecker.core;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Last known grant states of permissions for given app version;
+ * only for rendering before actual checks are done, not for access decisions
+ */
+public final class PermissionSnapshot {
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final long mAppVersion;
+
+    @NotNull
+    private final Map<String, Boolean> mStates;
+
+    public PermissionSnapshot(long appVersion, @NotNull Map<String, Boolean> states) {
+        mAppVersion = appVersion;
+        mStates = Collections.unmodifiableMap(new LinkedHashMap<>(states));
+    }
+
+    @NotNull
+    public static PermissionSnapshot empty(long appVersion) {
+        return new PermissionSnapshot(appVersion, Collections.<String, Boolean>emptyMap());
+    }
+
+    /**
+     * @return null if data is corrupted or was saved by other app version
+     */
+    @Nullable
+    public static PermissionSnapshot fromBytes(@Nullable byte[] data, long appVersion) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readInt() != FORMAT_VERSION || in.readLong() != appVersion) {
+                return null;
+            }
+            int count = in.readInt();
+            if (count < 0) {
+                return null;
+            }
+            Map<String, Boolean> states = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                String permission = in.readUTF();
+                states.put(permission, in.readBoolean());
+            }
+            if (in.available() > 0) {
+                return null;
+            }
+            return new PermissionSnapshot(appVersion, states);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Actual states of given permissions from platform
+     */
+    @NotNull
+    public static Map<String, Boolean> check(@NotNull PermissionPlatform<?> platform, @NotNull Collection<String> permissions) {
+        Map<String, Boolean> states = new LinkedHashMap<>();
+        for (String permission : permissions) {
+            states.put(permission, platform.isGranted(permission));
+        }
+        return states;
+    }
+
+    @NotNull
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + mStates.size() * 48);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(mAppVersion);
+            out.writeInt(mStates.size());
+            for (Map.Entry<String, Boolean> entry : mStates.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeBoolean(entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public long getAppVersion() {
+        return mAppVersion;
+    }
+
+    @NotNull
+    public Map<String, Boolean> getStates() {
+        return mStates;
+    }
+
+    public boolean isEmpty() {
+        return mStates.isEmpty();
+    }
+
+    /**
+     * @return null if state of permission is unknown
+     */
+    @Nullable
+    public Boolean isGranted(@NotNull String permission) {
+        return mStates.get(permission);
+    }
+
+    /**
+     * @return states from actual which are unknown or differ from this snapshot
+     */
+    @NotNull
+    public Map<String, Boolean> diff(@NotNull Map<String, Boolean> actual) {
+        Map<String, Boolean> changes = null;
+        for (Map.Entry<String, Boolean> entry : actual.entrySet()) {
+            if (!entry.getValue().equals(mStates.get(entry.getKey()))) {
+                if (changes == null) {
+                    changes = new LinkedHashMap<>();
+                }
+                changes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return changes != null ? changes : Collections.<String, Boolean>emptyMap();
+    }
+
+    /**
+     * @return this if nothing was changed
+     */
+    @NotNull
+    public PermissionSnapshot merge(@NotNull Map<String, Boolean> changes) {
+        if (diff(changes).isEmpty()) {
+            return this;
+        }
+        Map<String, Boolean> states = new LinkedHashMap<>(mStates);
+        states.putAll(changes);
+        return new PermissionSnapshot(mAppVersion, states);
+    }
+
+    /**
+     * @return snapshot without states of permissions that are not in given ones (e.g. removed from manifest)
+     */
+    @NotNull
+    public PermissionSnapshot retainAll(@NotNull Collection<String> permissions) {
+        if (permissions.containsAll(mStates.keySet())) {
+            return this;
+        }
+        Map<String, Boolean> states = new LinkedHashMap<>(mStates);
+        states.keySet().retainAll(permissions);
+        return new PermissionSnapshot(mAppVersion, states);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PermissionSnapshot that = (PermissionSnapshot) o;
+        return mAppVersion == that.mAppVersion && mStates.equals(that.mStates);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.valueOf(mAppVersion).hashCode() + mStates.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "PermissionSnapshot{" +
+                "appVersion=" + mAppVersion +
+                ", states=" + mStates +
+                '}';
+    }
+}
@@ -0,0 +1,21 @@
+package net.maxsmr.permissionchecker.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Persistent set of permissions (e.g. denied with "don't ask again")
+ */
+public interface PermissionStore {
+
+    @NotNull
+    Set<String> getAll();
+
+    boolean contains(@NotNull String permission);
+
+    void addAll(@NotNull Collection<String> permissions);
+
+    void removeAll(@NotNull Collection<String> permissions);
+}
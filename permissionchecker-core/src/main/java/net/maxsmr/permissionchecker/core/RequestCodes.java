@@ -0,0 +1,48 @@
+package net.maxsmr.permissionchecker.core;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public final class RequestCodes {
+
+    public static final int NO_REQUEST_CODE = -1;
+
+    /** request codes should fit lower 8 bits */
+    public static final int MIN_REQUEST_CODE = 1;
+    public static final int MAX_REQUEST_CODE = Byte.MAX_VALUE * 2;
+
+    private static final Random sRandom = new Random();
+
+    private RequestCodes() {
+        throw new AssertionError("no instances.");
+    }
+
+    /**
+     * @param usedCodes not copied if it's a {@link Set}
+     * @throws IllegalStateException if there are no free codes
+     */
+    public static int generateRequestCode(Collection<Integer> usedCodes) {
+        int newCode = MIN_REQUEST_CODE;
+        if (usedCodes != null && !usedCodes.isEmpty()) {
+            Set<Integer> used = usedCodes instanceof Set ? (Set<Integer>) usedCodes : new HashSet<>(usedCodes);
+            if (used.size() > MAX_REQUEST_CODE - MIN_REQUEST_CODE && !hasFreeCode(used)) {
+                throw new IllegalStateException("No free request codes left");
+            }
+            while (used.contains(newCode)) {
+                newCode = sRandom.nextInt(MAX_REQUEST_CODE - MIN_REQUEST_CODE + 1) + MIN_REQUEST_CODE;
+            }
+        }
+        return newCode;
+    }
+
+    private static boolean hasFreeCode(Set<Integer> used) {
+        for (int code = MIN_REQUEST_CODE; code <= MAX_REQUEST_CODE; code++) {
+            if (!used.contains(code)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
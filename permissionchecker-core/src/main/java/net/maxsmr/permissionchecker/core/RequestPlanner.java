@@ -0,0 +1,241 @@
+package net.maxsmr.permissionchecker.core;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits needed permissions into ordered batches, one system request per batch, with as few batches as possible:
+ * <ul>
+ * <li>permissions without constraints go to one batch, so permissions of the same group collapse into one prompt</li>
+ * <li>permission with prerequisites (e.g. background location) goes after them, unless one of them is already granted</li>
+ * <li>solo permissions (background location and sensors, special ones granted on settings screen) go alone</li>
+ * </ul>
+ */
+public final class RequestPlanner {
+
+    public static final String ACCESS_FINE_LOCATION = "android.permission.ACCESS_FINE_LOCATION";
+    public static final String ACCESS_COARSE_LOCATION = "android.permission.ACCESS_COARSE_LOCATION";
+    public static final String ACCESS_BACKGROUND_LOCATION = "android.permission.ACCESS_BACKGROUND_LOCATION";
+    public static final String BODY_SENSORS = "android.permission.BODY_SENSORS";
+    public static final String BODY_SENSORS_BACKGROUND = "android.permission.BODY_SENSORS_BACKGROUND";
+
+    public static final String PLATFORM_GROUP_PREFIX = "android.permission-group.";
+
+    /**
+     * Platform permission groups: permissions of one group requested together are shown in one prompt
+     */
+    private static final Map<String, String> GROUPS = new HashMap<>();
+
+    static {
+        group("LOCATION", ACCESS_FINE_LOCATION, ACCESS_COARSE_LOCATION, ACCESS_BACKGROUND_LOCATION);
+        group("CAMERA", "android.permission.CAMERA");
+        group("MICROPHONE", "android.permission.RECORD_AUDIO");
+        group("CONTACTS", "android.permission.READ_CONTACTS", "android.permission.WRITE_CONTACTS", "android.permission.GET_ACCOUNTS");
+        group("CALENDAR", "android.permission.READ_CALENDAR", "android.permission.WRITE_CALENDAR");
+        group("PHONE", "android.permission.READ_PHONE_STATE", "android.permission.READ_PHONE_NUMBERS", "android.permission.CALL_PHONE",
+                "android.permission.ANSWER_PHONE_CALLS", "android.permission.ADD_VOICEMAIL", "android.permission.USE_SIP",
+                "android.permission.ACCEPT_HANDOVER");
+        group("CALL_LOG", "android.permission.READ_CALL_LOG", "android.permission.WRITE_CALL_LOG", "android.permission.PROCESS_OUTGOING_CALLS");
+        group("SMS", "android.permission.SEND_SMS", "android.permission.RECEIVE_SMS", "android.permission.READ_SMS",
+                "android.permission.RECEIVE_WAP_PUSH", "android.permission.RECEIVE_MMS");
+        group("STORAGE", "android.permission.READ_EXTERNAL_STORAGE", "android.permission.WRITE_EXTERNAL_STORAGE",
+                "android.permission.ACCESS_MEDIA_LOCATION");
+        group("SENSORS", BODY_SENSORS, BODY_SENSORS_BACKGROUND);
+        group("ACTIVITY_RECOGNITION", "android.permission.ACTIVITY_RECOGNITION");
+        group("NEARBY_DEVICES", "android.permission.BLUETOOTH_SCAN", "android.permission.BLUETOOTH_CONNECT",
+                "android.permission.BLUETOOTH_ADVERTISE", "android.permission.UWB_RANGING");
+    }
+
+    /**
+     * @return platform group (e.g. android.permission-group.CAMERA) of known dangerous permission or null
+     */
+    @Nullable
+    public static String getPlatformGroup(@NotNull String permission) {
+        String group = GROUPS.get(permission);
+        return group != null ? PLATFORM_GROUP_PREFIX + group : null;
+    }
+
+    @NotNull
+    private final PermissionPlatform<?> mPlatform;
+
+    /**
+     * permission -> permissions, any of which should be granted before it can be requested
+     */
+    private final Map<String, Set<String>> mPrerequisites = new HashMap<>();
+
+    private final Set<String> mSolo = new HashSet<>();
+
+    public RequestPlanner(@NotNull PermissionPlatform<?> platform) {
+        mPlatform = platform;
+        addPrerequisites(ACCESS_BACKGROUND_LOCATION, true, ACCESS_FINE_LOCATION, ACCESS_COARSE_LOCATION);
+        addPrerequisites(BODY_SENSORS_BACKGROUND, true, BODY_SENSORS);
+    }
+
+    /**
+     * @param solo true if permission can't be requested with other ones
+     * @param anyOf permissions, any of which should be granted before given one is requested
+     */
+    @NotNull
+    public RequestPlanner addPrerequisites(@NotNull String permission, boolean solo, @NotNull String... anyOf) {
+        if (anyOf.length > 0) {
+            mPrerequisites.put(permission, new LinkedHashSet<>(Arrays.asList(anyOf)));
+        }
+        if (solo) {
+            mSolo.add(permission);
+        }
+        return this;
+    }
+
+    /**
+     * @param granted already granted permissions, satisfying prerequisites
+     * @return batches in request order, each for one system request
+     */
+    @NotNull
+    public List<Set<String>> plan(@NotNull Collection<String> permissions, @NotNull Collection<String> granted) {
+        Map<Integer, Set<String>> common = new LinkedHashMap<>();
+        Map<Integer, List<String>> solo = new LinkedHashMap<>();
+        List<String> special = new ArrayList<>();
+        int maxLevel = 0;
+        Set<String> needed = new LinkedHashSet<>(permissions);
+        for (String permission : needed) {
+            if (mPlatform.getKind(permission) == PermissionPlatform.Kind.SPECIAL) {
+                special.add(permission);
+                continue;
+            }
+            int level = level(permission, needed, granted, 0);
+            maxLevel = Math.max(maxLevel, level);
+            if (mSolo.contains(permission)) {
+                List<String> list = solo.get(level);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    solo.put(level, list);
+                }
+                list.add(permission);
+            } else {
+                Set<String> batch = common.get(level);
+                if (batch == null) {
+                    batch = new LinkedHashSet<>();
+                    common.put(level, batch);
+                }
+                batch.add(permission);
+            }
+        }
+        List<Set<String>> plan = new ArrayList<>();
+        for (int level = 0; level <= maxLevel; level++) {
+            Set<String> batch = common.get(level);
+            if (batch != null) {
+                plan.add(sortByGroup(batch));
+            }
+            List<String> list = solo.get(level);
+            if (list != null) {
+                for (String permission : list) {
+                    plan.add(Collections.singleton(permission));
+                }
+            }
+        }
+        for (String permission : special) {
+            plan.add(Collections.singleton(permission));
+        }
+        return plan;
+    }
+
+    /**
+     * @return all permissions of plan in request order
+     */
+    @NotNull
+    public static List<String> flatten(@NotNull List<Set<String>> plan) {
+        List<String> result = new ArrayList<>();
+        for (Set<String> batch : plan) {
+            result.addAll(batch);
+        }
+        return result;
+    }
+
+    /**
+     * @return false if permission has prerequisites and none of them is granted: request would be denied without prompt
+     */
+    public boolean canRequest(@NotNull String permission, @NotNull Collection<String> granted) {
+        Set<String> prerequisites = mPrerequisites.get(permission);
+        if (prerequisites == null) {
+            return true;
+        }
+        for (String prerequisite : prerequisites) {
+            if (granted.contains(prerequisite)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of prompts user will see for given batch
+     */
+    public static int getPromptsCount(@NotNull Collection<String> batch) {
+        Set<String> groups = new HashSet<>();
+        int count = 0;
+        for (String permission : batch) {
+            String group = GROUPS.get(permission);
+            if (group == null || groups.add(group)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int level(@NotNull String permission, @NotNull Set<String> needed, @NotNull Collection<String> granted, int depth) {
+        Set<String> prerequisites = mPrerequisites.get(permission);
+        if (prerequisites == null || depth > mPrerequisites.size()) {
+            return 0;
+        }
+        int level = -1;
+        for (String prerequisite : prerequisites) {
+            if (granted.contains(prerequisite)) {
+                return 0;
+            }
+            if (needed.contains(prerequisite)) {
+                int prerequisiteLevel = level(prerequisite, needed, granted, depth + 1);
+                level = level < 0 ? prerequisiteLevel : Math.min(level, prerequisiteLevel);
+            }
+        }
+        // without requested prerequisites it will be denied anyway, but not before others
+        return level < 0 ? 1 : level + 1;
+    }
+
+    @NotNull
+    private static Set<String> sortByGroup(@NotNull Set<String> batch) {
+        Map<String, List<String>> byGroup = new LinkedHashMap<>();
+        for (String permission : batch) {
+            String group = GROUPS.get(permission);
+            String key = group != null ? group : permission;
+            List<String> list = byGroup.get(key);
+            if (list == null) {
+                list = new ArrayList<>();
+                byGroup.put(key, list);
+            }
+            list.add(permission);
+        }
+        Set<String> result = new LinkedHashSet<>();
+        for (List<String> list : byGroup.values()) {
+            result.addAll(list);
+        }
+        return result;
+    }
+
+    private static void group(@NotNull String group, @NotNull String... permissions) {
+        for (String permission : permissions) {
+            GROUPS.put(permission, group);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package net.maxsmr.permissionchecker.core;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Permission state shared between processes of one app:
+ * grant states published by owner process (valid only while publisher process is alive,
+ * since revoking a permission kills all processes of the app) and persistent permanently denied permissions
+ */
+public final class SharedPermissionState {
+
+    public static final int NO_PID = 0;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final SharedPermissionState EMPTY =
+            new SharedPermissionState(NO_PID, Collections.<String, Boolean>emptyMap(), Collections.<String>emptySet());
+
+    private final int mPublisherPid;
+
+    @NotNull
+    private final Map<String, Boolean> mStates;
+
+    @NotNull
+    private final Set<String> mPermanentlyDenied;
+
+    public SharedPermissionState(int publisherPid, @NotNull Map<String, Boolean> states, @NotNull Collection<String> permanentlyDenied) {
+        mPublisherPid = publisherPid;
+        mStates = Collections.unmodifiableMap(new LinkedHashMap<>(states));
+        mPermanentlyDenied = Collections.unmodifiableSet(new LinkedHashSet<>(permanentlyDenied));
+    }
+
+    @NotNull
+    public static SharedPermissionState empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @return null if data is corrupted or written in other format
+     */
+    @Nullable
+    public static SharedPermissionState fromBytes(@Nullable byte[] data) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int pid = in.readInt();
+            int statesCount = in.readInt();
+            if (statesCount < 0) {
+                return null;
+            }
+            Map<String, Boolean> states = new LinkedHashMap<>();
+            for (int i = 0; i < statesCount; i++) {
+                String permission = in.readUTF();
+                states.put(permission, in.readBoolean());
+            }
+            int deniedCount = in.readInt();
+            if (deniedCount < 0) {
+                return null;
+            }
+            Set<String> permanentlyDenied = new LinkedHashSet<>();
+            for (int i = 0; i < deniedCount; i++) {
+                permanentlyDenied.add(in.readUTF());
+            }
+            if (in.available() > 0) {
+                return null;
+            }
+            return new SharedPermissionState(pid, states, permanentlyDenied);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @NotNull
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + (mStates.size() + mPermanentlyDenied.size()) * 48);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(mPublisherPid);
+            out.writeInt(mStates.size());
+            for (Map.Entry<String, Boolean> entry : mStates.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeBoolean(entry.getValue());
+            }
+            out.writeInt(mPermanentlyDenied.size());
+            for (String permission : mPermanentlyDenied) {
+                out.writeUTF(permission);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return {@link #NO_PID} if states were never published
+     */
+    public int getPublisherPid() {
+        return mPublisherPid;
+    }
+
+    @NotNull
+    public Map<String, Boolean> getStates() {
+        return mStates;
+    }
+
+    @NotNull
+    public Set<String> getPermanentlyDenied() {
+        return mPermanentlyDenied;
+    }
+
+    /**
+     * @return null if state of permission was not published
+     */
+    @Nullable
+    public Boolean isGranted(@NotNull String permission) {
+        return mStates.get(permission);
+    }
+
+    /**
+     * States of previous publisher are dropped: they could be outdated after its death
+     *
+     * @return this if nothing was changed
+     */
+    @NotNull
+    public SharedPermissionState withStates(int publisherPid, @NotNull Map<String, Boolean> changes) {
+        if (publisherPid != mPublisherPid) {
+            return new SharedPermissionState(publisherPid, changes, mPermanentlyDenied);
+        }
+        boolean changed = false;
+        for (Map.Entry<String, Boolean> entry : changes.entrySet()) {
+            if (!entry.getValue().equals(mStates.get(entry.getKey()))) {
+                changed = true;
+                break;
+            }
+        }
+        if (!changed) {
+            return this;
+        }
+        Map<String, Boolean> states = new LinkedHashMap<>(mStates);
+        states.putAll(changes);
+        return new SharedPermissionState(publisherPid, states, mPermanentlyDenied);
+    }
+
+    /**
+     * @return this if nothing was changed
+     */
+    @NotNull
+    public SharedPermissionState withPermanentlyDenied(@NotNull Collection<String> added, @NotNull Collection<String> removed) {
+        Set<String> permanentlyDenied = new LinkedHashSet<>(mPermanentlyDenied);
+        boolean changed = permanentlyDenied.addAll(added);
+        changed |= permanentlyDenied.removeAll(removed);
+        if (!changed) {
+            return this;
+        }
+        return new SharedPermissionState(mPublisherPid, mStates, permanentlyDenied);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SharedPermissionState that = (SharedPermissionState) o;
+        return mPublisherPid == that.mPublisherPid && mStates.equals(that.mStates) && mPermanentlyDenied.equals(that.mPermanentlyDenied);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mPublisherPid;
+        result = 31 * result + mStates.hashCode();
+        result = 31 * result + mPermanentlyDenied.hashCode();
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "SharedPermissionState{" +
+                "publisherPid=" + mPublisherPid +
+                ", states=" + mStates +
+                ", permanentlyDenied=" + mPermanentlyDenied +
+                '}';
+    }
+}
@@ -0,0 +1,185 @@
+package net.maxsmr.permissionchecker.core
+
+/**
+ * Платформенно-независимая логика PermissionsHelper: фильтрация разрешений,
+ * решение о запросе и учёт отклонённых с опцией "Больше не спрашивать" в [permanentlyDeniedStore].
+ * Все обращения к системе идут через [platform]
+ */
+class PermissionsHelperCore<H : Any>(
+        val platform: PermissionPlatform<H>,
+        private val permanentlyDeniedStore: PermissionStore?,
+) {
+
+    private val resultParser = PermissionsResultParser()
+
+    private val recorder = PermissionEventRecorder.getDefault()
+
+    /**
+     * Разбиение запроса на пакеты с учётом ограничений платформы; правила можно дополнить
+     */
+    val planner = RequestPlanner(platform)
+
+    val permanentlyDeniedPermissions: Set<String>
+        get() = permanentlyDeniedStore?.all ?: throw IllegalStateException("permanentlyDeniedStore is not specified")
+
+    /**
+     * 1. [Decision.AllGranted], если все [perms], требующие запроса в рантайме (в т.ч. специальные), предоставлены
+     * 1. [Decision.PermanentlyDenied], если среди них есть ранее отклонённые с опцией "Больше не спрашивать"
+     * 1. иначе [Decision.Request] с разрешениями и планом системных запросов только для не предоставленных
+     */
+    fun decide(perms: Collection<String>): Decision {
+        val filtered = filterRequestablePermissions(perms)
+        // каждое разрешение проверяется один раз
+        val notGranted = filterDenied(filtered)
+        if (notGranted.isEmpty()) {
+            return Decision.AllGranted
+        }
+        val deniedNotAskAgain = if (permanentlyDeniedStore != null) {
+            notGranted.filterTo(LinkedHashSet()) { permanentlyDeniedStore.contains(it) }
+        } else {
+            emptySet()
+        }
+        if (deniedNotAskAgain.isNotEmpty()) {
+            return Decision.PermanentlyDenied(filtered, notGranted, deniedNotAskAgain)
+        }
+        val granted = filtered.filterTo(LinkedHashSet()) { it !in notGranted }
+        return Decision.Request(filtered, planner.plan(notGranted, granted), granted)
+    }
+
+    /**
+     * Разбирает результат системного запроса и запоминает отклонённые без показа rationale
+     * как отклонённые навсегда
+     * @param sentNanos [System.nanoTime] отправки запроса для замера задержки, если известно
+     * @return переиспользуемый парсер, валиден до следующего вызова
+     */
+    @JvmOverloads
+    fun onRequestPermissionsResult(
+            host: H,
+            permissions: Array<out String>,
+            grantResults: IntArray,
+            requestCode: Int = RequestCodes.NO_REQUEST_CODE,
+            sentNanos: Long = PermissionMetrics.UNKNOWN_LATENCY,
+    ): PermissionsResultParser {
+        val parsed = resultParser.parse(permissions, grantResults) { !platform.isRequiredByApiVersion(it) }
+        val metrics = PermissionMetricsRegistry.get()
+        val latency = if (sentNanos >= 0) System.nanoTime() - sentNanos else PermissionMetrics.UNKNOWN_LATENCY
+        for (i in 0 until parsed.size) {
+            recorder.record(PermissionEventRecorder.Type.RESULT, parsed.permission(i), requestCode, parsed.isGranted(i))
+            metrics.onResult(parsed.permission(i), requestCode, parsed.isGranted(i), latency)
+        }
+        if (parsed.deniedCount > 0 && permanentlyDeniedStore != null) {
+            var permanentlyDenied: MutableList<String>? = null
+            for (i in 0 until parsed.size) {
+                if (parsed.isGranted(i)) continue
+                val perm = parsed.permission(i)
+                if (!platform.shouldShowRationale(host, perm)) {
+                    recorder.record(PermissionEventRecorder.Type.PERMANENTLY_DENIED, perm, requestCode)
+                    if (!permanentlyDeniedStore.contains(perm)) {
+                        metrics.onPermanentlyDenied(perm)
+                    }
+                    (permanentlyDenied ?: mutableListOf<String>().also { permanentlyDenied = it }).add(perm)
+                }
+            }
+            permanentlyDenied?.let { permanentlyDeniedStore.addAll(it) }
+        }
+        return parsed
+    }
+
+    /**
+     * @return не предоставленные из [perms]
+     */
+    fun filterDenied(perms: Collection<String>): Set<String> {
+        val denied = LinkedHashSet<String>()
+        var granted: MutableList<String>? = null
+        for (perm in perms) {
+            if (isGranted(perm)) {
+                (granted ?: mutableListOf<String>().also { granted = it }).add(perm)
+            } else {
+                denied.add(perm)
+            }
+        }
+        granted?.let { removeFromDenied(it) }
+        return denied
+    }
+
+    fun filterDeniedNotAskAgain(permission: Collection<String>): Set<String> {
+        val result = mutableSetOf<String>()
+        for (perm in permission) {
+            if (isDeniedNotAskAgain(perm)) {
+                result.add(perm)
+            }
+        }
+        return result
+    }
+
+    fun isDeniedNotAskAgain(permission: String): Boolean {
+        if (permanentlyDeniedStore == null || !permanentlyDeniedStore.contains(permission)) return false
+        return !hasPermissions(true, listOf(permission))
+    }
+
+    /**
+     * @param filter отфильтровать [perms] по версии апи перед проверкой
+     */
+    fun hasPermissions(filter: Boolean, perms: Collection<String>): Boolean {
+        val target = if (filter) filterPermissionsByApiVersion(perms) else perms
+        val granted = target.filter { isGranted(it) }
+        removeFromDenied(granted)
+        return target.size == granted.size
+    }
+
+    /**
+     * Разрешения, требующие проверки и запроса в рантайме - через системный диалог или экран настроек
+     * ([PermissionPlatform.Kind.SPECIAL]): выдаваемые при установке (normal, signature)
+     * и не нужные на текущей версии апи отбрасываются
+     */
+    fun filterRequestablePermissions(perms: Collection<String>): Set<String> =
+            perms.filterTo(LinkedHashSet()) {
+                platform.isRequiredByApiVersion(it) && platform.getKind(it) != PermissionPlatform.Kind.INSTALL_TIME
+            }
+
+    /**
+     * Фильтрует разрешения, которые не надо запрашивать для определенных версий апи (см. флаги в манифесте приложения)
+     */
+    fun filterPermissionsByApiVersion(perms: Collection<String>): Set<String> =
+            perms.filterTo(LinkedHashSet()) { platform.isRequiredByApiVersion(it) }
+
+    private fun isGranted(permission: String): Boolean {
+        val start = System.nanoTime()
+        val granted = platform.isGranted(permission)
+        PermissionMetricsRegistry.get().onCheck(permission, granted, System.nanoTime() - start)
+        recorder.record(PermissionEventRecorder.Type.CHECK, permission, RequestCodes.NO_REQUEST_CODE, granted)
+        return granted
+    }
+
+    private fun removeFromDenied(perms: Collection<String>) {
+        if (permanentlyDeniedStore == null) return
+        perms.filter { permanentlyDeniedStore.contains(it) }.takeIf { it.isNotEmpty() }?.let {
+            permanentlyDeniedStore.removeAll(it)
+        }
+    }
+
+    sealed class Decision {
+
+        object AllGranted : Decision()
+
+        /**
+         * @param notGranted все не предоставленные из [permissions], после возврата из настроек
+         * учитываются все они, а не только [permanentlyDenied]
+         */
+        class PermanentlyDenied(
+                val permissions: Set<String>,
+                val notGranted: Set<String>,
+                val permanentlyDenied: Set<String>,
+        ) : Decision()
+
+        /**
+         * @param batches пакеты для последовательных системных запросов, см. [RequestPlanner]
+         * @param granted уже предоставленные из [permissions]
+         */
+        class Request(
+                val permissions: Set<String>,
+                val batches: List<Set<String>>,
+                val granted: Set<String>,
+        ) : Decision()
+    }
+}
@@ -0,0 +1,84 @@
+package net.maxsmr.permissionchecker.core
+
+/**
+ * Разбор результата onRequestPermissionsResult: проходит [permissions] и grantResults синхронно по индексу,
+ * поэтому отфильтрованные разрешения не сдвигают индексы результатов.
+ * Пишет в переиспользуемые массивы, без промежуточных коллекций; не потокобезопасен -
+ * предполагается использование с главного потока.
+ */
+class PermissionsResultParser {
+
+    private var permissions = arrayOfNulls<String>(INITIAL_CAPACITY)
+    private var granted = BooleanArray(INITIAL_CAPACITY)
+
+    var size = 0
+        private set
+
+    var deniedCount = 0
+        private set
+
+    /**
+     * @param isSkipped разрешения, не требующиеся на текущей версии апи
+     */
+    fun parse(permissions: Array<out String>, grantResults: IntArray, isSkipped: (String) -> Boolean): PermissionsResultParser {
+        val count = minOf(permissions.size, grantResults.size)
+        ensureCapacity(count)
+        size = 0
+        deniedCount = 0
+        for (i in 0 until count) {
+            val perm = permissions[i]
+            if (isSkipped(perm)) continue
+            val isGranted = grantResults[i] == PermissionPlatform.PERMISSION_GRANTED
+            this.permissions[size] = perm
+            this.granted[size] = isGranted
+            if (!isGranted) deniedCount++
+            size++
+        }
+        for (i in size until this.permissions.size) {
+            this.permissions[i] = null
+        }
+        return this
+    }
+
+    fun permission(index: Int): String = permissions[index]!!
+
+    fun isGranted(index: Int) = granted[index]
+
+    fun contains(permission: String): Boolean {
+        for (i in 0 until size) {
+            if (permissions[i] == permission) return true
+        }
+        return false
+    }
+
+    fun deniedPermissions(): Set<String> {
+        if (deniedCount == 0) return emptySet()
+        val result = LinkedHashSet<String>(deniedCount)
+        for (i in 0 until size) {
+            if (!granted[i]) result.add(permission(i))
+        }
+        return result
+    }
+
+    /**
+     * @return мапа <Имя разрешения, Признак того, что разрешение предоставлено>
+     */
+    fun toPermissionResult(): Map<String, Boolean> {
+        val result = LinkedHashMap<String, Boolean>(size)
+        for (i in 0 until size) {
+            result[permission(i)] = granted[i]
+        }
+        return result
+    }
+
+    private fun ensureCapacity(capacity: Int) {
+        if (capacity <= permissions.size) return
+        permissions = arrayOfNulls(capacity)
+        granted = BooleanArray(capacity)
+    }
+
+    companion object {
+
+        private const val INITIAL_CAPACITY = 8
+    }
+}
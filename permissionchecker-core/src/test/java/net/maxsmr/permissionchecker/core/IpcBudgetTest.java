@@ -0,0 +1,192 @@
+package net.maxsmr.permissionchecker.core;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static net.maxsmr.permissionchecker.core.CountingPermissionPlatform.Call.CHECK;
+import static net.maxsmr.permissionchecker.core.CountingPermissionPlatform.Call.MANIFEST;
+import static net.maxsmr.permissionchecker.core.CountingPermissionPlatform.Call.RATIONALE;
+import static net.maxsmr.permissionchecker.core.CountingPermissionPlatform.Call.REQUEST;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Permission flows must not make more platform calls (binder transactions on device) than their {@link IpcBudget}
+ */
+public class IpcBudgetTest {
+
+    private static final int[] MANIFEST_SIZES = {10, 40, 200};
+    private static final float RUNTIME_RATIO = 0.25f;
+    private static final long SEED = 7;
+
+    private static final Object HOST = new Object();
+
+    private static final PermissionCheckerCore.Events NO_EVENTS = new PermissionCheckerCore.Events() {
+        @Override
+        public void onDismissAll() {
+        }
+
+        @Override
+        public void onGranted(@NotNull String permission) {
+        }
+
+        @Override
+        public void onDenied(@NotNull String permission) {
+        }
+    };
+
+    @Test
+    public void checkerColdStartAllGranted() {
+        for (int size : MANIFEST_SIZES) {
+            CountingPermissionPlatform<Object> platform = counting(size, 1f);
+            PermissionCheckerCore<Object> checker = new PermissionCheckerCore<>(platform, NO_EVENTS, false, null, null);
+            assertTrue(checker.checkAppPermissions());
+            IpcBudget.none().allow(MANIFEST, 1).allow(CHECK, checker.getPermissionsCount())
+                    .verify("checker cold start, all granted (manifest " + size + ")", platform);
+        }
+    }
+
+    @Test
+    public void checkerFirstRunAllDeniedAndReturnFromSettings() {
+        for (int size : MANIFEST_SIZES) {
+            FakePermissionPlatform fake = FakePermissionPlatform.create(size, RUNTIME_RATIO, 0f, SEED);
+            CountingPermissionPlatform<Object> platform = new CountingPermissionPlatform<>(fake);
+            PermissionCheckerCore<Object> checker = new PermissionCheckerCore<>(platform, NO_EVENTS, false, null, null);
+            int count = checker.getPermissionsCount();
+            if (!checker.checkAppPermissions()) {
+                checker.requestAppPermissions(HOST, false);
+                Map.Entry<String, Integer> pending = pendingRequest(checker);
+                if (pending != null) {
+                    answer(checker, pending, PermissionPlatform.PERMISSION_DENIED);
+                }
+            }
+            IpcBudget.none().allow(MANIFEST, 1).allow(CHECK, count)
+                    .allow(RATIONALE, Math.min(1, count)).allow(REQUEST, Math.min(1, count))
+                    .verify("checker first run, all denied (manifest " + size + ")", platform);
+
+            // all granted in settings, recheck on return
+            for (String permission : fake.getManifest()) {
+                fake.setGranted(permission, true);
+            }
+            platform.reset();
+            assertTrue(checker.checkAppPermissions());
+            IpcBudget.none().allow(CHECK, count)
+                    .verify("checker return from settings (manifest " + size + ")", platform);
+        }
+    }
+
+    @Test
+    public void checkerRecreationWithPendingRequest() {
+        for (int size : MANIFEST_SIZES) {
+            FakePermissionPlatform fake = FakePermissionPlatform.create(size, RUNTIME_RATIO, 0f, SEED);
+            PermissionCheckerCore<Object> before = new PermissionCheckerCore<>(fake, NO_EVENTS, false, null, null);
+            if (before.checkAppPermissions()) {
+                continue;
+            }
+            before.requestAppPermissions(HOST, false);
+            byte[] state = before.saveState();
+
+            // process recreated while system dialog was shown
+            CountingPermissionPlatform<Object> platform = new CountingPermissionPlatform<>(fake);
+            PermissionCheckerCore<Object> after = new PermissionCheckerCore<>(platform, NO_EVENTS, false, null, null);
+            assertTrue("state was not restored (manifest " + size + ")", after.restoreState(state));
+            int count = after.getPermissionsCount();
+            Map.Entry<String, Integer> pending = pendingRequest(after);
+            if (pending != null) {
+                fake.setGranted(pending.getKey(), true);
+                answer(after, pending, PermissionPlatform.PERMISSION_GRANTED);
+            }
+            // only not checked ones are checked again, next one is requested
+            IpcBudget.none().allow(MANIFEST, 1).allow(CHECK, count - 1)
+                    .allow(RATIONALE, 1).allow(REQUEST, 1)
+                    .verify("checker recreation with pending request (manifest " + size + ")", platform);
+        }
+    }
+
+    @Test
+    public void helperAllGranted() {
+        for (int size : MANIFEST_SIZES) {
+            CountingPermissionPlatform<Object> platform = counting(size, 1f);
+            PermissionsHelperCore<Object> helper = new PermissionsHelperCore<>(platform, new FakePermissionStore());
+            List<String> manifest = new ArrayList<>(platform.getRequestedPermissions());
+            platform.reset();
+            Set<String> runtime = helper.filterRequestablePermissions(manifest);
+            assertFalse(helper.decide(manifest) instanceof PermissionsHelperCore.Decision.Request);
+            IpcBudget.none().allow(CHECK, runtime.size())
+                    .verify("helper, all granted (manifest " + size + ")", platform);
+        }
+    }
+
+    @Test
+    public void helperFirstRunDeniedAndReturnFromSettings() {
+        for (int size : MANIFEST_SIZES) {
+            FakePermissionPlatform fake = FakePermissionPlatform.create(size, RUNTIME_RATIO, 0f, SEED);
+            CountingPermissionPlatform<Object> platform = new CountingPermissionPlatform<>(fake);
+            PermissionsHelperCore<Object> helper = new PermissionsHelperCore<>(platform, new FakePermissionStore());
+            List<String> manifest = fake.getManifest();
+            Set<String> runtime = helper.filterRequestablePermissions(manifest);
+
+            PermissionsHelperCore.Decision decision = helper.decide(manifest);
+            if (decision instanceof PermissionsHelperCore.Decision.Request) {
+                Set<String> requested = ((PermissionsHelperCore.Decision.Request) decision).getPermissions();
+                String[] permissions = requested.toArray(new String[0]);
+                int[] results = new int[permissions.length];
+                for (int i = 0; i < results.length; i++) {
+                    results[i] = PermissionPlatform.PERMISSION_DENIED;
+                }
+                helper.onRequestPermissionsResult(HOST, permissions, results);
+            }
+            IpcBudget.none().allow(CHECK, runtime.size()).allow(RATIONALE, runtime.size())
+                    .verify("helper first run, all denied (manifest " + size + ")", platform);
+
+            // permanently denied now: settings dialog instead of request
+            platform.reset();
+            helper.decide(manifest);
+            IpcBudget.none().allow(CHECK, runtime.size())
+                    .verify("helper repeated request, permanently denied (manifest " + size + ")", platform);
+
+            for (String permission : manifest) {
+                fake.setGranted(permission, true);
+            }
+            platform.reset();
+            helper.filterDenied(runtime);
+            IpcBudget.none().allow(CHECK, runtime.size())
+                    .verify("helper return from settings (manifest " + size + ")", platform);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void exceededBudgetFails() {
+        CountingPermissionPlatform<Object> platform = counting(MANIFEST_SIZES[0], 1f);
+        new PermissionCheckerCore<>(platform, NO_EVENTS, false, null, null).checkAppPermissions();
+        IpcBudget.none().allow(MANIFEST, 1).verify("no checks allowed", platform);
+    }
+
+    /**
+     * @return first requested permission without result or null
+     */
+    @Nullable
+    private static Map.Entry<String, Integer> pendingRequest(@NotNull PermissionCheckerCore<Object> checker) {
+        for (Map.Entry<String, Integer> entry : checker.getPermissionsWithCodes().entrySet()) {
+            if (!checker.getLastGrantedPermissions().contains(entry.getKey()) && !checker.getLastDeniedPermissions().contains(entry.getKey())) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static void answer(@NotNull PermissionCheckerCore<Object> checker, @NotNull Map.Entry<String, Integer> request, int result) {
+        checker.onRequestPermissionsResult(HOST, request.getValue(), new String[]{request.getKey()}, new int[]{result});
+    }
+
+    @NotNull
+    private static CountingPermissionPlatform<Object> counting(int manifestSize, float grantRatio) {
+        return new CountingPermissionPlatform<>(FakePermissionPlatform.create(manifestSize, RUNTIME_RATIO, grantRatio, SEED));
+    }
+}
@@ -0,0 +1,57 @@
+package net.maxsmr.permissionchecker.core;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PermissionCheckerCoreTest {
+
+    private static final long SEED = 7;
+
+    private static final PermissionCheckerCore.Events NO_EVENTS = new PermissionCheckerCore.Events() {
+        @Override
+        public void onDismissAll() {
+        }
+
+        @Override
+        public void onGranted(@NotNull String permission) {
+        }
+
+        @Override
+        public void onDenied(@NotNull String permission) {
+        }
+    };
+
+    @Test
+    public void specialPermissionsStateRestored() {
+        FakePermissionPlatform fake = FakePermissionPlatform.create(10, 1f, 1f, SEED);
+        String special = fake.getManifest().get(0);
+        fake.setKind(special, PermissionPlatform.Kind.SPECIAL);
+        fake.setGranted(special, false);
+        PermissionCheckerCore<Object> before = new PermissionCheckerCore<>(fake, NO_EVENTS, false, null, null);
+        assertFalse(before.checkAppPermissions());
+        assertTrue(before.isAllPermissionsChecked());
+
+        PermissionCheckerCore<Object> after = new PermissionCheckerCore<>(fake, NO_EVENTS, false, null, null);
+        assertTrue(after.restoreState(before.saveState()));
+
+        assertTrue(after.isAllPermissionsChecked());
+        assertFalse(after.isAllPermissionsGranted());
+        assertTrue(after.getLastDeniedPermissions().contains(special));
+    }
+
+    @Test
+    public void stateOfOtherSpecialPermissionsIsNotRestored() {
+        FakePermissionPlatform fake = FakePermissionPlatform.create(10, 1f, 1f, SEED);
+        PermissionCheckerCore<Object> before = new PermissionCheckerCore<>(fake, NO_EVENTS, false, null, null);
+        before.checkAppPermissions();
+        byte[] state = before.saveState();
+
+        fake.setKind(fake.getManifest().get(0), PermissionPlatform.Kind.SPECIAL);
+        PermissionCheckerCore<Object> after = new PermissionCheckerCore<>(fake, NO_EVENTS, false, null, null);
+
+        assertFalse(after.restoreState(state));
+    }
+}
@@ -0,0 +1,92 @@
+package net.maxsmr.permissionchecker.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Decorator counting platform calls that cost a binder transaction on device;
+ * counts are checked against {@link IpcBudget} of a flow
+ */
+public class CountingPermissionPlatform<H> implements PermissionPlatform<H> {
+
+    public enum Call {
+        /** checkSelfPermission */
+        CHECK,
+        /** shouldShowRequestPermissionRationale */
+        RATIONALE,
+        /** requestPermissions or settings screen */
+        REQUEST,
+        /** getPackageInfo */
+        MANIFEST
+    }
+
+    @NotNull
+    private final PermissionPlatform<H> mPlatform;
+
+    private final AtomicIntegerArray mCounts = new AtomicIntegerArray(Call.values().length);
+
+    public CountingPermissionPlatform(@NotNull PermissionPlatform<H> platform) {
+        mPlatform = platform;
+    }
+
+    public int getCount(@NotNull Call call) {
+        return mCounts.get(call.ordinal());
+    }
+
+    public void reset() {
+        for (int i = 0; i < mCounts.length(); i++) {
+            mCounts.set(i, 0);
+        }
+    }
+
+    @Override
+    public boolean isGranted(@NotNull String permission) {
+        mCounts.incrementAndGet(Call.CHECK.ordinal());
+        return mPlatform.isGranted(permission);
+    }
+
+    @Override
+    public boolean shouldShowRationale(@NotNull H host, @NotNull String permission) {
+        mCounts.incrementAndGet(Call.RATIONALE.ordinal());
+        return mPlatform.shouldShowRationale(host, permission);
+    }
+
+    @Override
+    public void requestPermissions(@NotNull H host, @NotNull String[] permissions, int requestCode) {
+        mCounts.incrementAndGet(Call.REQUEST.ordinal());
+        mPlatform.requestPermissions(host, permissions, requestCode);
+    }
+
+    @NotNull
+    @Override
+    public Collection<String> getRequestedPermissions() {
+        mCounts.incrementAndGet(Call.MANIFEST.ordinal());
+        return mPlatform.getRequestedPermissions();
+    }
+
+    @NotNull
+    @Override
+    public Kind getKind(@NotNull String permission) {
+        return mPlatform.getKind(permission);
+    }
+
+    @Override
+    public boolean isRequiredByApiVersion(@NotNull String permission) {
+        return mPlatform.isRequiredByApiVersion(permission);
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CountingPermissionPlatform{");
+        for (Call call : Call.values()) {
+            if (call.ordinal() > 0) {
+                sb.append(", ");
+            }
+            sb.append(call).append('=').append(getCount(call));
+        }
+        return sb.append('}').toString();
+    }
+}
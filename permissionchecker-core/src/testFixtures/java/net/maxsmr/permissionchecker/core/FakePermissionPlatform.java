@@ -0,0 +1,223 @@
+package net.maxsmr.permissionchecker.core;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * In-memory platform with generated manifest; grant state is changed directly, requests are only counted
+ */
+public class FakePermissionPlatform implements PermissionPlatform<Object> {
+
+    public static final String PERMISSION_PREFIX = "fake.permission.P";
+    public static final String WRITE_EXTERNAL_STORAGE = "android.permission.WRITE_EXTERNAL_STORAGE";
+
+    /**
+     * Same as {@link #create(int, float, float, float, long)} without special permissions
+     */
+    @NotNull
+    public static FakePermissionPlatform create(int manifestSize, float runtimeRatio, float grantRatio, long seed) {
+        return create(manifestSize, runtimeRatio, 0f, grantRatio, seed);
+    }
+
+    /**
+     * @param manifestSize count of declared permissions
+     * @param runtimeRatio share of declared permissions granted at runtime
+     * @param specialRatio share of declared permissions granted on settings screen ({@link Kind#SPECIAL}),
+     *                     others are install time
+     * @param grantRatio share of runtime and special permissions granted initially
+     * @param seed same seed gives same manifest and grant state
+     */
+    @NotNull
+    public static FakePermissionPlatform create(int manifestSize, float runtimeRatio, float specialRatio, float grantRatio, long seed) {
+        if (manifestSize < 0) {
+            throw new IllegalArgumentException("incorrect manifest size: " + manifestSize);
+        }
+        if (runtimeRatio + specialRatio > 1f) {
+            throw new IllegalArgumentException("incorrect ratios: runtime " + runtimeRatio + ", special " + specialRatio);
+        }
+        Random random = new Random(seed);
+        FakePermissionPlatform platform = new FakePermissionPlatform();
+        for (int i = 0; i < manifestSize; i++) {
+            // one of declared is filtered by api version
+            String permission = i == 1 ? WRITE_EXTERNAL_STORAGE : PERMISSION_PREFIX + i;
+            float kindValue = random.nextFloat();
+            final Kind kind;
+            if (kindValue < runtimeRatio) {
+                kind = Kind.RUNTIME;
+            } else if (kindValue < runtimeRatio + specialRatio && i != 1) {
+                kind = Kind.SPECIAL;
+            } else {
+                kind = Kind.INSTALL_TIME;
+            }
+            platform.manifest.add(permission);
+            platform.kinds.put(permission, kind);
+            if (kind == Kind.INSTALL_TIME || random.nextFloat() < grantRatio) {
+                platform.granted.add(permission);
+            }
+        }
+        return platform;
+    }
+
+    private final List<String> manifest = new ArrayList<>();
+
+    private final Map<String, Kind> kinds = new HashMap<>();
+
+    private final Set<String> granted = new HashSet<>();
+
+    private final Set<String> rationale = new HashSet<>();
+
+    /** denied with "don't ask again": requests are denied without dialog */
+    private final Set<String> blocked = new HashSet<>();
+
+    /** not answered system requests, in order */
+    private final ArrayDeque<Request> pendingRequests = new ArrayDeque<>();
+
+    private boolean isWriteExternalStorageRequired = false;
+
+    private int checksCount = 0;
+
+    private int requestsCount = 0;
+
+    private int settingsRequestsCount = 0;
+
+    @Override
+    public boolean isGranted(@NotNull String permission) {
+        checksCount++;
+        return granted.contains(permission);
+    }
+
+    @Override
+    public boolean shouldShowRationale(@NotNull Object host, @NotNull String permission) {
+        return rationale.contains(permission);
+    }
+
+    /**
+     * Special permission opens settings screen: it's not a pending system request, its state is changed by {@link #setGranted}
+     */
+    @Override
+    public void requestPermissions(@NotNull Object host, @NotNull String[] permissions, int requestCode) {
+        requestsCount++;
+        if (permissions.length == 1 && getKind(permissions[0]) == Kind.SPECIAL) {
+            settingsRequestsCount++;
+            return;
+        }
+        pendingRequests.add(new Request(permissions, requestCode));
+    }
+
+    @NotNull
+    @Override
+    public Collection<String> getRequestedPermissions() {
+        return Collections.unmodifiableList(manifest);
+    }
+
+    @NotNull
+    @Override
+    public Kind getKind(@NotNull String permission) {
+        Kind kind = kinds.get(permission);
+        return kind != null ? kind : Kind.RUNTIME;
+    }
+
+    @Override
+    public boolean isRequiredByApiVersion(@NotNull String permission) {
+        return !WRITE_EXTERNAL_STORAGE.equals(permission) || isWriteExternalStorageRequired;
+    }
+
+    @NotNull
+    public List<String> getManifest() {
+        return Collections.unmodifiableList(manifest);
+    }
+
+    public void setGranted(@NotNull String permission, boolean isGranted) {
+        if (isGranted) {
+            granted.add(permission);
+        } else {
+            granted.remove(permission);
+        }
+    }
+
+    /**
+     * Should be called before platform is passed to checker
+     */
+    public void setKind(@NotNull String permission, @NotNull Kind kind) {
+        kinds.put(permission, kind);
+    }
+
+    public void setShowRationale(@NotNull String permission, boolean showRationale) {
+        if (showRationale) {
+            rationale.add(permission);
+        } else {
+            rationale.remove(permission);
+        }
+    }
+
+    public void setBlocked(@NotNull String permission, boolean isBlocked) {
+        if (isBlocked) {
+            blocked.add(permission);
+        } else {
+            blocked.remove(permission);
+        }
+    }
+
+    public boolean isBlocked(@NotNull String permission) {
+        return blocked.contains(permission);
+    }
+
+    public boolean hasPendingRequests() {
+        return !pendingRequests.isEmpty();
+    }
+
+    /**
+     * @return oldest not answered request or null
+     */
+    @Nullable
+    public Request pollPendingRequest() {
+        return pendingRequests.poll();
+    }
+
+    public void clearPendingRequests() {
+        pendingRequests.clear();
+    }
+
+    public void setWriteExternalStorageRequired(boolean writeExternalStorageRequired) {
+        isWriteExternalStorageRequired = writeExternalStorageRequired;
+    }
+
+    public int getChecksCount() {
+        return checksCount;
+    }
+
+    public int getRequestsCount() {
+        return requestsCount;
+    }
+
+    /**
+     * @return requests of special permissions, included in {@link #getRequestsCount()}
+     */
+    public int getSettingsRequestsCount() {
+        return settingsRequestsCount;
+    }
+
+    public static final class Request {
+
+        @NotNull
+        public final String[] permissions;
+
+        public final int requestCode;
+
+        Request(@NotNull String[] permissions, int requestCode) {
+            this.permissions = permissions;
+            this.requestCode = requestCode;
+        }
+    }
+}
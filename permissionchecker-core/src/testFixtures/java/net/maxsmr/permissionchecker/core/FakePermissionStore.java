@@ -0,0 +1,34 @@
+package net.maxsmr.permissionchecker.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class FakePermissionStore implements PermissionStore {
+
+    private final Set<String> permissions = new HashSet<>();
+
+    @NotNull
+    @Override
+    public Set<String> getAll() {
+        return Collections.unmodifiableSet(permissions);
+    }
+
+    @Override
+    public boolean contains(@NotNull String permission) {
+        return permissions.contains(permission);
+    }
+
+    @Override
+    public void addAll(@NotNull Collection<String> permissions) {
+        this.permissions.addAll(permissions);
+    }
+
+    @Override
+    public void removeAll(@NotNull Collection<String> permissions) {
+        this.permissions.removeAll(permissions);
+    }
+}
@@ -0,0 +1,65 @@
+package net.maxsmr.permissionchecker.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Max allowed platform calls per flow
+ */
+public final class IpcBudget {
+
+    private final int[] mLimits = new int[CountingPermissionPlatform.Call.values().length];
+
+    /**
+     * @return budget with zero limits, raise them with {@link #allow}
+     */
+    @NotNull
+    public static IpcBudget none() {
+        return new IpcBudget();
+    }
+
+    private IpcBudget() {
+    }
+
+    @NotNull
+    public IpcBudget allow(@NotNull CountingPermissionPlatform.Call call, int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("incorrect limit: " + max);
+        }
+        mLimits[call.ordinal()] = max;
+        return this;
+    }
+
+    public int getLimit(@NotNull CountingPermissionPlatform.Call call) {
+        return mLimits[call.ordinal()];
+    }
+
+    /**
+     * @throws IllegalStateException if any count exceeds its limit
+     */
+    public void verify(@NotNull String flow, @NotNull CountingPermissionPlatform<?> platform) {
+        StringBuilder exceeded = null;
+        for (CountingPermissionPlatform.Call call : CountingPermissionPlatform.Call.values()) {
+            int count = platform.getCount(call);
+            int limit = getLimit(call);
+            if (count > limit) {
+                if (exceeded == null) {
+                    exceeded = new StringBuilder();
+                } else {
+                    exceeded.append(", ");
+                }
+                exceeded.append(call).append(' ').append(count).append(" > ").append(limit);
+            }
+        }
+        if (exceeded != null) {
+            throw new IllegalStateException("IPC budget exceeded for " + flow + ": " + exceeded);
+        }
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return "IpcBudget{" + Arrays.toString(mLimits) + '}';
+    }
+}
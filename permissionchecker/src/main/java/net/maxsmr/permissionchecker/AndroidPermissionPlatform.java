@@ -0,0 +1,132 @@
+package net.maxsmr.permissionchecker;
+
+import android.Manifest;
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.AppOpsManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Environment;
+import android.os.Process;
+import android.provider.Settings;
+
+import androidx.core.app.ActivityCompat;
+import androidx.core.content.ContextCompat;
+
+import net.maxsmr.permissionchecker.core.PermissionPlatform;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+
+/**
+ * {@link PermissionPlatform} over ContextCompat / ActivityCompat and {@link PermissionsMetadataIndex}
+ */
+public final class AndroidPermissionPlatform implements PermissionPlatform<Activity> {
+
+    private static AndroidPermissionPlatform sInstance;
+
+    @NotNull
+    public static AndroidPermissionPlatform getInstance(@NotNull Context context) {
+        synchronized (AndroidPermissionPlatform.class) {
+            if (sInstance == null) {
+                sInstance = new AndroidPermissionPlatform(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    @NotNull
+    private final Context mContext;
+
+    @NotNull
+    private final PermissionsMetadataIndex mIndex;
+
+    private AndroidPermissionPlatform(@NotNull Context context) {
+        mContext = context;
+        mIndex = PermissionsMetadataIndex.getInstance(context);
+    }
+
+    @Override
+    public boolean isGranted(@NotNull String permission) {
+        if (isSpecial(permission)) {
+            return isSpecialGranted(permission);
+        }
+        return ContextCompat.checkSelfPermission(mContext, permission) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    @Override
+    public boolean shouldShowRationale(@NotNull Activity host, @NotNull String permission) {
+        return ActivityCompat.shouldShowRequestPermissionRationale(host, permission);
+    }
+
+    @Override
+    public void requestPermissions(@NotNull Activity host, @NotNull String[] permissions, int requestCode) {
+        if (permissions.length == 1 && isSpecial(permissions[0])) {
+            PackageHelper.openSpecialPermissionSettingsScreen(host, permissions[0]);
+        } else {
+            ActivityCompat.requestPermissions(host, permissions, requestCode);
+        }
+    }
+
+    @NotNull
+    @Override
+    public Collection<String> getRequestedPermissions() {
+        return mIndex.getRequestedPermissions();
+    }
+
+    @NotNull
+    @Override
+    public Kind getKind(@NotNull String permission) {
+        if (isSpecial(permission)) {
+            return Kind.SPECIAL;
+        }
+        return mIndex.isRuntimePermission(permission) ? Kind.RUNTIME : Kind.INSTALL_TIME;
+    }
+
+    @Override
+    public boolean isRequiredByApiVersion(@NotNull String permission) {
+        // read may be needed with scoped storage too, keep it
+        return !Manifest.permission.WRITE_EXTERNAL_STORAGE.equals(permission) || isWriteExternalStorageRequired();
+    }
+
+    /**
+     * @return false if scoped storage is forced (above Q or Q without legacy flag) - write permission is not needed
+     */
+    public static boolean isWriteExternalStorageRequired() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.Q
+                || Build.VERSION.SDK_INT == Build.VERSION_CODES.Q && Environment.isExternalStorageLegacy();
+    }
+
+    /**
+     * @return true for permissions granted on special settings screen: WRITE_SETTINGS and other appop ones
+     * (e.g. SYSTEM_ALERT_WINDOW), not by system dialog
+     */
+    private boolean isSpecial(@NotNull String permission) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                && (PermissionUtilsLegacy.PERMISSION_WRITE_SETTINGS.equals(permission)
+                || mIndex.getProtectionLevel(permission) == PermissionsMetadataIndex.ProtectionLevel.APPOP);
+    }
+
+    @SuppressWarnings("deprecation")
+    @TargetApi(Build.VERSION_CODES.M)
+    private boolean isSpecialGranted(@NotNull String permission) {
+        if (PermissionUtilsLegacy.PERMISSION_WRITE_SETTINGS.equals(permission)) {
+            return PermissionUtilsLegacy.hasCanWriteSettingsPermission(mContext);
+        }
+        if (Manifest.permission.SYSTEM_ALERT_WINDOW.equals(permission)) {
+            return Settings.canDrawOverlays(mContext);
+        }
+        String op = AppOpsManager.permissionToOp(permission);
+        AppOpsManager appOps = (AppOpsManager) mContext.getSystemService(Context.APP_OPS_SERVICE);
+        if (op != null && appOps != null) {
+            int mode = appOps.checkOpNoThrow(op, Process.myUid(), mContext.getPackageName());
+            if (mode != AppOpsManager.MODE_DEFAULT) {
+                return mode == AppOpsManager.MODE_ALLOWED;
+            }
+        }
+        // default mode: decided by permission itself
+        return ContextCompat.checkSelfPermission(mContext, permission) == PackageManager.PERMISSION_GRANTED;
+    }
+}
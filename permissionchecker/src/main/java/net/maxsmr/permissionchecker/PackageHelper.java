@@ -1,5 +1,6 @@
 package net.maxsmr.permissionchecker;
 
+import android.Manifest;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
@@ -8,6 +9,9 @@ import android.net.Uri;
 import android.os.Build;
 import android.provider.Settings;
 
+import net.maxsmr.permissionchecker.core.PermissionEventRecorder;
+import net.maxsmr.permissionchecker.core.RequestCodes;
+
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
@@ -50,6 +54,7 @@ public final class PackageHelper {
     }
 
     public static void openAppSettingsScreen(@NotNull Context context) {
+        PermissionEventRecorder.getDefault().record(PermissionEventRecorder.Type.SETTINGS_OPENED, null, RequestCodes.NO_REQUEST_CODE);
         Intent intent = new Intent();
         intent.setAction(Settings.ACTION_APPLICATION_DETAILS_SETTINGS);
         intent.addCategory(Intent.CATEGORY_DEFAULT);
@@ -62,6 +67,36 @@ public final class PackageHelper {
         context.startActivity(intent);
     }
 
+    /**
+     * Opens screen where user grants given special permission (WRITE_SETTINGS, SYSTEM_ALERT_WINDOW etc.),
+     * app details screen if there is no dedicated one
+     */
+    public static void openSpecialPermissionSettingsScreen(@NotNull Context context, @NotNull String permission) {
+        final String action;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            action = null;
+        } else if (PermissionUtilsLegacy.PERMISSION_WRITE_SETTINGS.equals(permission)) {
+            action = Settings.ACTION_MANAGE_WRITE_SETTINGS;
+        } else if (Manifest.permission.SYSTEM_ALERT_WINDOW.equals(permission)) {
+            action = Settings.ACTION_MANAGE_OVERLAY_PERMISSION;
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && Manifest.permission.REQUEST_INSTALL_PACKAGES.equals(permission)) {
+            action = Settings.ACTION_MANAGE_UNKNOWN_APP_SOURCES;
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R && Manifest.permission.MANAGE_EXTERNAL_STORAGE.equals(permission)) {
+            action = Settings.ACTION_MANAGE_APP_ALL_FILES_ACCESS_PERMISSION;
+        } else {
+            action = null;
+        }
+        if (action == null) {
+            openAppSettingsScreen(context);
+            return;
+        }
+        PermissionEventRecorder.getDefault().record(PermissionEventRecorder.Type.SETTINGS_OPENED, permission, RequestCodes.NO_REQUEST_CODE);
+        context.startActivity(
+                new Intent(action)
+                        .setData(Uri.parse("package:" + context.getPackageName()))
+                        .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK));
+    }
+
     public static void openAppManageSettingsScreen(@NotNull Context context) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             context.startActivity(
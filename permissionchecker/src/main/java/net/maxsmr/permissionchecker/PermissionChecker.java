@@ -2,9 +2,15 @@ package net.maxsmr.permissionchecker;
 
 import android.app.Activity;
 import android.app.Dialog;
+import android.content.Context;
+import android.content.ContextWrapper;
 import android.database.Observable;
-import android.os.Build;
-import android.text.TextUtils;
+
+import net.maxsmr.permissionchecker.core.PermissionCheckerCore;
+import net.maxsmr.permissionchecker.core.PermissionEventRecorder;
+import net.maxsmr.permissionchecker.core.PermissionMetricsRegistry;
+import net.maxsmr.permissionchecker.core.PermissionPlatform;
+import net.maxsmr.permissionchecker.core.RequestCodes;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -12,32 +18,63 @@ import org.jetbrains.annotations.Nullable;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+/**
+ * Keeps only application scoped state: activity is passed to each request call and never stored;
+ * granted / denied dialogs set by a screen are held until it calls {@link #releaseDialogs(Activity)}
+ */
 @Deprecated
 public final class PermissionChecker {
 
-    public static final int NO_REQUEST_CODE = -1;
+    public static final int NO_REQUEST_CODE = RequestCodes.NO_REQUEST_CODE;
 
     private static PermissionChecker sInstance;
 
-    public static void initInstance(Activity activity) {
-        initInstance(activity, false);
+    private static PreparedCore sPreparedCore;
+
+    public static void initInstance(@NotNull Context context) {
+        initInstance(context, false);
+    }
+
+    public static void initInstance(@NotNull Context context, boolean showAllSystemDialogs) {
+        initInstance(context, showAllSystemDialogs, null, null);
+    }
+
+    /**
+     * @param context only application context is used, instance doesn't retain given one
+     */
+    public static void initInstance(@NotNull Context context, boolean showAllSystemDialogs, @Nullable Collection<String> permissionsToIgnore, @Nullable Collection<String> permissionsToIgnoreAfterCheck) {
+        initInstance(AndroidPermissionPlatform.getInstance(context), showAllSystemDialogs, permissionsToIgnore, permissionsToIgnoreAfterCheck);
     }
 
-    public static void initInstance(Activity activity, boolean showAllSystemDialogs) {
-        initInstance(activity, showAllSystemDialogs, null, null);
+    /**
+     * @param platform {@link AndroidPermissionPlatform} or its decorator / fake in tests
+     */
+    public static void initInstance(@NotNull PermissionPlatform<Activity> platform, boolean showAllSystemDialogs,
+                                    @Nullable Collection<String> permissionsToIgnore, @Nullable Collection<String> permissionsToIgnoreAfterCheck) {
+        synchronized (PermissionChecker.class) {
+            if (sInstance == null) {
+                PreparedCore prepared = sPreparedCore;
+                sPreparedCore = null;
+                if (prepared != null && !prepared.matches(platform, showAllSystemDialogs, permissionsToIgnore, permissionsToIgnoreAfterCheck)) {
+                    prepared = null;
+                }
+                sInstance = new PermissionChecker(platform, showAllSystemDialogs, permissionsToIgnore, permissionsToIgnoreAfterCheck, prepared);
+            }
+        }
     }
 
-    public static void initInstance(Activity activity, boolean showAllSystemDialogs, @Nullable Collection<String> permissionsToIgnore, @Nullable Collection<String> permissionsToIgnoreAfterCheck) {
+    /**
+     * Builds core (manifest query, request codes) in advance, called by {@link PermissionsWarmUp} on background thread
+     */
+    static void prepare(@NotNull PermissionPlatform<Activity> platform, boolean showAllSystemDialogs,
+                        @Nullable Collection<String> permissionsToIgnore, @Nullable Collection<String> permissionsToIgnoreAfterCheck) {
+        PreparedCore prepared = new PreparedCore(platform, showAllSystemDialogs, permissionsToIgnore, permissionsToIgnoreAfterCheck);
         synchronized (PermissionChecker.class) {
             if (sInstance == null) {
-                sInstance = new PermissionChecker(activity, showAllSystemDialogs, permissionsToIgnore, permissionsToIgnoreAfterCheck);
+                sPreparedCore = prepared;
             }
         }
     }
@@ -60,409 +97,266 @@ public final class PermissionChecker {
         }
     }
 
-    private static Set<String> sSpecialSystemPermissions = new LinkedHashSet<>();
-
-    static {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            sSpecialSystemPermissions.add(PermissionUtilsLegacy.PERMISSION_WRITE_SETTINGS);
-        }
-    }
-
-    private boolean isReleased = false;
-
-    private final boolean mShowAllSystemDialogs;
-
-    private final Map<String, Integer> mPermissionsRequestCodes = new LinkedHashMap<>();
-
-    private Activity mActivity;
+    private final PermissionCheckerCore<Activity> mCore;
 
+    /**
+     * Dialogs are bound to activity: held until replaced or released by {@link #releaseDialogs(Activity)}
+     */
+    @Nullable
     private Dialog mDeniedDialog;
 
+    @Nullable
     private Dialog mGrantedDialog;
 
     @NotNull
     private final OnDialogShowObservable mDialogShowObservable = new OnDialogShowObservable();
 
-    @NotNull
-    private final Set<String> mSpecialPermissions = new HashSet<>();
-
-    @NotNull
-    private final Set<String> mPermissionsToIgnore = new HashSet<>();
-
-    @NotNull
-    private final Set<String> mPermissionsToIgnoreAfterCheck = new HashSet<>();
-
-    /**
-     * all last granted permissions (including {@link PermissionChecker#mSpecialPermissions} set)
-     */
-    private Set<String> mLastGrantedPermissions = new LinkedHashSet<>();
-    /**
-     * all last denied permissions (including {@link PermissionChecker#mSpecialPermissions} set)
-     */
-    private Set<String> mLastDeniedPermissions = new LinkedHashSet<>();
+    private PermissionChecker(@NotNull PermissionPlatform<Activity> platform, boolean showAllSystemDialogs,
+                              @Nullable Collection<String> permissionsToIgnore, @Nullable Collection<String> permissionsToIgnoreAfterCheck,
+                              @Nullable PreparedCore prepared) {
+        PermissionCheckerCore.Events events = new PermissionCheckerCore.Events() {
+            @Override
+            public void onDismissAll() {
+                mDialogShowObservable.dispatchDismissAllDialogs();
+            }
 
-    private Set<String> mCheckedPermissions = new LinkedHashSet<>();
+            @Override
+            public void onGranted(@NotNull String permission) {
+                showGrantedDialog(permission);
+            }
 
-    private PermissionChecker(@NotNull Activity activity, boolean showAllSystemDialogs, @Nullable Collection<String> permissionsToIgnore, @Nullable Collection<String> permissionsToIgnoreAfterCheck) {
-        mActivity = activity;
-        mShowAllSystemDialogs = showAllSystemDialogs;
-        if (permissionsToIgnore != null) {
-            mPermissionsToIgnore.addAll(permissionsToIgnore);
-        }
-        if (permissionsToIgnoreAfterCheck != null) {
-            mPermissionsToIgnoreAfterCheck.addAll(permissionsToIgnoreAfterCheck);
-        }
-        init();
-    }
+            @Override
+            public void onDenied(@NotNull String permission) {
+                showDeniedDialog(permission);
+            }
 
-    private void init() {
-        List<String> permissions = PackageHelper.getPermissionsForPackage(mActivity, mActivity.getPackageName());
-        for (String permission : permissions) {
-            if (!shouldIgnorePermission(permission, false)) {
-                if (!sSpecialSystemPermissions.contains(permission)) {
-                    generateRequestCodeForPermission(permission);
-                } else {
-                    mSpecialPermissions.add(permission);
-                }
+            @Override
+            public void onStateChanged(@NotNull String permission, boolean isGranted) {
+                updateSnapshot(permission, isGranted);
             }
+        };
+        if (prepared != null) {
+            prepared.mEvents.mTarget = events;
+            mCore = prepared.mCore;
+        } else {
+            mCore = new PermissionCheckerCore<>(platform, events, showAllSystemDialogs, permissionsToIgnore, permissionsToIgnoreAfterCheck);
         }
     }
 
-    private synchronized void checkReleased() {
-        if (isReleased) {
-            throw new IllegalStateException(PermissionChecker.class.getSimpleName() + " was released");
+    private static void updateSnapshot(@NotNull String permission, boolean isGranted) {
+        Map<String, Boolean> states = Collections.singletonMap(permission, isGranted);
+        PermissionSnapshotCache snapshotCache = PermissionSnapshotCache.peekInstance();
+        if (snapshotCache != null) {
+            snapshotCache.update(states);
+        }
+        SharedPermissionStateFile stateFile = SharedPermissionStateFile.peekInstance();
+        if (stateFile != null) {
+            stateFile.publishStates(states);
         }
     }
 
     private synchronized void release() {
-        checkReleased();
-        clearCheckedPermissions();
-        mLastGrantedPermissions = null;
-        mLastDeniedPermissions = null;
-        mCheckedPermissions = null;
-        mPermissionsRequestCodes.clear();
-        mActivity = null;
+        mCore.release();
         mGrantedDialog = null;
         mDeniedDialog = null;
-        isReleased = true;
     }
 
-    @NotNull
-    public Observable<OnDialogShowListener> getDialogShowObservable() {
-        return mDialogShowObservable;
+    /**
+     * Drops dialogs created for given activity, should be called from its onDestroy;
+     * instance itself (checked states, request codes) is kept for next screens
+     */
+    public synchronized void releaseDialogs(@NotNull Activity activity) {
+        if (mGrantedDialog != null && isBoundTo(mGrantedDialog, activity)) {
+            mGrantedDialog = null;
+        }
+        if (mDeniedDialog != null && isBoundTo(mDeniedDialog, activity)) {
+            mDeniedDialog = null;
+        }
     }
 
-    private boolean shouldIgnorePermission(String permission, boolean afterCheck) {
-        if (TextUtils.isEmpty(permission)) {
-            return false;
-        }
-        boolean ignore = false;
-        for (String ignorePermission : (!afterCheck ? mPermissionsToIgnore : mPermissionsToIgnoreAfterCheck)) {
-            if (permission.equalsIgnoreCase(ignorePermission)) {
-                ignore = true;
-                break;
+    private static boolean isBoundTo(@NotNull Dialog dialog, @NotNull Activity activity) {
+        Context context = dialog.getContext();
+        while (context instanceof ContextWrapper) {
+            if (context == activity) {
+                return true;
             }
+            context = ((ContextWrapper) context).getBaseContext();
         }
-        return ignore;
+        return false;
+    }
+
+    @NotNull
+    public Observable<OnDialogShowListener> getDialogShowObservable() {
+        return mDialogShowObservable;
     }
 
     public boolean isAllPermissionsChecked() {
-        return getLastGrantedPermissionsCount() + getLastDeniedPermissionsCount() == getPermissionsCount() + getSpecialPermissionsCount();
+        return mCore.isAllPermissionsChecked();
     }
 
     public boolean isAllPermissionsGranted() {
-        if (isAllPermissionsChecked()) {
-            int ignoreCount = 0;
-            for (String ignorePermission : mPermissionsToIgnoreAfterCheck) {
-                if (getLastDeniedPermissions().contains(ignorePermission)) {
-                    ignoreCount++;
-                }
-            }
-            return getLastGrantedPermissionsCount() + ignoreCount == getPermissionsCount() + getSpecialPermissionsCount();
-        }
-        return false;
+        return mCore.isAllPermissionsGranted();
     }
 
     public boolean hasPermissionsToIgnore() {
-        return !mPermissionsToIgnore.isEmpty();
+        return mCore.hasPermissionsToIgnore();
     }
 
     public boolean hasPermissionsToIgnoreAfterCheck() {
-        return !mPermissionsToIgnoreAfterCheck.isEmpty();
+        return mCore.hasPermissionsToIgnoreAfterCheck();
     }
 
     public boolean hasPermissions() {
         return getPermissionsCount() > 0;
     }
 
-    public synchronized int getPermissionsCount() {
-        return mPermissionsRequestCodes.size();
+    public int getPermissionsCount() {
+        return mCore.getPermissionsCount();
     }
 
-    public synchronized Set<String> getPermissions() {
-        return Collections.unmodifiableSet(mPermissionsRequestCodes.keySet());
+    public Set<String> getPermissions() {
+        return mCore.getPermissions();
     }
 
-    public synchronized Map<String, Integer> getPermissionsWithCodes() {
-        return Collections.unmodifiableMap(mPermissionsRequestCodes);
+    public Map<String, Integer> getPermissionsWithCodes() {
+        return mCore.getPermissionsWithCodes();
     }
 
     public boolean hasLastGrantedPermissions() {
         return getLastGrantedPermissionsCount() > 0;
     }
 
-    public synchronized int getLastGrantedPermissionsCount() {
-        return mLastGrantedPermissions.size();
+    public int getLastGrantedPermissionsCount() {
+        return mCore.getLastGrantedPermissionsCount();
     }
 
-    public synchronized Set<String> getLastGrantedPermissions() {
-        return Collections.unmodifiableSet(mLastGrantedPermissions);
+    public Set<String> getLastGrantedPermissions() {
+        return mCore.getLastGrantedPermissions();
     }
 
     public boolean hasLastDeniedPermissions() {
         return getLastDeniedPermissionsCount() > 0;
     }
 
-    public synchronized int getLastDeniedPermissionsCount() {
-        return mLastDeniedPermissions.size();
+    public int getLastDeniedPermissionsCount() {
+        return mCore.getLastDeniedPermissionsCount();
     }
 
-    public synchronized Set<String> getLastDeniedPermissions() {
-        return Collections.unmodifiableSet(mLastDeniedPermissions);
+    public Set<String> getLastDeniedPermissions() {
+        return mCore.getLastDeniedPermissions();
     }
 
     public boolean hasSpecialPermissions() {
         return getSpecialPermissionsCount() > 0;
     }
 
-    public synchronized int getSpecialPermissionsCount() {
-        return mSpecialPermissions.size();
+    public int getSpecialPermissionsCount() {
+        return mCore.getSpecialPermissionsCount();
     }
 
-    public synchronized Set<String> getSpecialPermissions() {
-        return Collections.unmodifiableSet(mSpecialPermissions);
+    public Set<String> getSpecialPermissions() {
+        return mCore.getSpecialPermissions();
     }
 
-    public void setDeniedDialog(Dialog deniedDialog) {
+    /**
+     * Dialog is held until replaced, its activity should call {@link #releaseDialogs(Activity)} in onDestroy
+     */
+    public synchronized void setDeniedDialog(@Nullable Dialog deniedDialog) {
         this.mDeniedDialog = deniedDialog;
     }
 
-    public void setGrantedDialog(Dialog grantedDialog) {
+    /**
+     * Dialog is held until replaced, its activity should call {@link #releaseDialogs(Activity)} in onDestroy
+     */
+    public synchronized void setGrantedDialog(@Nullable Dialog grantedDialog) {
         this.mGrantedDialog = grantedDialog;
     }
 
     private void showDeniedDialog(String permission) {
-        checkReleased();
         mDialogShowObservable.dispatchBeforeDeniedDialogShow(permission);
-        if (mDeniedDialog != null) {
-            mDeniedDialog.show();
+        Dialog deniedDialog = mDeniedDialog;
+        if (deniedDialog != null) {
+            int requestCode = getRequestCodeForPermission(permission);
+            PermissionEventRecorder.getDefault().record(PermissionEventRecorder.Type.DIALOG_SHOWN, permission, requestCode, false);
+            PermissionMetricsRegistry.get().onDialogShown(permission, requestCode);
+            deniedDialog.show();
         }
     }
 
     private void showGrantedDialog(String permission) {
-        checkReleased();
         mDialogShowObservable.dispatchBeforeGrantedDialogShow(permission);
-        if (mGrantedDialog != null) {
-            mGrantedDialog.show();
+        Dialog grantedDialog = mGrantedDialog;
+        if (grantedDialog != null) {
+            int requestCode = getRequestCodeForPermission(permission);
+            PermissionEventRecorder.getDefault().record(PermissionEventRecorder.Type.DIALOG_SHOWN, permission, requestCode, true);
+            PermissionMetricsRegistry.get().onDialogShown(permission, requestCode);
+            grantedDialog.show();
         }
     }
 
-    private synchronized int generateRequestCodeForPermission(String permission) {
-        if (!TextUtils.isEmpty(permission)) {
-            Integer requestCode = mPermissionsRequestCodes.get(permission);
-            if (requestCode != null) {
-                return requestCode;
-            }
-            Collection<Integer> codes = mPermissionsRequestCodes.values();
-            int newCode = PermissionUtilsLegacy.generateRequestCode(codes);
-            mPermissionsRequestCodes.put(permission, newCode);
-            return newCode;
-        }
-        return NO_REQUEST_CODE;
-    }
-
-    @NotNull
-    private synchronized Map<String, Integer> permissionsRequestCodes(boolean isChecked) {
-        Map<String, Integer> copy = new LinkedHashMap<>();
-        for (Map.Entry<String, Integer> entry : mPermissionsRequestCodes.entrySet()) {
-            if (!isChecked && !mCheckedPermissions.contains(entry.getKey())
-                    || (isChecked && (mCheckedPermissions.contains(entry.getKey())))) {
-                copy.put(entry.getKey(), entry.getValue());
-            }
-        }
-        return copy;
-    }
-
-    public synchronized int getRequestCodeForPermission(String permission) {
-        Integer code = mPermissionsRequestCodes.get(permission);
-        return code != null ? code : NO_REQUEST_CODE;
+    public int getRequestCodeForPermission(String permission) {
+        return mCore.getRequestCodeForPermission(permission);
     }
 
     @Nullable
-    public synchronized String getPermissionForRequestCode(int code) {
-        for (Map.Entry<String, Integer> entry : mPermissionsRequestCodes.entrySet()) {
-            if (entry.getValue() != null && entry.getValue() == code) {
-                return entry.getKey();
-            }
-        }
-        return null;
+    public String getPermissionForRequestCode(int code) {
+        return mCore.getPermissionForRequestCode(code);
     }
 
-    public synchronized boolean onRequestPermissionsResult(int requestCode, @NotNull String[] permissions, @NotNull int[] grantResults) {
-
-
-        checkReleased();
-
-        if (permissions.length == 0 || grantResults.length == 0) {
-            return false;
-        }
-
-        if (permissions.length > 1) {
-            throw new IllegalArgumentException("permissions must contain only one element");
-        }
-
-        if (grantResults.length > 1) {
-            throw new IllegalArgumentException("grantResults must contain only one element");
-        }
-
-        String permission = getPermissionForRequestCode(requestCode);
-
-        if (permission == null) {
-            throw new RuntimeException("unregistered permission with requestCode: " + requestCode);
-        }
-
-        boolean granted = PermissionUtilsLegacy.isPermissionGranted(requestCode, requestCode, grantResults, 0);
-        if (!granted) {
-            handlePermissionDenied(permission, !shouldIgnorePermission(permission, true));
-        } else {
-            handlePermissionGranted(permission, !shouldIgnorePermission(permission, true));
-        }
-
-        return granted && (mShowAllSystemDialogs ||
-                (!isAllPermissionsChecked() ? requestAppPermissions(false, permissionsRequestCodes(false).entrySet()) : isAllPermissionsGranted())); // remove already checked permissions
+    /**
+     * @param activity receiving the result, used for next requests; not retained
+     */
+    public synchronized boolean onRequestPermissionsResult(@NotNull Activity activity, int requestCode, @NotNull String[] permissions, @NotNull int[] grantResults) {
+        return mCore.onRequestPermissionsResult(activity, requestCode, permissions, grantResults);
     }
 
-    public synchronized void clearCheckedPermissions() {
-        mLastGrantedPermissions = new LinkedHashSet<>();
-        mLastDeniedPermissions = new LinkedHashSet<>();
-        mCheckedPermissions = new LinkedHashSet<>();
+    public boolean hasPendingRequests() {
+        return mCore.hasPendingRequests();
     }
 
     /**
-     * @return false if at least one permission is not granted, true otherwise
+     * Compact state for saved instance state: request codes, checked / granted / denied
+     * and pending requests of registered permissions
      */
-    public synchronized boolean checkAppPermissions() {
-        checkReleased();
-        boolean has = true;
-        clearCheckedPermissions();
-        for (String permission : mPermissionsRequestCodes.keySet()) {
-            if (PermissionUtilsLegacy.has(mActivity, permission)) {
-                handlePermissionGranted(permission, false);
-            } else {
-                handlePermissionDenied(permission, false);
-                has = false;
-            }
-            mCheckedPermissions.add(permission);
-        }
-        for (String special : mSpecialPermissions) {
-            if (isSpecial(special)) {
-                if (PermissionUtilsLegacy.PERMISSION_WRITE_SETTINGS.equals(special)) {
-                    if (PermissionUtilsLegacy.hasCanWriteSettingsPermission(mActivity)) {
-                        handlePermissionGranted(special, false);
-                    } else {
-                        handlePermissionDenied(special, false);
-                        has = false;
-                    }
-                }
-            } else {
-                throw new RuntimeException("unknown special permission: " + special);
-            }
-        }
-        return has;
+    @NotNull
+    public byte[] saveState() {
+        return mCore.saveState();
     }
 
     /**
-     * @return false if at least one system dialog was not shown on missing permission, true if all dialogs were shown
+     * Restores state from {@link #saveState()} (e.g. after process death), including request codes,
+     * so results of in-flight requests can still be handled
+     *
+     * @return false if state doesn't match registered permissions and was not applied
      */
-    public boolean requestAppPermissions() {
-        return requestAppPermissions(true, mPermissionsRequestCodes.entrySet());
-    }
-
-
-    private synchronized boolean requestAppPermissions(boolean clear, @NotNull Set<Map.Entry<String, Integer>> permissionsRequestCodes) {
-        checkReleased();
-        if (clear) {
-            clearCheckedPermissions();
-            mDialogShowObservable.dispatchDismissAllDialogs();
-        }
-        boolean result = false;
-        boolean systemDialogShowed = false;
-        for (Map.Entry<String, Integer> entry : permissionsRequestCodes) {
-            String permission = entry.getKey();
-            boolean has = PermissionUtilsLegacy.has(mActivity, permission);
-            PermissionUtilsLegacy.PermissionResponse response = !has && (!systemDialogShowed || mShowAllSystemDialogs) ?
-                    PermissionUtilsLegacy.requestRuntimePermission(mActivity, permission, entry.getValue()) :
-                    (has ? new PermissionUtilsLegacy.PermissionResponse(permission, entry.getValue(), true, true) : null);
-            if (response != null) {
-                result = true;
-                if (!response.hasPermission && !response.isDialogShown) {
-                    result = false;
-                    handlePermissionDenied(permission, !shouldIgnorePermission(permission, true));
-                } else {
-                    if (!response.hasPermission) {
-                        systemDialogShowed = true;
-                        result = false;
-                    } else {
-                        handlePermissionGranted(permission, !shouldIgnorePermission(permission, true));
-                    }
-                }
-                mCheckedPermissions.add(permission);
-            }
-        }
-        for (String special : mSpecialPermissions) {
-            if (isSpecial(special)) {
-                PermissionUtilsLegacy.requestCanWriteSettingsPermission(mActivity);
-            } else {
-                throw new RuntimeException("unknown special permission: " + special);
-            }
-        }
-        return result;
+    public boolean restoreState(@Nullable byte[] state) {
+        return mCore.restoreState(state);
     }
 
-    private synchronized void handlePermissionGranted(String permission, boolean showDialog) {
-        if (!mPermissionsRequestCodes.containsKey(permission)) {
-            throw new IllegalArgumentException("no such permission: " + permission);
-        }
-        mLastGrantedPermissions.add(permission);
-        mLastDeniedPermissions.remove(permission);
-        if (showDialog) {
-            showGrantedDialog(permission);
-        }
+    public void clearCheckedPermissions() {
+        mCore.clearCheckedPermissions();
     }
 
-    private synchronized void handlePermissionDenied(String permission, boolean showDialog) {
-        if (!mPermissionsRequestCodes.containsKey(permission)) {
-            throw new IllegalArgumentException("no such permission: " + permission);
-        }
-        mLastDeniedPermissions.add(permission);
-        mLastGrantedPermissions.remove(permission);
-        if (showDialog) {
-            showDeniedDialog(permission);
-        }
+    /**
+     * @return false if at least one permission is not granted, true otherwise
+     */
+    public boolean checkAppPermissions() {
+        return mCore.checkAppPermissions();
     }
 
-    private static boolean isSpecial(String permission) {
-        return sSpecialSystemPermissions.contains(permission);
+    /**
+     * @return false if at least one system dialog was not shown on missing permission, true if all dialogs were shown
+     */
+    public synchronized boolean requestAppPermissions(@NotNull Activity activity) {
+        return mCore.requestAppPermissions(activity);
     }
 
-    private static void clearSet(@Nullable Set<?> set) {
-        if (set != null) {
-            Iterator<?> it = set.iterator();
-            while (it.hasNext()) {
-                it.next();
-                it.remove();
-            }
-        }
+    /**
+     * @param activity to request from; not retained
+     * @param recheck false to reuse results of preceding {@link #checkAppPermissions()}
+     */
+    public synchronized boolean requestAppPermissions(@NotNull Activity activity, boolean recheck) {
+        return mCore.requestAppPermissions(activity, recheck);
     }
 
     public interface OnDialogShowListener {
@@ -501,4 +395,82 @@ public final class PermissionChecker {
         }
     }
 
+
+    private static final class PreparedCore {
+
+        @NotNull
+        final ForwardingEvents mEvents = new ForwardingEvents();
+
+        @NotNull
+        final PermissionCheckerCore<Activity> mCore;
+
+        private final boolean mShowAllSystemDialogs;
+
+        @NotNull
+        private final Set<String> mPermissionsToIgnore;
+
+        @NotNull
+        private final Set<String> mPermissionsToIgnoreAfterCheck;
+
+        PreparedCore(@NotNull PermissionPlatform<Activity> platform, boolean showAllSystemDialogs,
+                     @Nullable Collection<String> permissionsToIgnore, @Nullable Collection<String> permissionsToIgnoreAfterCheck) {
+            mShowAllSystemDialogs = showAllSystemDialogs;
+            mPermissionsToIgnore = toSet(permissionsToIgnore);
+            mPermissionsToIgnoreAfterCheck = toSet(permissionsToIgnoreAfterCheck);
+            mCore = new PermissionCheckerCore<>(platform, mEvents, showAllSystemDialogs, permissionsToIgnore, permissionsToIgnoreAfterCheck);
+        }
+
+        boolean matches(@NotNull PermissionPlatform<Activity> platform, boolean showAllSystemDialogs,
+                        @Nullable Collection<String> permissionsToIgnore, @Nullable Collection<String> permissionsToIgnoreAfterCheck) {
+            return mCore.getPlatform() == platform && mShowAllSystemDialogs == showAllSystemDialogs
+                    && mPermissionsToIgnore.equals(toSet(permissionsToIgnore))
+                    && mPermissionsToIgnoreAfterCheck.equals(toSet(permissionsToIgnoreAfterCheck));
+        }
+
+        @NotNull
+        private static Set<String> toSet(@Nullable Collection<String> permissions) {
+            return permissions != null ? new HashSet<>(permissions) : Collections.<String>emptySet();
+        }
+    }
+
+    /**
+     * Core is created before {@link PermissionChecker}, so its events are forwarded to instance set later
+     */
+    private static final class ForwardingEvents implements PermissionCheckerCore.Events {
+
+        @Nullable
+        volatile PermissionCheckerCore.Events mTarget;
+
+        @Override
+        public void onDismissAll() {
+            PermissionCheckerCore.Events target = mTarget;
+            if (target != null) {
+                target.onDismissAll();
+            }
+        }
+
+        @Override
+        public void onGranted(@NotNull String permission) {
+            PermissionCheckerCore.Events target = mTarget;
+            if (target != null) {
+                target.onGranted(permission);
+            }
+        }
+
+        @Override
+        public void onDenied(@NotNull String permission) {
+            PermissionCheckerCore.Events target = mTarget;
+            if (target != null) {
+                target.onDenied(permission);
+            }
+        }
+
+        @Override
+        public void onStateChanged(@NotNull String permission, boolean isGranted) {
+            PermissionCheckerCore.Events target = mTarget;
+            if (target != null) {
+                target.onStateChanged(permission, isGranted);
+            }
+        }
+    }
 }
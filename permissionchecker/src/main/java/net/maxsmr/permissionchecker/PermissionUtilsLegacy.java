@@ -9,18 +9,18 @@ import android.text.TextUtils;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
+import net.maxsmr.permissionchecker.core.PermissionMetrics;
+import net.maxsmr.permissionchecker.core.PermissionMetricsRegistry;
+
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 
 @Deprecated
@@ -33,7 +33,13 @@ public final class PermissionUtilsLegacy {
     }
 
     public static boolean has(@NotNull Context context, @Nullable String permission) {
-        return permission != null && ContextCompat.checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED;
+        if (permission == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        boolean granted = ContextCompat.checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED;
+        PermissionMetricsRegistry.get().onCheck(permission, granted, System.nanoTime() - start);
+        return granted;
     }
 
     public static boolean hasPermissions(@NotNull Context context, @Nullable Set<String> permissions, boolean has) {
@@ -130,6 +136,7 @@ public final class PermissionUtilsLegacy {
                 ActivityCompat.requestPermissions(activity,
                         new String[]{permission},
                         requestCode);
+                PermissionMetricsRegistry.get().onRequestSent(permission, requestCode);
                 return new PermissionResponse(permission, requestCode, false, true);
             } else {
                 return new PermissionResponse(permission, requestCode, false, false);
@@ -168,6 +175,10 @@ public final class PermissionUtilsLegacy {
             ActivityCompat.requestPermissions(activity,
                     permissionsToRequest.toArray(new String[0]),
                     requestCode);
+            PermissionMetrics metrics = PermissionMetricsRegistry.get();
+            for (String permission : permissionsToRequest) {
+                metrics.onRequestSent(permission, requestCode);
+            }
         }
         return responseMap;
     }
@@ -209,26 +220,6 @@ public final class PermissionUtilsLegacy {
         void onPermissionsNotHandled(@NotNull Set<String> permissions);
     }
 
-    static int generateRequestCode(Collection<Integer> usedCodes) {
-        int newCode = 1;
-        if (usedCodes != null && !usedCodes.isEmpty()) {
-            List<Integer> usedCodesCopy = new ArrayList<>(usedCodes);
-            for (int i = 0; i < usedCodesCopy.size(); i++) {
-                Integer code = usedCodesCopy.get(i);
-                if (code != null && code == newCode) {
-                    newCode = randInt(1, Byte.MAX_VALUE * 2);
-                    i = 0;
-                }
-            }
-        }
-        return newCode;
-    }
-
-    private static int randInt(int min, int max) {
-        Random rand = new Random();
-        return rand.nextInt((max - min) + 1) + min;
-    }
-
     public static class PermissionResponse {
 
         public final String permission;
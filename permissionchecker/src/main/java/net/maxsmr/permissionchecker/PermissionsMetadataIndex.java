@@ -0,0 +1,135 @@
+package net.maxsmr.permissionchecker;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.PermissionInfo;
+import android.os.Build;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Protection levels of permissions requested in the app manifest, built once per process;
+ * used to skip permissions that are granted at install time (normal / signature)
+ */
+public final class PermissionsMetadataIndex {
+
+    private static PermissionsMetadataIndex sInstance;
+
+    @NotNull
+    public static PermissionsMetadataIndex getInstance(@NotNull Context context) {
+        synchronized (PermissionsMetadataIndex.class) {
+            if (sInstance == null) {
+                sInstance = new PermissionsMetadataIndex(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    public enum ProtectionLevel {
+        NORMAL,
+        DANGEROUS,
+        SIGNATURE,
+        /** signature or privileged permission with appop flag, e.g. WRITE_SETTINGS - granted via special screen */
+        APPOP,
+        /** not defined on this device */
+        UNKNOWN
+    }
+
+    @NotNull
+    private final Context mContext;
+
+    private final Map<String, ProtectionLevel> mRequestedPermissions = new LinkedHashMap<>();
+
+    private final Map<String, ProtectionLevel> mOtherPermissions = new LinkedHashMap<>();
+
+    private PermissionsMetadataIndex(@NotNull Context context) {
+        mContext = context;
+        List<String> permissions = PackageHelper.getPermissionsForPackage(context, context.getPackageName());
+        for (String permission : permissions) {
+            mRequestedPermissions.put(permission, resolveProtectionLevel(context.getPackageManager(), permission));
+        }
+    }
+
+    @NotNull
+    public synchronized Set<String> getRequestedPermissions() {
+        return Collections.unmodifiableSet(mRequestedPermissions.keySet());
+    }
+
+    /**
+     * @return requested permissions that user should grant at runtime
+     */
+    @NotNull
+    public synchronized Set<String> getRuntimePermissions() {
+        Set<String> result = new LinkedHashSet<>();
+        for (Map.Entry<String, ProtectionLevel> entry : mRequestedPermissions.entrySet()) {
+            if (isRuntime(entry.getValue())) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    public synchronized ProtectionLevel getProtectionLevel(@Nullable String permission) {
+        if (permission == null) {
+            return ProtectionLevel.UNKNOWN;
+        }
+        ProtectionLevel level = mRequestedPermissions.get(permission);
+        if (level == null) {
+            level = mOtherPermissions.get(permission);
+            if (level == null) {
+                level = resolveProtectionLevel(mContext.getPackageManager(), permission);
+                mOtherPermissions.put(permission, level);
+            }
+        }
+        return level;
+    }
+
+    /**
+     * @return true if permission should be checked and requested at runtime;
+     * unknown permissions are treated as runtime ones
+     */
+    public boolean isRuntimePermission(@Nullable String permission) {
+        return isRuntime(getProtectionLevel(permission));
+    }
+
+    private static boolean isRuntime(@NotNull ProtectionLevel level) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            // all permissions are granted at install time
+            return false;
+        }
+        return level == ProtectionLevel.DANGEROUS || level == ProtectionLevel.UNKNOWN;
+    }
+
+    @SuppressWarnings("deprecation")
+    @NotNull
+    private static ProtectionLevel resolveProtectionLevel(@NotNull PackageManager pm, @NotNull String permission) {
+        final PermissionInfo info;
+        try {
+            info = pm.getPermissionInfo(permission, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            return ProtectionLevel.UNKNOWN;
+        }
+        final int base = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ?
+                info.getProtection() : info.protectionLevel & PermissionInfo.PROTECTION_MASK_BASE;
+        final int flags = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ?
+                info.getProtectionFlags() : info.protectionLevel & ~PermissionInfo.PROTECTION_MASK_BASE;
+        switch (base) {
+            case PermissionInfo.PROTECTION_DANGEROUS:
+                return ProtectionLevel.DANGEROUS;
+            case PermissionInfo.PROTECTION_NORMAL:
+                return ProtectionLevel.NORMAL;
+            default:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && (flags & PermissionInfo.PROTECTION_FLAG_APPOP) != 0 ?
+                        ProtectionLevel.APPOP : ProtectionLevel.SIGNATURE;
+        }
+    }
+}
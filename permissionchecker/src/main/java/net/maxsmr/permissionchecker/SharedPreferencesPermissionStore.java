@@ -0,0 +1,58 @@
+package net.maxsmr.permissionchecker;
+
+import android.content.SharedPreferences;
+
+import net.maxsmr.permissionchecker.core.PermissionStore;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * {@link PermissionStore} with permissions as boolean keys of given preferences
+ */
+public final class SharedPreferencesPermissionStore implements PermissionStore {
+
+    @NotNull
+    private final SharedPreferences mPrefs;
+
+    public SharedPreferencesPermissionStore(@NotNull SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    @NotNull
+    @Override
+    public Set<String> getAll() {
+        return mPrefs.getAll().keySet();
+    }
+
+    @Override
+    public boolean contains(@NotNull String permission) {
+        return mPrefs.contains(permission);
+    }
+
+    @Override
+    public void addAll(@NotNull Collection<String> permissions) {
+        if (permissions.isEmpty()) {
+            return;
+        }
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (String permission : permissions) {
+            editor.putBoolean(permission, true);
+        }
+        editor.apply();
+    }
+
+    @Override
+    public void removeAll(@NotNull Collection<String> permissions) {
+        if (permissions.isEmpty()) {
+            return;
+        }
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (String permission : permissions) {
+            editor.remove(permission);
+        }
+        editor.apply();
+    }
+}
@@ -0,0 +1,342 @@
+package net.maxsmr.permissionchecker.gui;
+
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.MainThread;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.splashscreen.SplashScreen;
+import androidx.lifecycle.DefaultLifecycleObserver;
+import androidx.lifecycle.LifecycleOwner;
+import androidx.lifecycle.ViewModel;
+import androidx.lifecycle.ViewModelProvider;
+
+import net.maxsmr.permissionchecker.PackageHelper;
+import net.maxsmr.permissionchecker.PermissionChecker;
+import net.maxsmr.permissionchecker.R;
+import net.maxsmr.permissionchecker.gui.activities.SplashFlowStateMachine;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+
+/**
+ * Same permissions / final action flow as {@link net.maxsmr.permissionchecker.gui.activities.BaseSplashPermissionActivity},
+ * but driven from the app's main activity: splash is the platform one (androidx SplashScreen compat)
+ * and is kept on screen by {@link SplashScreen#setKeepOnScreenCondition} instead of a separate activity.
+ * <p>
+ * Flow state lives in {@link SplashFlowStateMachine}, retained across configuration changes by {@link RetainedState}
+ * and saved for process death, so recreation neither repeats system requests nor re-arms timeout or final action.
+ * <p>
+ * Usage: create and call {@link #install()} before {@code super.onCreate()} of the host activity (on each recreation),
+ * route {@code onRequestPermissionsResult} to {@link #onRequestPermissionsResult(int, String[], int[])}
+ */
+public class SplashScreenPermissionController implements PermissionChecker.OnDialogShowListener, DefaultLifecycleObserver {
+
+    private static final String KEY_STATE = SplashScreenPermissionController.class.getName();
+    private static final String ARG_FLOW_STATE = "flow_state";
+    private static final String ARG_TIMEOUT_AT = "timeout_at";
+    private static final String ARG_DENIED_PERMISSION = "denied_permission";
+    private static final String ARG_CHECKER_STATE = "checker_state";
+
+    public interface OnFinalActionListener {
+
+        @MainThread
+        void onFinalAction();
+    }
+
+    @NotNull
+    private final AppCompatActivity activity;
+
+    private final long splashTimeout;
+
+    private final boolean showAllSystemDialogs;
+
+    @Nullable
+    private final Collection<String> permissionsToIgnore;
+
+    @Nullable
+    private final Collection<String> permissionsToIgnoreAfterCheck;
+
+    @NotNull
+    private final OnFinalActionListener finalActionListener;
+
+    @NotNull
+    private final Handler handler;
+
+    private final Runnable timeoutRunnable = this::onSplashTimeout;
+
+    private final SplashFlowStateMachine flowStateMachine = new SplashFlowStateMachine(new SplashFlowStateMachine.Listener() {
+        @Override
+        public void onStateChanged(@NotNull SplashFlowStateMachine.State oldState, @NotNull SplashFlowStateMachine.State newState) {
+        }
+
+        @Override
+        public void onFinalAction() {
+            handler.removeCallbacks(timeoutRunnable);
+            finalActionListener.onFinalAction();
+        }
+
+        @Override
+        public boolean isFinalActionAllowed() {
+            return SplashScreenPermissionController.this.isFinalActionAllowed();
+        }
+    });
+
+    private RetainedState retainedState;
+
+    @Nullable
+    private Dialog deniedDialog;
+
+    public SplashScreenPermissionController(@NotNull AppCompatActivity activity, long splashTimeout, @NotNull OnFinalActionListener finalActionListener) {
+        this(activity, splashTimeout, false, null, null, finalActionListener, new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * @param splashTimeout minimal splash time, 0 if not needed
+     * @param handler main thread handler for splash timeout (may be replaced in tests)
+     */
+    public SplashScreenPermissionController(@NotNull AppCompatActivity activity, long splashTimeout, boolean showAllSystemDialogs,
+                                            @Nullable Collection<String> permissionsToIgnore, @Nullable Collection<String> permissionsToIgnoreAfterCheck,
+                                            @NotNull OnFinalActionListener finalActionListener, @NotNull Handler handler) {
+        if (splashTimeout < 0) {
+            throw new IllegalArgumentException("incorrect splash timeout");
+        }
+        this.activity = activity;
+        this.splashTimeout = splashTimeout;
+        this.showAllSystemDialogs = showAllSystemDialogs;
+        this.permissionsToIgnore = permissionsToIgnore;
+        this.permissionsToIgnoreAfterCheck = permissionsToIgnoreAfterCheck;
+        this.finalActionListener = finalActionListener;
+        this.handler = handler;
+    }
+
+    /**
+     * Should be called before {@code super.onCreate()} of the host activity
+     */
+    @MainThread
+    public void install() {
+        SplashScreen splashScreen = SplashScreen.installSplashScreen(activity);
+        splashScreen.setKeepOnScreenCondition(this::shouldKeepOnScreen);
+        activity.getLifecycle().addObserver(this);
+    }
+
+    /**
+     * @return true while the first frame should be held: final action is not done yet
+     * and nothing requires user interaction
+     */
+    public boolean shouldKeepOnScreen() {
+        return !flowStateMachine.isFinished() && !isUserInteractionRequired();
+    }
+
+    public boolean isFinalActionDone() {
+        return flowStateMachine.isFinished();
+    }
+
+    @NotNull
+    public SplashFlowStateMachine.State getFlowState() {
+        return flowStateMachine.getState();
+    }
+
+    /**
+     * Extra guard for final action, checked when splash timeout passed and all permissions are granted;
+     * call {@link #invalidateFinalAction()} when it may have become true
+     */
+    protected boolean isFinalActionAllowed() {
+        return true;
+    }
+
+    @MainThread
+    public final void invalidateFinalAction() {
+        flowStateMachine.invalidate();
+    }
+
+    private boolean isUserInteractionRequired() {
+        SplashFlowStateMachine.State state = flowStateMachine.getState();
+        return state == SplashFlowStateMachine.State.PERMISSIONS_REQUIRED || state == SplashFlowStateMachine.State.IN_SETTINGS;
+    }
+
+    @Override
+    public void onCreate(@NotNull LifecycleOwner owner) {
+        PermissionChecker.initInstance(activity, showAllSystemDialogs, permissionsToIgnore, permissionsToIgnoreAfterCheck);
+        PermissionChecker.getInstance().getDialogShowObservable().registerObserver(this);
+        retainedState = new ViewModelProvider(activity).get(RetainedState.class);
+        boolean isRestored = retainedState.isStarted || restoreState(activity.getSavedStateRegistry().consumeRestoredStateForKey(KEY_STATE));
+        activity.getSavedStateRegistry().registerSavedStateProvider(KEY_STATE, this::saveState);
+        if (isRestored) {
+            flowStateMachine.restore(retainedState.flowState);
+        } else {
+            retainedState.timeoutAt = SystemClock.elapsedRealtime() + splashTimeout;
+        }
+        retainedState.isStarted = true;
+        // no startup tasks and no granted dialogs over platform splash
+        flowStateMachine.setCondition(SplashFlowStateMachine.CONDITION_STARTUP_TASKS_FINISHED, true);
+        if (flowStateMachine.isFinished()) {
+            return;
+        }
+        handler.postDelayed(timeoutRunnable, Math.max(0, retainedState.timeoutAt - SystemClock.elapsedRealtime()));
+        if (!isRestored) {
+            requestPermissions();
+        } else {
+            resumePermissionsFlow();
+        }
+    }
+
+    /**
+     * Continues the flow after recreation without new system requests for in-flight ones
+     */
+    private void resumePermissionsFlow() {
+        SplashFlowStateMachine.State state = flowStateMachine.getState();
+        if (state == SplashFlowStateMachine.State.PERMISSIONS_REQUIRED) {
+            if (retainedState.deniedPermission != null) {
+                showDeniedDialog(retainedState.deniedPermission);
+            }
+            return;
+        }
+        if (state == SplashFlowStateMachine.State.IN_SETTINGS || PermissionChecker.getInstance().hasPendingRequests()) {
+            // re-checked in onResume or by result of in-flight request
+            return;
+        }
+        if (PermissionChecker.getInstance().isAllPermissionsChecked()) {
+            invalidatePermissionsGranted();
+        } else {
+            requestPermissions();
+        }
+    }
+
+    @Override
+    public void onResume(@NotNull LifecycleOwner owner) {
+        if (flowStateMachine.getState() == SplashFlowStateMachine.State.IN_SETTINGS) {
+            // returned from settings screen
+            requestPermissions();
+        }
+    }
+
+    @Override
+    public void onDestroy(@NotNull LifecycleOwner owner) {
+        owner.getLifecycle().removeObserver(this);
+        handler.removeCallbacks(timeoutRunnable);
+        retainedState.flowState = flowStateMachine.encode();
+        dismissDeniedDialog();
+        activity.getSavedStateRegistry().unregisterSavedStateProvider(KEY_STATE);
+        PermissionChecker.getInstance().getDialogShowObservable().unregisterObserver(this);
+        PermissionChecker.getInstance().releaseDialogs(activity);
+    }
+
+    @MainThread
+    public void onRequestPermissionsResult(int requestCode, @NotNull String[] permissions, @NotNull int[] grantResults) {
+        if (PermissionChecker.getInstance().onRequestPermissionsResult(activity, requestCode, permissions, grantResults)) {
+            invalidatePermissionsGranted();
+        }
+    }
+
+    private void requestPermissions() {
+        if (flowStateMachine.isFinished()) {
+            return;
+        }
+        retainedState.deniedPermission = null;
+        flowStateMachine.moveTo(SplashFlowStateMachine.State.CHECKING_PERMISSIONS);
+        if (!PermissionChecker.getInstance().checkAppPermissions()) {
+            PermissionChecker.getInstance().requestAppPermissions(activity, false);
+        }
+        invalidatePermissionsGranted();
+    }
+
+    private void invalidatePermissionsGranted() {
+        flowStateMachine.setCondition(SplashFlowStateMachine.CONDITION_PERMISSIONS_GRANTED,
+                PermissionChecker.getInstance().isAllPermissionsGranted());
+    }
+
+    private void onSplashTimeout() {
+        flowStateMachine.setCondition(SplashFlowStateMachine.CONDITION_SPLASH_TIMEOUT, true);
+    }
+
+    private boolean restoreState(@Nullable Bundle state) {
+        if (state == null) {
+            return false;
+        }
+        // checker state is needed to route results of in-flight requests after process death
+        PermissionChecker.getInstance().restoreState(state.getByteArray(ARG_CHECKER_STATE));
+        retainedState.flowState = state.getLong(ARG_FLOW_STATE);
+        retainedState.timeoutAt = state.getLong(ARG_TIMEOUT_AT);
+        retainedState.deniedPermission = state.getString(ARG_DENIED_PERMISSION);
+        return true;
+    }
+
+    @NotNull
+    private Bundle saveState() {
+        Bundle state = new Bundle();
+        state.putLong(ARG_FLOW_STATE, flowStateMachine.encode());
+        state.putLong(ARG_TIMEOUT_AT, retainedState.timeoutAt);
+        state.putString(ARG_DENIED_PERMISSION, retainedState.deniedPermission);
+        state.putByteArray(ARG_CHECKER_STATE, PermissionChecker.getInstance().saveState());
+        return state;
+    }
+
+    private void dismissDeniedDialog() {
+        if (deniedDialog != null && deniedDialog.isShowing()) {
+            deniedDialog.dismiss();
+        }
+        deniedDialog = null;
+    }
+
+    @Override
+    public void onDismissAllDialogs() {
+        dismissDeniedDialog();
+    }
+
+    @Override
+    public void onBeforeGrantedDialogShow(@Nullable Dialog dialog, String permission) {
+        // granted dialogs are not shown over platform splash
+        PermissionChecker.getInstance().setGrantedDialog(null);
+    }
+
+    @Override
+    public void onBeforeDeniedDialogShow(@Nullable Dialog dialog, String permission) {
+        retainedState.deniedPermission = permission;
+        flowStateMachine.moveTo(SplashFlowStateMachine.State.PERMISSIONS_REQUIRED);
+        PermissionChecker.getInstance().setDeniedDialog(createDeniedDialog(permission));
+    }
+
+    /**
+     * Re-shows denied dialog after recreation: checker doesn't fire its event again
+     */
+    private void showDeniedDialog(@NotNull String permission) {
+        createDeniedDialog(permission).show();
+    }
+
+    @NotNull
+    private Dialog createDeniedDialog(@NotNull String permission) {
+        dismissDeniedDialog();
+        deniedDialog = new AlertDialog.Builder(activity)
+                .setMessage(activity.getString(R.string.dialog_message_permission_denied, permission))
+                .setCancelable(false)
+                .setPositiveButton(android.R.string.ok, (d, which) -> {
+                    PackageHelper.openAppSettingsScreen(activity);
+                    flowStateMachine.moveTo(SplashFlowStateMachine.State.IN_SETTINGS);
+                })
+                .create();
+        return deniedDialog;
+    }
+
+    /**
+     * Flow state retained across configuration changes
+     */
+    public static class RetainedState extends ViewModel {
+
+        boolean isStarted = false;
+
+        long flowState;
+
+        /** in {@link SystemClock#elapsedRealtime()} time base */
+        long timeoutAt;
+
+        @Nullable
+        String deniedPermission;
+    }
+}
@@ -7,21 +7,29 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.view.View;
 
+import androidx.annotation.CallSuper;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.lifecycle.ViewModelProvider;
 
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Map;
+
 public abstract class BaseSplashActivity extends AppCompatActivity {
 
     private static final String ARG_EXPIRED_TIME = BaseSplashActivity.class.getName() + ".ARG_EXPIRED_TIME";
+    private static final String ARG_USER_INTERACTION = BaseSplashActivity.class.getName() + ".ARG_USER_INTERACTION";
 
     private final Handler navigateHandler = new Handler(Looper.getMainLooper());
     private final Runnable navigateRunnable = new Runnable() {
         @Override
         public void run() {
             if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1 || !isDestroyed()) {
+                startupTimeline.mark(StartupTimeline.Phase.SPLASH_TIMEOUT);
                 onSplashTimeout();
             }
             isNavigateRunnableScheduled = false;
@@ -30,9 +38,32 @@ public abstract class BaseSplashActivity extends AppCompatActivity {
 
     private boolean isNavigateRunnableScheduled = false;
 
+    /** elapsed splash time, monotonic */
     protected long expiredTime = 0;
+    /** in {@link SystemClock#elapsedRealtime()} time base */
     protected long startTime = 0;
 
+    @NotNull
+    protected StartupTimeline startupTimeline = new StartupTimeline(StartupTimeline.NO_OP_SINK);
+
+    /**
+     * retained across configuration changes, available after {@link #onCreate(Bundle)}
+     */
+    protected SplashRetainedState retainedState;
+
+    /**
+     * retained across configuration changes, available after {@link #onCreate(Bundle)}
+     */
+    protected StartupTaskScheduler startupTaskScheduler;
+
+    @Nullable
+    private SplashStartupStats startupStats;
+
+    private boolean isStartupReadyNotified = false;
+
+    /** startup waited for user, its time to ready is not sampled */
+    private boolean isUserInteractionInvolved = false;
+
     /** @return 0 if splash not needed */
     protected abstract long getSplashTimeout();
 
@@ -43,16 +74,128 @@ public abstract class BaseSplashActivity extends AppCompatActivity {
 
     protected abstract boolean allowRemoveCallbackWhenScreenIsOff();
 
+    /**
+     * @return sink for startup phases ({@link StartupTimeline.LogSink}, {@link StartupTimeline.TraceSink},
+     * {@link StartupTimeline.ReportSink} or custom one), null if not needed
+     */
+    @Nullable
+    protected StartupTimeline.Sink getStartupTimelineSink() {
+        return null;
+    }
+
+    @NotNull
+    public StartupTimeline getStartupTimeline() {
+        return startupTimeline;
+    }
+
+    /**
+     * Register initialization tasks (db open, config load etc.) here,
+     * they will be run in parallel while splash is shown; called once, tasks are retained across recreation
+     */
+    protected void onRegisterStartupTasks(@NotNull StartupTaskScheduler scheduler) {
+
+    }
+
+    /**
+     * Called on main thread when all required startup tasks are finished
+     */
+    @CallSuper
+    protected void onStartupTasksFinished(@NotNull Map<String, Throwable> failures) {
+        checkStartupReady();
+    }
+
+    public boolean isStartupTasksFinished() {
+        return startupTaskScheduler.isRequiredTasksFinished();
+    }
+
+    /**
+     * Adaptive mode: splash ends as soon as {@link #isStartupReady()},
+     * timeout is clamped to p90 of previous times to ready (if previous startup became ready),
+     * {@link #getSplashTimeout()} is used only as upper bound
+     */
+    protected boolean isAdaptiveSplashEnabled() {
+        return false;
+    }
+
+    /**
+     * @return true if nothing else should be awaited on splash
+     */
+    protected boolean isStartupReady() {
+        return isStartupTasksFinished();
+    }
+
+    /**
+     * Should be called when startup starts waiting for user (system permission request, dialog, settings screen),
+     * so time to ready of this startup is excluded from adaptive timeout statistics
+     */
+    protected final void onStartupUserInteraction() {
+        isUserInteractionInvolved = true;
+    }
+
+    /**
+     * Should be called when any of {@link #isStartupReady()} conditions may have changed
+     */
+    @CallSuper
+    protected void checkStartupReady() {
+        if (isStartupReadyNotified || startTime <= 0 || !isStartupReady()) {
+            return;
+        }
+        isStartupReadyNotified = true;
+        if (startupStats != null) {
+            if (isUserInteractionInvolved) {
+                startupStats.recordReadyAfterInteraction();
+            } else {
+                startupStats.recordReady(SystemClock.elapsedRealtime() - startTime);
+            }
+        }
+        if (isAdaptiveSplashEnabled() && isNavigateRunnableScheduled) {
+            navigateHandler.removeCallbacks(navigateRunnable);
+            navigateHandler.post(navigateRunnable);
+        }
+    }
+
+    private long getAdaptiveSplashTimeout(long timeout) {
+        if (startupStats == null || !startupStats.isLastReady()) {
+            return timeout;
+        }
+        long p90 = startupStats.getReadyTimePercentile(0.9f);
+        return p90 >= 0 ? Math.min(timeout, p90) : timeout;
+    }
+
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
+        StartupTimeline.Sink sink = getStartupTimelineSink();
+        if (sink != null) {
+            startupTimeline = new StartupTimeline(sink);
+        }
+        startupTimeline.begin(StartupTimeline.Phase.ON_CREATE);
         super.onCreate(savedInstanceState);
         expiredTime = savedInstanceState != null ? savedInstanceState.getLong(ARG_EXPIRED_TIME) : expiredTime;
+        isUserInteractionInvolved = savedInstanceState != null && savedInstanceState.getBoolean(ARG_USER_INTERACTION);
+        retainedState = new ViewModelProvider(this).get(SplashRetainedState.class);
+        if (isAdaptiveSplashEnabled()) {
+            startupStats = retainedState.getStartupStats(this);
+            if (savedInstanceState == null) {
+                startupStats.recordStarted();
+            }
+        }
+        startupTaskScheduler = retainedState.getStartupTaskScheduler();
+        if (!startupTaskScheduler.isStarted()) {
+            onRegisterStartupTasks(startupTaskScheduler);
+            startupTaskScheduler.start(this::onStartupTasksFinished);
+        } else {
+            // tasks are already running or finished before recreation
+            startupTaskScheduler.setListener(this::onStartupTasksFinished);
+        }
+        startupTimeline.end(StartupTimeline.Phase.ON_CREATE);
     }
 
     @Override
     public void onPostCreate(Bundle savedInstanceState) {
+        startupTimeline.begin(StartupTimeline.Phase.ON_POST_CREATE);
         super.onPostCreate(savedInstanceState);
         init();
+        startupTimeline.end(StartupTimeline.Phase.ON_POST_CREATE);
     }
 
     private void init() {
@@ -83,9 +226,14 @@ public abstract class BaseSplashActivity extends AppCompatActivity {
             throw new IllegalArgumentException("incorrect splash timeout");
         }
 
-        startTime = System.currentTimeMillis() - expiredTime;
+        if (isAdaptiveSplashEnabled()) {
+            timeout = getAdaptiveSplashTimeout(timeout);
+        }
+
+        startTime = SystemClock.elapsedRealtime() - expiredTime;
         navigateHandler.postDelayed(navigateRunnable, expiredTime <= timeout ? timeout - expiredTime : 0);
         isNavigateRunnableScheduled = true;
+        checkStartupReady();
     }
 
     @TargetApi(Build.VERSION_CODES.KITKAT_WATCH)
@@ -100,9 +248,17 @@ public abstract class BaseSplashActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // scheduler is cancelled with retainedState when activity is finished
+        startupTaskScheduler.setListener(null);
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putLong(ARG_EXPIRED_TIME, expiredTime = (startTime > 0 ? System.currentTimeMillis() - startTime : 0));
+        outState.putLong(ARG_EXPIRED_TIME, expiredTime = (startTime > 0 ? SystemClock.elapsedRealtime() - startTime : 0));
+        outState.putBoolean(ARG_USER_INTERACTION, isUserInteractionInvolved);
     }
 }
@@ -1,6 +1,5 @@
 package net.maxsmr.permissionchecker.gui.activities;
 
-import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.DialogInterface;
 import android.os.Bundle;
@@ -10,37 +9,92 @@ import androidx.annotation.MainThread;
 
 import net.maxsmr.permissionchecker.PackageHelper;
 import net.maxsmr.permissionchecker.PermissionChecker;
-import net.maxsmr.permissionchecker.R;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
+import java.util.Set;
 
 @Deprecated
 public abstract class BaseSplashPermissionActivity extends BaseSplashActivity implements PermissionChecker.OnDialogShowListener {
 
-    private static final String ARG_IS_SETTINGS_SCREEN_SHOWED = BaseSplashPermissionActivity.class.getName() + ".ARG_IS_SETTINGS_SCREEN_SHOWED";
+    private static final String ARG_FLOW_STATE = BaseSplashPermissionActivity.class.getName() + ".ARG_FLOW_STATE";
+    private static final String ARG_CHECKER_STATE = BaseSplashPermissionActivity.class.getName() + ".ARG_CHECKER_STATE";
+    private static final String ARG_PENDING_DIALOGS = BaseSplashPermissionActivity.class.getName() + ".ARG_PENDING_DIALOGS";
 
-    private final Stack<Dialog> grantedDialogs = new Stack<>();
-    private final Stack<Dialog> deniedDialogs = new Stack<>();
+    private final PermissionDialogPresenter dialogPresenter = new PermissionDialogPresenter(this, new PermissionDialogPresenter.Callbacks() {
+        @Override
+        public void onPositiveClick(@NotNull String permission, boolean granted, @NotNull DialogInterface dialog) {
+            if (granted) {
+                onGrantedDialogPositiveClick(permission, dialog);
+            } else {
+                onDeniedDialogPositiveClick(permission, dialog);
+            }
+        }
+
+        @Override
+        public void onEventDismiss(@NotNull String permission, boolean granted, @NotNull DialogInterface dialog) {
+            if (granted) {
+                onGrantedDialogDismiss(permission, dialog);
+            } else {
+                onDeniedDialogDismiss(permission, dialog);
+            }
+        }
+
+        @Override
+        public void onWindowShown() {
+            onStartupUserInteraction();
+            startupTimeline.begin(StartupTimeline.Phase.PERMISSION_DIALOG);
+        }
+
+        @Override
+        public void onWindowDismissed() {
+            startupTimeline.end(StartupTimeline.Phase.PERMISSION_DIALOG);
+        }
+    });
 
     private boolean isCheckingPermissionsEnabled;
     private boolean isShowingSplashEnabled;
 
-    private boolean isSettingsScreenShowedOnce = false;
+    private final SplashFlowStateMachine flowStateMachine = new SplashFlowStateMachine(new SplashFlowStateMachine.Listener() {
+        @Override
+        public void onStateChanged(@NotNull SplashFlowStateMachine.State oldState, @NotNull SplashFlowStateMachine.State newState) {
+            onFlowStateChanged(oldState, newState);
+        }
 
-    private boolean isSplashTimeouted = false;
+        @Override
+        public void onFinalAction() {
+            performFinalAction();
+        }
 
+        @Override
+        public boolean isFinalActionAllowed() {
+            return BaseSplashPermissionActivity.this.isFinalActionAllowed();
+        }
+    });
+
+    /**
+     * @return single dialog window if there are pending granted events
+     */
     public List<Dialog> getGrantedDialogs() {
-        return new ArrayList<>(grantedDialogs);
+        return getPresenterDialogs(true);
     }
 
+    /**
+     * @return single dialog window if there are pending denied events
+     */
     public List<Dialog> getDeniedDialogs() {
-        return new ArrayList<>(deniedDialogs);
+        return getPresenterDialogs(false);
+    }
+
+    @NotNull
+    private List<Dialog> getPresenterDialogs(boolean granted) {
+        Dialog dialog = dialogPresenter.getDialog();
+        return dialog != null && dialogPresenter.hasPending(granted) ? Collections.singletonList(dialog) : Collections.emptyList();
     }
 
     protected abstract boolean isShowingSplashEnabled();
@@ -57,51 +111,52 @@ public abstract class BaseSplashPermissionActivity extends BaseSplashActivity im
     @Nullable
     protected abstract Collection<String> getPermissionsToIgnoreAfterCheck();
 
+    /**
+     * Extra app-specific guard for final action, checked when all flow conditions are met;
+     * call {@link #invalidateFinalAction()} when it may have become true
+     */
     protected boolean isFinalActionAllowed() {
-        return grantedDialogs.isEmpty() && isSplashTimeouted && (!isCheckingPermissionsEnabled || PermissionChecker.getInstance().isAllPermissionsGranted());
+        return true;
+    }
+
+    protected final void invalidateFinalAction() {
+        flowStateMachine.invalidate();
     }
 
     @NotNull
-    private Dialog createPermissionAlertDialog(final String permission, final boolean granted, DialogInterface.OnClickListener positiveClickListener) {
-        AlertDialog.Builder builder = new AlertDialog.Builder(this);
-        builder.setMessage(
-                String.format(granted ? getString(R.string.dialog_message_permission_granted) :
-                                getString(R.string.dialog_message_permission_denied),
-                        permission))
-                .setCancelable(false)
-                .setPositiveButton(android.R.string.ok, positiveClickListener)
-                .setOnDismissListener(dialog -> {
-                    if (granted) {
-                        grantedDialogs.remove(dialog);
-                        onGrantedDialogDismiss(permission, dialog);
-                    } else {
-                        deniedDialogs.remove(dialog);
-                        onDeniedDialogDismiss(permission, dialog);
-                    }
-                });
-        return builder.create();
+    public SplashFlowStateMachine.State getFlowState() {
+        return flowStateMachine.getState();
     }
 
+    /**
+     * Called on each flow state transition, including final {@link SplashFlowStateMachine.State#FINISHED}
+     */
+    protected void onFlowStateChanged(@NotNull SplashFlowStateMachine.State oldState, @NotNull SplashFlowStateMachine.State newState) {
+
+    }
 
     private void dismissAndClearGrantedDialogs() {
-        dismissDialogs(grantedDialogs);
-        grantedDialogs.clear();
+        dialogPresenter.clear(true);
+        invalidatePendingDialogs();
     }
 
-    private void dismissAndClearDeniedDialogs() {
-        dismissDialogs(deniedDialogs);
-        deniedDialogs.clear();
+    private void invalidatePendingDialogs() {
+        flowStateMachine.setCondition(SplashFlowStateMachine.CONDITION_NO_PENDING_DIALOGS, !dialogPresenter.hasPending(true));
     }
 
-    private void dismissDialogs(@NotNull Stack<Dialog> dialogs) {
-        while (!dialogs.isEmpty()) {
-            Dialog d = dialogs.pop();
-            if (d != null && d.isShowing()) {
-                d.dismiss();
-            }
-        }
+    private void invalidatePermissionsGranted() {
+        flowStateMachine.setCondition(SplashFlowStateMachine.CONDITION_PERMISSIONS_GRANTED, isAllPermissionsGranted());
     }
 
+    private void dismissAndClearDeniedDialogs() {
+        dialogPresenter.clear(false);
+    }
+
+    @Override
+    protected boolean isStartupReady() {
+        return super.isStartupReady() && flowStateMachine.hasConditions(SplashFlowStateMachine.CONDITION_NO_PENDING_DIALOGS
+                | SplashFlowStateMachine.CONDITION_PERMISSIONS_GRANTED);
+    }
 
     protected boolean isAllPermissionsChecked() {
         return !isCheckingPermissionsEnabled || PermissionChecker.getInstance().isAllPermissionsChecked();
@@ -113,25 +168,54 @@ public abstract class BaseSplashPermissionActivity extends BaseSplashActivity im
 
     private void initPermissionChecker() {
         if (isCheckingPermissionsEnabled) {
+            startupTimeline.begin(StartupTimeline.Phase.PERMISSION_CHECKER_INIT);
             PermissionChecker.initInstance(this, isShowingAllSystemDialogsEnabled(), getPermissionsToIgnore(), getPermissionsToIgnoreAfterCheck());
             if (PermissionChecker.getInstance().hasPermissions() || PermissionChecker.getInstance().hasSpecialPermissions()) {
                 PermissionChecker.getInstance().getDialogShowObservable().registerObserver(this);
             }
+            startupTimeline.end(StartupTimeline.Phase.PERMISSION_CHECKER_INIT);
         }
     }
 
     protected void requestPermissions() {
-        if (isCheckingPermissionsEnabled) {
+        if (isCheckingPermissionsEnabled && !flowStateMachine.isFinished()) {
+            flowStateMachine.moveTo(SplashFlowStateMachine.State.CHECKING_PERMISSIONS);
             dismissAndClearGrantedDialogs();
             dismissAndClearDeniedDialogs();
-            if (!PermissionChecker.getInstance().checkAppPermissions()) {
-                PermissionChecker.getInstance().requestAppPermissions();
-            } else if (isFinalActionAllowed()) {
-                doFinalAction();
+            startupTimeline.begin(StartupTimeline.Phase.CHECK_APP_PERMISSIONS);
+            final boolean allGranted = PermissionChecker.getInstance().checkAppPermissions();
+            startupTimeline.end(StartupTimeline.Phase.CHECK_APP_PERMISSIONS);
+            if (!allGranted) {
+                // just checked, no need to check each permission again
+                PermissionChecker.getInstance().requestAppPermissions(this, false);
+                onStartupUserInteraction();
+                beginSystemRequests();
             }
+            invalidatePermissionsGranted();
+            checkStartupReady();
         }
     }
 
+    /**
+     * Marks start of round trip for each registered permission that has not been checked yet
+     */
+    private void beginSystemRequests() {
+        PermissionChecker checker = PermissionChecker.getInstance();
+        for (Map.Entry<String, Integer> entry : checker.getPermissionsWithCodes().entrySet()) {
+            if (!checker.getLastGrantedPermissions().contains(entry.getKey())
+                    && !checker.getLastDeniedPermissions().contains(entry.getKey())) {
+                startupTimeline.begin(StartupTimeline.Phase.SYSTEM_REQUEST, entry.getValue());
+            }
+        }
+    }
+
+    @MainThread
+    private void performFinalAction() {
+        startupTimeline.begin(StartupTimeline.Phase.FINAL_ACTION);
+        doFinalAction();
+        startupTimeline.end(StartupTimeline.Phase.FINAL_ACTION);
+    }
+
     /**
      * @return 0 if splash not needed
      */
@@ -143,27 +227,31 @@ public abstract class BaseSplashPermissionActivity extends BaseSplashActivity im
     }
 
     public boolean isSplashTimeouted() {
-        return isSplashTimeouted;
+        return flowStateMachine.hasConditions(SplashFlowStateMachine.CONDITION_SPLASH_TIMEOUT);
     }
 
     @Override
     protected void onSplashTimeout() {
-        isSplashTimeouted = true;
-        if (isFinalActionAllowed()) {
-            doFinalAction();
-        }
+        flowStateMachine.setCondition(SplashFlowStateMachine.CONDITION_SPLASH_TIMEOUT, true);
     }
 
     @MainThread
     protected abstract void doFinalAction();
 
+    @Override
+    @CallSuper
+    protected void onStartupTasksFinished(@NotNull Map<String, Throwable> failures) {
+        super.onStartupTasksFinished(failures);
+        flowStateMachine.setCondition(SplashFlowStateMachine.CONDITION_STARTUP_TASKS_FINISHED, true);
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         isShowingSplashEnabled = isShowingSplashEnabled();
         isCheckingPermissionsEnabled = isCheckingPermissionsEnabled();
-        if (savedInstanceState != null) {
-            isSettingsScreenShowedOnce = savedInstanceState.getBoolean(ARG_IS_SETTINGS_SCREEN_SHOWED);
+        if (savedInstanceState != null && savedInstanceState.containsKey(ARG_FLOW_STATE)) {
+            flowStateMachine.restore(savedInstanceState.getLong(ARG_FLOW_STATE));
         }
     }
 
@@ -171,7 +259,52 @@ public abstract class BaseSplashPermissionActivity extends BaseSplashActivity im
     public void onPostCreate(Bundle savedInstanceState) {
         super.onPostCreate(savedInstanceState);
         initPermissionChecker();
-        requestPermissions();
+        flowStateMachine.setCondition(SplashFlowStateMachine.CONDITION_STARTUP_TASKS_FINISHED, isStartupTasksFinished());
+        if (isCheckingPermissionsEnabled) {
+            if (restorePermissionsFlow(savedInstanceState)) {
+                resumePermissionsFlow(savedInstanceState);
+            } else {
+                requestPermissions();
+            }
+            retainedState.setPermissionsFlowStarted(true);
+        } else {
+            flowStateMachine.setCondition(SplashFlowStateMachine.CONDITION_PERMISSIONS_GRANTED, true);
+        }
+    }
+
+    /**
+     * @return true if checker state is still actual after recreation: it was retained across configuration change
+     * or restored after process death
+     */
+    private boolean restorePermissionsFlow(@Nullable Bundle savedInstanceState) {
+        if (savedInstanceState == null) {
+            return false;
+        }
+        if (retainedState.isPermissionsFlowStarted()) {
+            return true;
+        }
+        return PermissionChecker.getInstance().restoreState(savedInstanceState.getByteArray(ARG_CHECKER_STATE));
+    }
+
+    /**
+     * Continues the flow without re-checking permissions and without new system requests
+     */
+    private void resumePermissionsFlow(@NotNull Bundle savedInstanceState) {
+        Dialog dialog = dialogPresenter.restorePendingEvents(savedInstanceState.getStringArrayList(ARG_PENDING_DIALOGS));
+        if (dialog != null) {
+            dialog.show();
+        }
+        invalidatePendingDialogs();
+        if (PermissionChecker.getInstance().hasPendingRequests()) {
+            // result of in-flight request will be delivered to this instance
+            return;
+        }
+        if (PermissionChecker.getInstance().isAllPermissionsChecked()) {
+            invalidatePermissionsGranted();
+            checkStartupReady();
+        } else if (!isPermissionsRequired()) {
+            requestPermissions();
+        }
     }
 
     @Override
@@ -179,10 +312,10 @@ public abstract class BaseSplashPermissionActivity extends BaseSplashActivity im
     public void onRequestPermissionsResult(int requestCode, @NotNull String[] permissions, @NotNull int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
         if (isCheckingPermissionsEnabled) {
-            if (PermissionChecker.getInstance().onRequestPermissionsResult(requestCode, permissions, grantResults)) {
-                if (isFinalActionAllowed()) {
-                    doFinalAction();
-                }
+            startupTimeline.end(StartupTimeline.Phase.SYSTEM_REQUEST, requestCode);
+            if (PermissionChecker.getInstance().onRequestPermissionsResult(this, requestCode, permissions, grantResults)) {
+                invalidatePermissionsGranted();
+                checkStartupReady();
             }
         }
     }
@@ -196,15 +329,15 @@ public abstract class BaseSplashPermissionActivity extends BaseSplashActivity im
             if (PermissionChecker.getInstance().hasPermissions() || PermissionChecker.getInstance().hasSpecialPermissions()) {
                 PermissionChecker.getInstance().getDialogShowObservable().unregisterObserver(this);
             }
-//            PermissionChecker.releaseInstance();
+            PermissionChecker.getInstance().releaseDialogs(this);
         }
     }
 
     private void openAppSettingsScreen() {
         if (isCheckingPermissionsEnabled) {
-            if (!isSettingsScreenShowedOnce && isAllPermissionsChecked() && !isAllPermissionsGranted()) {
+            if (!flowStateMachine.hasVisited(SplashFlowStateMachine.State.IN_SETTINGS) && isAllPermissionsChecked() && !isAllPermissionsGranted()) {
                 PackageHelper.openAppSettingsScreen(this);
-                isSettingsScreenShowedOnce = true;
+                flowStateMachine.moveTo(SplashFlowStateMachine.State.IN_SETTINGS);
             }
         }
     }
@@ -219,34 +352,27 @@ public abstract class BaseSplashPermissionActivity extends BaseSplashActivity im
     @CallSuper
     public void onBeforeGrantedDialogShow(@Nullable Dialog dialog, final String permission) {
         if (isShowingGrantedDialogEnabled(permission)) {
-            dialog = createPermissionAlertDialog(permission, true, new DialogInterface.OnClickListener() {
-                @Override
-                public void onClick(DialogInterface dialog, int which) {
-                    onGrantedDialogPositiveClick(permission, dialog);
-                }
-            });
-            grantedDialogs.push(dialog);
-            PermissionChecker.getInstance().setGrantedDialog(dialog);
+            PermissionChecker.getInstance().setGrantedDialog(dialogPresenter.enqueue(permission, true));
+            invalidatePendingDialogs();
+        } else {
+            PermissionChecker.getInstance().setGrantedDialog(null);
         }
     }
 
     @Override
     @CallSuper
     public void onBeforeDeniedDialogShow(@Nullable Dialog dialog, final String permission) {
-        dialog = createPermissionAlertDialog(permission, false, new DialogInterface.OnClickListener() {
-            @Override
-            public void onClick(DialogInterface dialog, int which) {
-                onDeniedDialogPositiveClick(permission, dialog);
-            }
-        });
-        deniedDialogs.push(dialog);
-        PermissionChecker.getInstance().setDeniedDialog(dialog);
+        PermissionChecker.getInstance().setDeniedDialog(dialogPresenter.enqueue(permission, false));
     }
 
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putBoolean(ARG_IS_SETTINGS_SCREEN_SHOWED, isSettingsScreenShowedOnce);
+        outState.putLong(ARG_FLOW_STATE, flowStateMachine.encode());
+        if (isCheckingPermissionsEnabled) {
+            outState.putByteArray(ARG_CHECKER_STATE, PermissionChecker.getInstance().saveState());
+            outState.putStringArrayList(ARG_PENDING_DIALOGS, dialogPresenter.savePendingEvents());
+        }
     }
 
     protected void onGrantedDialogPositiveClick(String permission, DialogInterface dialog) {
@@ -259,19 +385,78 @@ public abstract class BaseSplashPermissionActivity extends BaseSplashActivity im
 
     @CallSuper
     protected void onGrantedDialogDismiss(String permission, DialogInterface dialog) {
-        if (grantedDialogs.isEmpty()) {
-            if (isFinalActionAllowed()) {
-                doFinalAction();
-            }
+        if (!dialogPresenter.hasPending(true)) {
+            invalidatePendingDialogs();
+            checkStartupReady();
         }
     }
 
     @CallSuper
     protected void onDeniedDialogDismiss(String permission, DialogInterface dialog) {
-        if (deniedDialogs.isEmpty()) {
-            openAppSettingsScreen();
-            finish();
-            System.exit(0);
+        if (!dialogPresenter.hasPending(false)) {
+            if (isExitOnDeniedEnabled()) {
+                openAppSettingsScreen();
+                finish();
+                System.exit(0);
+            } else {
+                flowStateMachine.moveTo(SplashFlowStateMachine.State.PERMISSIONS_REQUIRED);
+                onPermissionsRequired(PermissionChecker.getInstance().getLastDeniedPermissions());
+                openAppSettingsScreen();
+            }
+        }
+    }
+
+    /**
+     * @return true to finish and kill the process after denied dialogs (legacy behaviour);
+     * false to keep the process and {@link PermissionChecker} state alive and wait in "permissions required" state
+     */
+    protected boolean isExitOnDeniedEnabled() {
+        return false;
+    }
+
+    /**
+     * Called when flow is parked until missing permissions are granted (e.g. to show placeholder
+     * with {@link #retryPermissions()} / {@link #openAppSettings()} actions);
+     * permissions are re-checked on return from settings screen
+     */
+    protected void onPermissionsRequired(@NotNull Set<String> deniedPermissions) {
+
+    }
+
+    public boolean isPermissionsRequired() {
+        SplashFlowStateMachine.State state = flowStateMachine.getState();
+        return state == SplashFlowStateMachine.State.PERMISSIONS_REQUIRED || state == SplashFlowStateMachine.State.IN_SETTINGS;
+    }
+
+    public void retryPermissions() {
+        requestPermissions();
+    }
+
+    public void openAppSettings() {
+        if (isCheckingPermissionsEnabled && !flowStateMachine.isFinished()) {
+            PackageHelper.openAppSettingsScreen(this);
+            flowStateMachine.moveTo(SplashFlowStateMachine.State.IN_SETTINGS);
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (isCheckingPermissionsEnabled && flowStateMachine.getState() == SplashFlowStateMachine.State.IN_SETTINGS) {
+            // return from settings: checker and its registered permissions are still alive, only re-check them;
+            // system dialogs are shown again only by explicit retryPermissions()
+            recheckPermissions();
+        }
+    }
+
+    private void recheckPermissions() {
+        if (PermissionChecker.getInstance().checkAppPermissions()) {
+            dismissAndClearDeniedDialogs();
+            flowStateMachine.moveTo(SplashFlowStateMachine.State.WAITING);
+        } else {
+            flowStateMachine.moveTo(SplashFlowStateMachine.State.PERMISSIONS_REQUIRED);
         }
+        invalidatePermissionsGranted();
+        checkStartupReady();
     }
 }
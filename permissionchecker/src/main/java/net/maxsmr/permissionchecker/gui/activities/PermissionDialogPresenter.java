@@ -0,0 +1,242 @@
+package net.maxsmr.permissionchecker.gui.activities;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.widget.Button;
+
+import androidx.annotation.MainThread;
+
+import net.maxsmr.permissionchecker.R;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Shows granted / denied permission events in a single dialog window:
+ * the dialog is created lazily on first event, its content is updated in place
+ * for each next queued event, and the window is dismissed only when the queue is empty
+ */
+@MainThread
+public class PermissionDialogPresenter {
+
+    public interface Callbacks {
+
+        void onPositiveClick(@NotNull String permission, boolean granted, @NotNull DialogInterface dialog);
+
+        /**
+         * Called when event is removed from the queue by user (event is not pending at this moment)
+         */
+        void onEventDismiss(@NotNull String permission, boolean granted, @NotNull DialogInterface dialog);
+
+        void onWindowShown();
+
+        void onWindowDismissed();
+    }
+
+    private static final char EVENT_PREFIX_GRANTED = '+';
+    private static final char EVENT_PREFIX_DENIED = '-';
+
+    @NotNull
+    private final Context context;
+
+    @NotNull
+    private final Callbacks callbacks;
+
+    private final ArrayDeque<Event> events = new ArrayDeque<>();
+
+    @Nullable
+    private AlertDialog dialog;
+
+    @Nullable
+    private String grantedFormat;
+
+    @Nullable
+    private String deniedFormat;
+
+    @Nullable
+    private Event shownEvent;
+
+    private int grantedCount = 0;
+
+    public PermissionDialogPresenter(@NotNull Context context, @NotNull Callbacks callbacks) {
+        this.context = context;
+        this.callbacks = callbacks;
+    }
+
+    /**
+     * @return dialog window to show, the same instance for all events
+     */
+    @NotNull
+    public AlertDialog enqueue(@NotNull String permission, boolean granted) {
+        events.add(new Event(permission, granted));
+        if (granted) {
+            grantedCount++;
+        }
+        AlertDialog dialog = getOrCreateDialog();
+        if (shownEvent == null) {
+            updateContent();
+        }
+        return dialog;
+    }
+
+    @Nullable
+    public AlertDialog getDialog() {
+        return dialog;
+    }
+
+    public boolean hasPending(boolean granted) {
+        return granted ? grantedCount > 0 : events.size() - grantedCount > 0;
+    }
+
+    /**
+     * Removes pending events of given type without callbacks
+     */
+    public void clear(boolean granted) {
+        Iterator<Event> it = events.iterator();
+        while (it.hasNext()) {
+            Event event = it.next();
+            if (event.granted == granted) {
+                it.remove();
+                if (event == shownEvent) {
+                    shownEvent = null;
+                }
+            }
+        }
+        if (granted) {
+            grantedCount = 0;
+        }
+        if (events.isEmpty()) {
+            dismissWindow();
+        } else if (shownEvent == null) {
+            updateContent();
+        }
+    }
+
+    /**
+     * @return pending events for saved instance state, in queue order
+     */
+    @NotNull
+    public ArrayList<String> savePendingEvents() {
+        ArrayList<String> result = new ArrayList<>(events.size());
+        for (Event event : events) {
+            result.add((event.granted ? EVENT_PREFIX_GRANTED : EVENT_PREFIX_DENIED) + event.permission);
+        }
+        return result;
+    }
+
+    /**
+     * Re-queues events from {@link #savePendingEvents()}
+     *
+     * @return dialog window to show or null if there are no events
+     */
+    @Nullable
+    public AlertDialog restorePendingEvents(@Nullable List<String> savedEvents) {
+        AlertDialog dialog = null;
+        if (savedEvents != null) {
+            for (String event : savedEvents) {
+                if (event != null && event.length() > 1) {
+                    dialog = enqueue(event.substring(1), event.charAt(0) == EVENT_PREFIX_GRANTED);
+                }
+            }
+        }
+        return dialog;
+    }
+
+    public void clearAll() {
+        events.clear();
+        grantedCount = 0;
+        shownEvent = null;
+        dismissWindow();
+    }
+
+    @NotNull
+    private AlertDialog getOrCreateDialog() {
+        if (dialog == null) {
+            final AlertDialog dialog = new AlertDialog.Builder(context)
+                    .setMessage("")
+                    .setCancelable(false)
+                    // click is handled in OnShowListener, so the window is not dismissed while queue is not empty
+                    .setPositiveButton(android.R.string.ok, null)
+                    .create();
+            dialog.setOnShowListener(d -> {
+                Button button = dialog.getButton(DialogInterface.BUTTON_POSITIVE);
+                if (button != null) {
+                    button.setOnClickListener(v -> onPositiveClick());
+                }
+                callbacks.onWindowShown();
+            });
+            dialog.setOnDismissListener(d -> callbacks.onWindowDismissed());
+            this.dialog = dialog;
+        }
+        return dialog;
+    }
+
+    private void onPositiveClick() {
+        final AlertDialog dialog = this.dialog;
+        final Event event = events.poll();
+        shownEvent = null;
+        if (dialog == null || event == null) {
+            dismissWindow();
+            return;
+        }
+        if (event.granted) {
+            grantedCount--;
+        }
+        if (events.isEmpty()) {
+            dismissWindow();
+        } else {
+            updateContent();
+        }
+        callbacks.onPositiveClick(event.permission, event.granted, dialog);
+        callbacks.onEventDismiss(event.permission, event.granted, dialog);
+    }
+
+    private void updateContent() {
+        final Event event = events.peek();
+        if (dialog == null || event == null) {
+            return;
+        }
+        shownEvent = event;
+        dialog.setMessage(String.format(getFormat(event.granted), event.permission));
+    }
+
+    @NotNull
+    private String getFormat(boolean granted) {
+        if (granted) {
+            if (grantedFormat == null) {
+                grantedFormat = context.getString(R.string.dialog_message_permission_granted);
+            }
+            return grantedFormat;
+        } else {
+            if (deniedFormat == null) {
+                deniedFormat = context.getString(R.string.dialog_message_permission_denied);
+            }
+            return deniedFormat;
+        }
+    }
+
+    private void dismissWindow() {
+        if (dialog != null && dialog.isShowing()) {
+            dialog.dismiss();
+        }
+    }
+
+    private static class Event {
+
+        @NotNull
+        final String permission;
+
+        final boolean granted;
+
+        Event(@NotNull String permission, boolean granted) {
+            this.permission = permission;
+            this.granted = granted;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package net.maxsmr.permissionchecker.gui.activities;
+
+import androidx.annotation.MainThread;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Splash permissions flow: current {@link State} plus set of conditions for final action;
+ * final action is fired exactly once, when all {@link #CONDITIONS_ALL} are met
+ * and {@link Listener#isFinalActionAllowed()} agrees
+ */
+@MainThread
+public final class SplashFlowStateMachine {
+
+    public enum State {
+        /** nothing is checked yet */
+        IDLE,
+        /** permissions are checked or system requests are in progress */
+        CHECKING_PERMISSIONS,
+        /** flow is parked after denied dialogs until missing permissions are granted */
+        PERMISSIONS_REQUIRED,
+        /** app settings screen was opened, waiting for return */
+        IN_SETTINGS,
+        /** all permissions are granted, waiting for other conditions */
+        WAITING,
+        /** final action was fired, terminal state */
+        FINISHED
+    }
+
+    public interface Listener {
+
+        void onStateChanged(@NotNull State oldState, @NotNull State newState);
+
+        void onFinalAction();
+
+        /**
+         * Additional guard checked before {@link State#FINISHED} transition when all conditions are met;
+         * {@link #invalidate()} should be called when its result may have changed
+         */
+        default boolean isFinalActionAllowed() {
+            return true;
+        }
+    }
+
+    public static final int CONDITION_SPLASH_TIMEOUT = 1;
+    public static final int CONDITION_STARTUP_TASKS_FINISHED = 1 << 1;
+    public static final int CONDITION_PERMISSIONS_GRANTED = 1 << 2;
+    public static final int CONDITION_NO_PENDING_DIALOGS = 1 << 3;
+
+    public static final int CONDITIONS_ALL = CONDITION_SPLASH_TIMEOUT | CONDITION_STARTUP_TASKS_FINISHED
+            | CONDITION_PERMISSIONS_GRANTED | CONDITION_NO_PENDING_DIALOGS;
+
+    @NotNull
+    private final Listener listener;
+
+    @NotNull
+    private State state = State.IDLE;
+
+    private int conditions = CONDITION_NO_PENDING_DIALOGS;
+
+    /** bit mask of visited states ordinals */
+    private int visitedStates = 1 << State.IDLE.ordinal();
+
+    public SplashFlowStateMachine(@NotNull Listener listener) {
+        this.listener = listener;
+    }
+
+    @NotNull
+    public State getState() {
+        return state;
+    }
+
+    public boolean isFinished() {
+        return state == State.FINISHED;
+    }
+
+    public boolean hasVisited(@NotNull State state) {
+        return (visitedStates & (1 << state.ordinal())) != 0;
+    }
+
+    public boolean hasConditions(int conditions) {
+        return (this.conditions & conditions) == conditions;
+    }
+
+    public int getConditions() {
+        return conditions;
+    }
+
+    /**
+     * @return false if transition is ignored (already finished)
+     */
+    public boolean moveTo(@NotNull State newState) {
+        if (newState == State.FINISHED) {
+            throw new IllegalArgumentException("FINISHED state is reached only when all conditions are met");
+        }
+        if (isFinished()) {
+            return false;
+        }
+        setState(newState);
+        evaluate();
+        return true;
+    }
+
+    public void setCondition(int condition, boolean isMet) {
+        if (isFinished()) {
+            return;
+        }
+        int newConditions = isMet ? conditions | condition : conditions & ~condition;
+        if (newConditions == conditions) {
+            return;
+        }
+        conditions = newConditions;
+        if (condition == CONDITION_PERMISSIONS_GRANTED && isMet && state == State.CHECKING_PERMISSIONS) {
+            setState(State.WAITING);
+        }
+        evaluate();
+    }
+
+    /**
+     * Re-evaluates final action, e.g. after {@link Listener#isFinalActionAllowed()} has changed
+     */
+    public void invalidate() {
+        evaluate();
+    }
+
+    /**
+     * Packs state, conditions and visited states into single value (e.g. for saved instance state)
+     */
+    public long encode() {
+        return ((long) visitedStates << 32) | ((long) conditions << 8) | state.ordinal();
+    }
+
+    /**
+     * Restores values from {@link #encode()}; listener is not notified, final action is not fired
+     */
+    public void restore(long encoded) {
+        int ordinal = (int) (encoded & 0xFF);
+        State[] states = State.values();
+        if (ordinal >= states.length) {
+            return;
+        }
+        state = states[ordinal];
+        conditions = (int) ((encoded >>> 8) & 0xFFFFFF);
+        visitedStates = (int) (encoded >>> 32);
+    }
+
+    private void setState(@NotNull State newState) {
+        if (state == newState) {
+            return;
+        }
+        State oldState = state;
+        state = newState;
+        visitedStates |= 1 << newState.ordinal();
+        listener.onStateChanged(oldState, newState);
+    }
+
+    private void evaluate() {
+        if (!isFinished() && hasConditions(CONDITIONS_ALL) && listener.isFinalActionAllowed()) {
+            setState(State.FINISHED);
+            listener.onFinalAction();
+        }
+    }
+}
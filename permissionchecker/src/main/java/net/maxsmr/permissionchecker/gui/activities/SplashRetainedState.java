@@ -0,0 +1,52 @@
+package net.maxsmr.permissionchecker.gui.activities;
+
+import android.content.Context;
+
+import androidx.lifecycle.ViewModel;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Splash state retained across configuration changes
+ */
+public class SplashRetainedState extends ViewModel {
+
+    @NotNull
+    private final StartupTaskScheduler startupTaskScheduler = new StartupTaskScheduler();
+
+    @Nullable
+    private SplashStartupStats startupStats;
+
+    private boolean isPermissionsFlowStarted = false;
+
+    @NotNull
+    public StartupTaskScheduler getStartupTaskScheduler() {
+        return startupTaskScheduler;
+    }
+
+    /**
+     * @return stats created on first call, its preferences are loaded in background
+     */
+    @NotNull
+    public SplashStartupStats getStartupStats(@NotNull Context context) {
+        if (startupStats == null) {
+            startupStats = new SplashStartupStats(context);
+        }
+        return startupStats;
+    }
+
+    public boolean isPermissionsFlowStarted() {
+        return isPermissionsFlowStarted;
+    }
+
+    public void setPermissionsFlowStarted(boolean permissionsFlowStarted) {
+        isPermissionsFlowStarted = permissionsFlowStarted;
+    }
+
+    @Override
+    protected void onCleared() {
+        super.onCleared();
+        startupTaskScheduler.cancel();
+    }
+}
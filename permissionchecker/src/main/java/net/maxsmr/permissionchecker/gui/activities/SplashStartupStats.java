@@ -0,0 +1,199 @@
+package net.maxsmr.permissionchecker.gui.activities;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Persisted outcomes of previous splash startups: whether startup became ready
+ * (all permissions granted, required tasks done) and how long it took;
+ * startups that waited for user (permission requests, dialogs) are not sampled.
+ * Preferences are loaded and written on background executor; getters wait for loading
+ * only if it's not finished yet
+ */
+public final class SplashStartupStats {
+
+    private static final String PREFS_NAME = SplashStartupStats.class.getName();
+
+    private static final String KEY_LAST_READY = "last_ready";
+    private static final String KEY_READY_TIMES = "ready_times";
+
+    private static final int MAX_SAMPLES = 20;
+
+    @NotNull
+    private final Context context;
+
+    @NotNull
+    private final Executor executor;
+
+    @Nullable
+    private SharedPreferences prefs;
+
+    @NotNull
+    private long[] readyTimes = new long[0];
+
+    private boolean isLastReady;
+
+    public SplashStartupStats(@NotNull Context context) {
+        this(context, ExecutorHolder.EXECUTOR);
+    }
+
+    /**
+     * @param executor should run tasks in order, e.g. single thread one
+     */
+    public SplashStartupStats(@NotNull Context context, @NotNull Executor executor) {
+        this.context = context.getApplicationContext();
+        this.executor = executor;
+        executor.execute(this::load);
+    }
+
+    /**
+     * @return true if previous startup reached readiness (all permissions were granted),
+     * false also if its process was killed before
+     */
+    public synchronized boolean isLastReady() {
+        load();
+        return isLastReady;
+    }
+
+    public synchronized int getSamplesCount() {
+        load();
+        return readyTimes.length;
+    }
+
+    /**
+     * @param percentile in range (0, 1]
+     * @return time to ready in ms or -1 if there are no samples
+     */
+    public synchronized long getReadyTimePercentile(float percentile) {
+        if (percentile <= 0 || percentile > 1) {
+            throw new IllegalArgumentException("incorrect percentile: " + percentile);
+        }
+        load();
+        if (readyTimes.length == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(readyTimes, readyTimes.length);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+    /**
+     * Should be called once per startup before it becomes ready: until {@link #recordReady(long)}
+     * it is stored as not ready, so startups interrupted by process kill are counted;
+     * {@link #isLastReady()} still refers to previous startup
+     */
+    public void recordStarted() {
+        executor.execute(() -> {
+            synchronized (this) {
+                load().edit().putBoolean(KEY_LAST_READY, false).apply();
+            }
+        });
+    }
+
+    /**
+     * Startup became ready after user interaction, its time is not representative and is not sampled
+     */
+    public void recordReadyAfterInteraction() {
+        executor.execute(() -> {
+            synchronized (this) {
+                SharedPreferences prefs = load();
+                isLastReady = true;
+                prefs.edit().putBoolean(KEY_LAST_READY, true).apply();
+            }
+        });
+    }
+
+    public void recordReady(long timeToReadyMs) {
+        executor.execute(() -> {
+            synchronized (this) {
+                SharedPreferences prefs = load();
+                long[] times;
+                if (readyTimes.length < MAX_SAMPLES) {
+                    times = Arrays.copyOf(readyTimes, readyTimes.length + 1);
+                } else {
+                    times = new long[MAX_SAMPLES];
+                    System.arraycopy(readyTimes, 1, times, 0, MAX_SAMPLES - 1);
+                }
+                times[times.length - 1] = Math.max(0, timeToReadyMs);
+                readyTimes = times;
+                isLastReady = true;
+                prefs.edit()
+                        .putBoolean(KEY_LAST_READY, true)
+                        .putString(KEY_READY_TIMES, format(times))
+                        .apply();
+            }
+        });
+    }
+
+    public void recordNotReady() {
+        executor.execute(() -> {
+            synchronized (this) {
+                SharedPreferences prefs = load();
+                if (!isLastReady) {
+                    return;
+                }
+                isLastReady = false;
+                prefs.edit().putBoolean(KEY_LAST_READY, false).apply();
+            }
+        });
+    }
+
+    /**
+     * Reads preferences once, on executor or on first getter call if executor has not done it yet
+     */
+    @NotNull
+    private synchronized SharedPreferences load() {
+        SharedPreferences prefs = this.prefs;
+        if (prefs == null) {
+            prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            isLastReady = prefs.getBoolean(KEY_LAST_READY, false);
+            readyTimes = parse(prefs.getString(KEY_READY_TIMES, null));
+            this.prefs = prefs;
+        }
+        return prefs;
+    }
+
+    @NotNull
+    private static long[] parse(String value) {
+        if (TextUtils.isEmpty(value)) {
+            return new long[0];
+        }
+        String[] parts = value.split(",");
+        long[] result = new long[parts.length];
+        int count = 0;
+        for (String part : parts) {
+            try {
+                result[count] = Long.parseLong(part);
+                count++;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    @NotNull
+    private static String format(@NotNull long[] times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(times[i]);
+        }
+        return sb.toString();
+    }
+
+    private static final class ExecutorHolder {
+
+        static final Executor EXECUTOR = Executors.newSingleThreadExecutor();
+    }
+}
@@ -0,0 +1,346 @@
+package net.maxsmr.permissionchecker.gui.activities;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.MainThread;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs initialization tasks with dependencies in parallel on bounded executor
+ * while splash is shown; completion is reported on main thread
+ */
+public final class StartupTaskScheduler {
+
+    public interface Task {
+
+        @NotNull
+        String getName();
+
+        /**
+         * @return names of tasks that should be completed before this one
+         */
+        @NotNull
+        Collection<String> getDependencies();
+
+        /**
+         * @return false if final splash action doesn't need to wait for this task
+         */
+        boolean isRequired();
+
+        void run() throws Exception;
+    }
+
+    public interface OnTasksFinishedListener {
+
+        /**
+         * @param failures failed tasks with their errors (and dependent tasks, which were not started)
+         */
+        @MainThread
+        void onRequiredTasksFinished(@NotNull Map<String, Throwable> failures);
+    }
+
+    public static abstract class SimpleTask implements Task {
+
+        @NotNull
+        private final String name;
+
+        @NotNull
+        private final Collection<String> dependencies;
+
+        private final boolean isRequired;
+
+        public SimpleTask(@NotNull String name, boolean isRequired, @NotNull String... dependencies) {
+            this.name = name;
+            this.isRequired = isRequired;
+            this.dependencies = Collections.unmodifiableList(Arrays.asList(dependencies));
+        }
+
+        @NotNull
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @NotNull
+        @Override
+        public Collection<String> getDependencies() {
+            return dependencies;
+        }
+
+        @Override
+        public boolean isRequired() {
+            return isRequired;
+        }
+    }
+
+    private static final int MAX_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final Map<String, Task> tasks = new LinkedHashMap<>();
+
+    private final Map<String, List<Task>> dependents = new HashMap<>();
+
+    private final Map<String, Integer> pendingDependencies = new HashMap<>();
+
+    private final Set<String> finished = new HashSet<>();
+
+    private final Map<String, Throwable> failures = new LinkedHashMap<>();
+
+    private final Set<String> awaited = new HashSet<>();
+
+    @Nullable
+    private ExecutorService executor;
+
+    @Nullable
+    private OnTasksFinishedListener listener;
+
+    private int pendingRequiredCount = 0;
+
+    private boolean isStarted = false;
+
+    private boolean isCancelled = false;
+
+    private boolean isNotifyPosted = false;
+
+    public synchronized void addTask(@NotNull Task task) {
+        if (isStarted) {
+            throw new IllegalStateException("Scheduler is already started");
+        }
+        if (tasks.containsKey(task.getName())) {
+            throw new IllegalArgumentException("Task with name " + task.getName() + " is already added");
+        }
+        tasks.put(task.getName(), task);
+    }
+
+    public synchronized boolean hasTasks() {
+        return !tasks.isEmpty();
+    }
+
+    public synchronized boolean isRequiredTasksFinished() {
+        return isStarted && pendingRequiredCount == 0 || !isStarted && tasks.isEmpty();
+    }
+
+    @NotNull
+    public synchronized Map<String, Throwable> getFailures() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(failures));
+    }
+
+    /**
+     * @throws IllegalArgumentException on unknown dependency or dependency cycle
+     */
+    @MainThread
+    public synchronized void start(@Nullable OnTasksFinishedListener listener) {
+        if (isStarted) {
+            throw new IllegalStateException("Scheduler is already started");
+        }
+        isStarted = true;
+        this.listener = listener;
+        validate();
+        List<Task> ready = new ArrayList<>();
+        for (Task task : tasks.values()) {
+            if (task.isRequired()) {
+                collectAwaited(task);
+            }
+            pendingDependencies.put(task.getName(), task.getDependencies().size());
+            for (String dependency : task.getDependencies()) {
+                List<Task> list = dependents.get(dependency);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    dependents.put(dependency, list);
+                }
+                list.add(task);
+            }
+            if (task.getDependencies().isEmpty()) {
+                ready.add(task);
+            }
+        }
+        pendingRequiredCount = awaited.size();
+        if (pendingRequiredCount == 0) {
+            notifyFinished();
+        }
+        if (tasks.isEmpty()) {
+            return;
+        }
+        int threads = Math.min(MAX_THREADS, tasks.size());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+        for (Task task : ready) {
+            submit(task);
+        }
+    }
+
+    public synchronized boolean isStarted() {
+        return isStarted;
+    }
+
+    /**
+     * Rebinds listener (e.g. after activity recreation);
+     * if required tasks are already finished, new listener is notified
+     */
+    public synchronized void setListener(@Nullable OnTasksFinishedListener listener) {
+        this.listener = listener;
+        if (isStarted && !isCancelled && pendingRequiredCount == 0) {
+            notifyFinished();
+        }
+    }
+
+    /**
+     * Started tasks are not interrupted, but no new tasks will be started and listener will not be notified
+     */
+    public synchronized void cancel() {
+        isCancelled = true;
+        listener = null;
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    private void validate() {
+        for (Task task : tasks.values()) {
+            for (String dependency : task.getDependencies()) {
+                if (!tasks.containsKey(dependency)) {
+                    throw new IllegalArgumentException("Unknown dependency " + dependency + " for task " + task.getName());
+                }
+            }
+        }
+        Set<String> visited = new HashSet<>();
+        for (String name : tasks.keySet()) {
+            checkCycle(name, visited, new HashSet<>());
+        }
+    }
+
+    private void checkCycle(@NotNull String name, @NotNull Set<String> visited, @NotNull Set<String> path) {
+        if (path.contains(name)) {
+            throw new IllegalArgumentException("Dependency cycle detected at task " + name);
+        }
+        if (!visited.add(name)) {
+            return;
+        }
+        path.add(name);
+        //noinspection ConstantConditions
+        for (String dependency : tasks.get(name).getDependencies()) {
+            checkCycle(dependency, visited, path);
+        }
+        path.remove(name);
+    }
+
+    /**
+     * Not required tasks are awaited too when a required task depends on them
+     */
+    private void collectAwaited(@NotNull Task task) {
+        if (!awaited.add(task.getName())) {
+            return;
+        }
+        for (String dependency : task.getDependencies()) {
+            //noinspection ConstantConditions
+            collectAwaited(tasks.get(dependency));
+        }
+    }
+
+    private void submit(@NotNull final Task task) {
+        final ExecutorService executor = this.executor;
+        if (executor == null || isCancelled) {
+            return;
+        }
+        executor.execute(() -> {
+            Throwable error = null;
+            try {
+                task.run();
+            } catch (Throwable e) {
+                error = e;
+            }
+            onTaskFinished(task, error);
+        });
+    }
+
+    private synchronized void onTaskFinished(@NotNull Task task, @Nullable Throwable error) {
+        if (isCancelled) {
+            return;
+        }
+        markFinished(task, error);
+        if (pendingRequiredCount == 0) {
+            notifyFinished();
+        }
+    }
+
+    private void markFinished(@NotNull Task task, @Nullable Throwable error) {
+        if (!finished.add(task.getName())) {
+            return;
+        }
+        if (error != null) {
+            failures.put(task.getName(), error);
+        }
+        if (awaited.contains(task.getName())) {
+            pendingRequiredCount--;
+        }
+        List<Task> list = dependents.get(task.getName());
+        if (list == null) {
+            return;
+        }
+        for (Task dependent : list) {
+            if (error != null) {
+                // dependent task can't be run without its dependency
+                markFinished(dependent, new IllegalStateException("Dependency " + task.getName() + " failed", error));
+                continue;
+            }
+            Integer pending = pendingDependencies.get(dependent.getName());
+            int left = pending != null ? pending - 1 : 0;
+            pendingDependencies.put(dependent.getName(), left);
+            if (left == 0 && !finished.contains(dependent.getName())) {
+                submit(dependent);
+            }
+        }
+    }
+
+    private void notifyFinished() {
+        if (listener != null && !isNotifyPosted) {
+            isNotifyPosted = true;
+            mainHandler.post(this::deliverFinished);
+        }
+        if (finished.size() == tasks.size() && executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Listener is taken at delivery time, so listener replaced or removed
+     * after posting (e.g. destroyed activity) is not notified
+     */
+    @MainThread
+    private void deliverFinished() {
+        final OnTasksFinishedListener listener;
+        final Map<String, Throwable> failures;
+        synchronized (this) {
+            isNotifyPosted = false;
+            listener = this.listener;
+            if (listener == null || isCancelled) {
+                return;
+            }
+            this.listener = null;
+            failures = getFailures();
+        }
+        listener.onRequiredTasksFinished(failures);
+    }
+}
@@ -0,0 +1,219 @@
+package net.maxsmr.permissionchecker.gui.activities;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Monotonic timeline of splash startup phases, reported to pluggable {@link Sink}
+ */
+public final class StartupTimeline {
+
+    public enum Phase {
+        ON_CREATE,
+        ON_POST_CREATE,
+        PERMISSION_CHECKER_INIT,
+        CHECK_APP_PERMISSIONS,
+        /** from system permissions request to its result */
+        SYSTEM_REQUEST,
+        /** from dialog show to its dismiss */
+        PERMISSION_DIALOG,
+        SPLASH_TIMEOUT,
+        FINAL_ACTION
+    }
+
+    public interface Sink {
+
+        /**
+         * @param id differs for concurrent phases of same type (request code for {@link Phase#SYSTEM_REQUEST})
+         */
+        void onPhaseStarted(@NotNull Phase phase, int id, long timeNanos);
+
+        void onPhaseFinished(@NotNull Phase phase, int id, long startTimeNanos, long endTimeNanos);
+    }
+
+    public static final Sink NO_OP_SINK = new Sink() {
+        @Override
+        public void onPhaseStarted(@NotNull Phase phase, int id, long timeNanos) {
+        }
+
+        @Override
+        public void onPhaseFinished(@NotNull Phase phase, int id, long startTimeNanos, long endTimeNanos) {
+        }
+    };
+
+    @NotNull
+    private final Sink mSink;
+
+    private final long mOriginNanos = SystemClock.elapsedRealtimeNanos();
+
+    private final Map<Phase, Map<Integer, Long>> mStarted = new EnumMap<>(Phase.class);
+
+    public StartupTimeline(@NotNull Sink sink) {
+        mSink = sink;
+    }
+
+    /**
+     * @return monotonic time since this timeline creation
+     */
+    public long getElapsedNanos() {
+        return SystemClock.elapsedRealtimeNanos() - mOriginNanos;
+    }
+
+    public void begin(@NotNull Phase phase) {
+        begin(phase, 0);
+    }
+
+    public synchronized void begin(@NotNull Phase phase, int id) {
+        Map<Integer, Long> started = mStarted.get(phase);
+        if (started == null) {
+            started = new HashMap<>();
+            mStarted.put(phase, started);
+        }
+        long time = getElapsedNanos();
+        started.put(id, time);
+        mSink.onPhaseStarted(phase, id, time);
+    }
+
+    public void end(@NotNull Phase phase) {
+        end(phase, 0);
+    }
+
+    public synchronized void end(@NotNull Phase phase, int id) {
+        Map<Integer, Long> started = mStarted.get(phase);
+        Long startTime = started != null ? started.remove(id) : null;
+        if (startTime != null) {
+            mSink.onPhaseFinished(phase, id, startTime, getElapsedNanos());
+        }
+    }
+
+    /**
+     * Single point event (zero duration phase)
+     */
+    public void mark(@NotNull Phase phase) {
+        begin(phase, 0);
+        end(phase, 0);
+    }
+
+    public static class LogSink implements Sink {
+
+        @NotNull
+        private final String mTag;
+
+        public LogSink(@NotNull String tag) {
+            mTag = tag;
+        }
+
+        @Override
+        public void onPhaseStarted(@NotNull Phase phase, int id, long timeNanos) {
+            Log.d(mTag, phase + "(" + id + ") started at " + nanosToMillis(timeNanos) + " ms");
+        }
+
+        @Override
+        public void onPhaseFinished(@NotNull Phase phase, int id, long startTimeNanos, long endTimeNanos) {
+            Log.d(mTag, phase + "(" + id + ") finished at " + nanosToMillis(endTimeNanos)
+                    + " ms, took " + nanosToMillis(endTimeNanos - startTimeNanos) + " ms");
+        }
+    }
+
+    /**
+     * Reports phases as async {@link Trace} sections (available since Q, no-op below)
+     */
+    public static class TraceSink implements Sink {
+
+        @Override
+        public void onPhaseStarted(@NotNull Phase phase, int id, long timeNanos) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                Trace.beginAsyncSection(sectionName(phase), id);
+            }
+        }
+
+        @Override
+        public void onPhaseFinished(@NotNull Phase phase, int id, long startTimeNanos, long endTimeNanos) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                Trace.endAsyncSection(sectionName(phase), id);
+            }
+        }
+
+        @NotNull
+        private static String sectionName(@NotNull Phase phase) {
+            return "Splash:" + phase.name();
+        }
+    }
+
+    /**
+     * Keeps finished phases in memory for later {@link #getRecords()}
+     */
+    public static class ReportSink implements Sink {
+
+        private final List<Record> mRecords = new ArrayList<>();
+
+        @Override
+        public void onPhaseStarted(@NotNull Phase phase, int id, long timeNanos) {
+        }
+
+        @Override
+        public synchronized void onPhaseFinished(@NotNull Phase phase, int id, long startTimeNanos, long endTimeNanos) {
+            mRecords.add(new Record(phase, id, startTimeNanos, endTimeNanos));
+        }
+
+        @NotNull
+        public synchronized List<Record> getRecords() {
+            return Collections.unmodifiableList(new ArrayList<>(mRecords));
+        }
+
+        @NotNull
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Record r : mRecords) {
+                sb.append(r).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+
+    public static class Record {
+
+        @NotNull
+        public final Phase phase;
+        public final int id;
+        public final long startTimeNanos, endTimeNanos;
+
+        public Record(@NotNull Phase phase, int id, long startTimeNanos, long endTimeNanos) {
+            this.phase = phase;
+            this.id = id;
+            this.startTimeNanos = startTimeNanos;
+            this.endTimeNanos = endTimeNanos;
+        }
+
+        public long getDurationNanos() {
+            return endTimeNanos - startTimeNanos;
+        }
+
+        @NotNull
+        @Override
+        public String toString() {
+            return "Record{" +
+                    "phase=" + phase +
+                    ", id=" + id +
+                    ", start=" + nanosToMillis(startTimeNanos) + "ms" +
+                    ", duration=" + nanosToMillis(getDurationNanos()) + "ms" +
+                    '}';
+        }
+    }
+
+    private static double nanosToMillis(long nanos) {
+        return nanos / 1_000_000d;
+    }
+}
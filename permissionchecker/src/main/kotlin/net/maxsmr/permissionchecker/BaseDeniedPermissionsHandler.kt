@@ -1,10 +1,21 @@
 package net.maxsmr.permissionchecker
 
+import android.app.Activity
+import android.os.Handler
+import android.os.Looper
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.LifecycleOwner
+import net.maxsmr.permissionchecker.core.PermissionEventRecorder
+import net.maxsmr.permissionchecker.core.PermissionMetricsRegistry
+import java.util.concurrent.Executor
+
 /**
  * Используется для вывода пользовательского сообщения по отклонённым разрешениям
  */
 abstract class BaseDeniedPermissionsHandler {
 
+    private val mainHandler by lazy { Handler(Looper.getMainLooper()) }
+
     /**
      * @param deniedPerms все отклонённые разрешения
      * @param permanentlyDeniedPerms отклонённые разрешения по "don't ask again" (включены в [deniedPerms])
@@ -20,7 +31,49 @@ abstract class BaseDeniedPermissionsHandler {
         } else {
             formatDeniedPermissionsMessage(deniedPerms)
         }
-        doShowMessage(requestCode, targetMessage, deniedPerms, negativeAction)
+        show(requestCode, targetMessage, deniedPerms, negativeAction)
+    }
+
+    /**
+     * То же, что [showMessage], но [formatDeniedPermissionsMessage] выполняется на [executor]
+     * (например, с обращением к [PermissionLabelsCache]), а [doShowMessage] - на главном потоке,
+     * если [lifecycleOwner] к этому моменту ещё не уничтожен и не завершается
+     *
+     * @param lifecycleOwner экран, на котором показывается сообщение (активити или viewLifecycleOwner фрагмента)
+     */
+    @JvmOverloads
+    fun showMessageAsync(
+            requestCode: Int,
+            messageIfEmpty: String,
+            deniedPerms: PermissionsCallbacks.DeniedPermissions,
+            lifecycleOwner: LifecycleOwner,
+            negativeAction: ((Set<String>) -> Unit)? = null,
+            executor: Executor = PermissionLabelsCache.defaultExecutor,
+    ) {
+        if (deniedPerms.isEmpty) {
+            showMessage(requestCode, messageIfEmpty, deniedPerms, negativeAction)
+            return
+        }
+        executor.execute {
+            val targetMessage = formatDeniedPermissionsMessage(deniedPerms)
+            mainHandler.post {
+                if (lifecycleOwner.lifecycle.currentState != Lifecycle.State.DESTROYED
+                        && (lifecycleOwner as? Activity)?.isFinishing != true) {
+                    show(requestCode, targetMessage, deniedPerms, negativeAction)
+                }
+            }
+        }
+    }
+
+    private fun show(
+            requestCode: Int,
+            message: String,
+            deniedPerms: PermissionsCallbacks.DeniedPermissions,
+            negativeAction: ((Set<String>) -> Unit)?,
+    ) {
+        PermissionEventRecorder.getDefault().record(PermissionEventRecorder.Type.DIALOG_SHOWN, null, requestCode, false)
+        PermissionMetricsRegistry.get().onDialogShown(null, requestCode)
+        doShowMessage(requestCode, message, deniedPerms, negativeAction)
     }
 
     protected abstract fun doShowMessage(
@@ -30,5 +83,9 @@ abstract class BaseDeniedPermissionsHandler {
             negativeAction: ((Set<String>) -> Unit)?,
     )
 
+    /**
+     * Может вызываться не на главном потоке (см. [showMessageAsync]);
+     * для названий разрешений удобно использовать [PermissionLabelsCache]
+     */
     protected abstract fun formatDeniedPermissionsMessage(deniedPerms: PermissionsCallbacks.DeniedPermissions): String
-}
\ No newline at end of file
+}
@@ -0,0 +1,29 @@
+package net.maxsmr.permissionchecker
+
+import android.app.Activity
+import androidx.fragment.app.Fragment
+import pub.devrel.easypermissions.EasyPermissions
+
+/**
+ * Запросы через EasyPermissions (с показом rationale), если библиотека подключена в приложении;
+ * обращение к её классам только после проверки [isAvailable]
+ */
+internal object EasyPermissionsBackend {
+
+    val isAvailable: Boolean by lazy {
+        try {
+            Class.forName("pub.devrel.easypermissions.EasyPermissions")
+            true
+        } catch (e: ClassNotFoundException) {
+            false
+        }
+    }
+
+    fun requestPermissions(activity: Activity, rationale: String, requestCode: Int, perms: Collection<String>) {
+        EasyPermissions.requestPermissions(activity, rationale, requestCode, *perms.toTypedArray())
+    }
+
+    fun requestPermissions(fragment: Fragment, rationale: String, requestCode: Int, perms: Collection<String>) {
+        EasyPermissions.requestPermissions(fragment, rationale, requestCode, *perms.toTypedArray())
+    }
+}
@@ -0,0 +1,116 @@
+package net.maxsmr.permissionchecker
+
+import android.app.Activity
+import android.os.SystemClock
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.LifecycleEventObserver
+import androidx.lifecycle.LifecycleOwner
+
+/**
+ * Реестр ожидающих результата запросов, ключ - requestCode.
+ * Не держит сильных ссылок на [Activity]: [PermissionsHelper.ResultListener] хранит её через WeakReference,
+ * а при наличии [LifecycleOwner] запись удаляется по ON_DESTROY; при пересоздании со сменой конфигурации
+ * запись остаётся, а слушатель передаётся в [onOwnerRecreated], чтобы он отпустил ссылки на прежний инстанс.
+ * Записи старше [timeoutMs] считаются устаревшими и вычищаются при обращении к реестру.
+ */
+internal class PendingResultRegistry<L : Any>(
+        private val timeoutMs: Long,
+        private val onOwnerRecreated: ((L) -> Unit)? = null,
+) {
+
+    private val entries = HashMap<Int, Entry>()
+
+    @Synchronized
+    fun register(requestCode: Int, listener: L, owner: Any?) {
+        evictExpired()
+        entries.remove(requestCode)?.unbind()
+        val entry = Entry(listener, SystemClock.elapsedRealtime())
+        if (owner is LifecycleOwner) {
+            entry.bind(owner) {
+                synchronized(this) {
+                    if (entries[requestCode] === entry) {
+                        entries.remove(requestCode)
+                    }
+                }
+            }
+        }
+        entries[requestCode] = entry
+    }
+
+    /**
+     * @return слушатель для [requestCode] (с удалением из реестра) или null, если запроса не было или он устарел
+     */
+    @Synchronized
+    fun take(requestCode: Int): L? {
+        val entry = entries.remove(requestCode) ?: return null
+        entry.unbind()
+        return if (entry.isExpired(SystemClock.elapsedRealtime())) null else entry.listener
+    }
+
+    @Synchronized
+    fun contains(requestCode: Int): Boolean {
+        evictExpired()
+        return entries.containsKey(requestCode)
+    }
+
+    @Synchronized
+    fun remove(requestCode: Int) {
+        entries.remove(requestCode)?.unbind()
+    }
+
+    @Synchronized
+    fun clear() {
+        entries.values.forEach { it.unbind() }
+        entries.clear()
+    }
+
+    private fun evictExpired() {
+        if (entries.isEmpty()) return
+        val now = SystemClock.elapsedRealtime()
+        val it = entries.values.iterator()
+        while (it.hasNext()) {
+            val entry = it.next()
+            if (entry.isExpired(now)) {
+                entry.unbind()
+                it.remove()
+            }
+        }
+    }
+
+    private inner class Entry(
+            val listener: L,
+            private val registeredAt: Long,
+    ) {
+
+        private var lifecycle: Lifecycle? = null
+        private var observer: LifecycleEventObserver? = null
+
+        fun isExpired(now: Long) = timeoutMs > 0 && now - registeredAt > timeoutMs
+
+        fun bind(owner: LifecycleOwner, onDestroyed: () -> Unit) {
+            val observer = LifecycleEventObserver { source, event ->
+                if (event == Lifecycle.Event.ON_DESTROY) {
+                    source.lifecycle.removeObserver(this.observer ?: return@LifecycleEventObserver)
+                    lifecycle = null
+                    this.observer = null
+                    // при смене конфигурации результат придёт в новый инстанс - запись оставляем
+                    if ((source as? Activity)?.isChangingConfigurations == true) {
+                        onOwnerRecreated?.invoke(listener)
+                    } else {
+                        onDestroyed()
+                    }
+                }
+            }
+            this.lifecycle = owner.lifecycle
+            this.observer = observer
+            owner.lifecycle.addObserver(observer)
+        }
+
+        fun unbind() {
+            val observer = observer ?: return
+            lifecycle?.removeObserver(observer)
+            lifecycle = null
+            this.observer = null
+        }
+    }
+}
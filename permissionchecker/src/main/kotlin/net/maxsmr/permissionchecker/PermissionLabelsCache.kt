@@ -0,0 +1,178 @@
+package net.maxsmr.permissionchecker
+
+import android.content.ComponentCallbacks
+import android.content.Context
+import android.content.pm.PackageManager
+import android.content.res.Configuration
+import android.util.LruCache
+import androidx.core.os.ConfigurationCompat
+import net.maxsmr.permissionchecker.core.RequestPlanner
+import java.util.Locale
+import java.util.WeakHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+
+/**
+ * Ограниченный LRU-кэш пользовательских названий разрешений и их групп
+ * для форматирования сообщений в [BaseDeniedPermissionsHandler].
+ * Запросы к [PackageManager] (IPC и загрузка ресурсов) выполняются один раз на разрешение;
+ * кэш сбрасывается при смене локали, а начатые до неё загрузки в кэш не попадают.
+ * Все экземпляры получают смену конфигурации через одни общие [ComponentCallbacks] и не удерживаются ими,
+ * так что [release] не обязателен.
+ */
+class PermissionLabelsCache @JvmOverloads constructor(
+        context: Context,
+        maxSize: Int = DEFAULT_MAX_SIZE,
+) {
+
+    private val context: Context = context.applicationContext
+
+    private val cache = LruCache<String, PermissionLabel>(maxSize)
+
+    @Volatile
+    private var locale: Locale? = currentLocale(this.context.resources.configuration)
+
+    /**
+     * Увеличивается при каждом сбросе кэша; доступ под блокировкой [cache]
+     */
+    private var generation = 0
+
+    init {
+        register(this.context, this)
+    }
+
+    fun getLabel(permission: String): PermissionLabel {
+        cache.get(permission)?.let { return it }
+        val loadGeneration = synchronized(cache) { generation }
+        val label = loadLabel(permission)
+        synchronized(cache) {
+            // загружено в прежней локали
+            if (loadGeneration == generation) {
+                cache.put(permission, label)
+            }
+        }
+        return label
+    }
+
+    fun getLabels(permissions: Collection<String>): List<PermissionLabel> = permissions.map { getLabel(it) }
+
+    /**
+     * Загрузить названия [permissions] заранее на фоновом потоке
+     */
+    @JvmOverloads
+    fun prewarm(permissions: Collection<String>, executor: Executor = defaultExecutor) {
+        val toLoad = permissions.filter { cache.get(it) == null }
+        if (toLoad.isEmpty()) return
+        executor.execute {
+            toLoad.forEach { getLabel(it) }
+        }
+    }
+
+    fun onConfigurationChanged(newConfig: Configuration) {
+        val newLocale = currentLocale(newConfig)
+        if (newLocale != locale) {
+            locale = newLocale
+            evictAll()
+        }
+    }
+
+    fun release() {
+        unregister(this)
+        evictAll()
+    }
+
+    private fun evictAll() {
+        synchronized(cache) {
+            generation++
+            cache.evictAll()
+        }
+    }
+
+    private fun loadLabel(permission: String): PermissionLabel {
+        val pm = context.packageManager
+        return try {
+            val info = pm.getPermissionInfo(permission, 0)
+            val groupName = resolveGroup(permission, info.group)
+            val groupLabel = if (groupName != null) {
+                try {
+                    pm.getPermissionGroupInfo(groupName, 0).loadLabel(pm).toString()
+                } catch (e: PackageManager.NameNotFoundException) {
+                    null
+                }
+            } else {
+                null
+            }
+            PermissionLabel(permission, info.loadLabel(pm).toString(), groupName, groupLabel)
+        } catch (e: PackageManager.NameNotFoundException) {
+            PermissionLabel(permission, permission, null, null)
+        }
+    }
+
+    /**
+     * С API 29 у платформенных разрешений группа в [android.content.pm.PermissionInfo] - [UNDEFINED_GROUP],
+     * такие группы берутся из известных платформенных групп [RequestPlanner.getPlatformGroup]
+     * (асинхронный getGroupOfPlatformPermission с API 31 для синхронной загрузки не подходит)
+     */
+    private fun resolveGroup(permission: String, declaredGroup: String?): String? =
+            declaredGroup?.takeIf { it != UNDEFINED_GROUP } ?: RequestPlanner.getPlatformGroup(permission)
+
+    data class PermissionLabel(
+            val permission: String,
+            val label: String,
+            val group: String?,
+            val groupLabel: String?,
+    )
+
+    companion object {
+
+        const val DEFAULT_MAX_SIZE = 64
+
+        /**
+         * Группа "без группы" у платформенных разрешений с API 29
+         */
+        const val UNDEFINED_GROUP = "android.permission-group.UNDEFINED"
+
+        internal val defaultExecutor: Executor by lazy { Executors.newSingleThreadExecutor() }
+
+        /**
+         * Живые экземпляры; ключи слабые, поэтому неосвобождённые экземпляры не утекают
+         */
+        private val instances = WeakHashMap<PermissionLabelsCache, Unit>()
+
+        private var isCallbacksRegistered = false
+
+        private val configurationCallbacks = object : ComponentCallbacks {
+
+            override fun onConfigurationChanged(newConfig: Configuration) {
+                forEachInstance { it.onConfigurationChanged(newConfig) }
+            }
+
+            override fun onLowMemory() {
+                forEachInstance { it.evictAll() }
+            }
+        }
+
+        private fun register(context: Context, cache: PermissionLabelsCache) {
+            synchronized(instances) {
+                instances[cache] = Unit
+                if (!isCallbacksRegistered) {
+                    // регистрируются один раз на процесс на контексте приложения
+                    context.registerComponentCallbacks(configurationCallbacks)
+                    isCallbacksRegistered = true
+                }
+            }
+        }
+
+        private fun unregister(cache: PermissionLabelsCache) {
+            synchronized(instances) {
+                instances.remove(cache)
+            }
+        }
+
+        private inline fun forEachInstance(action: (PermissionLabelsCache) -> Unit) {
+            synchronized(instances) { instances.keys.toList() }.forEach(action)
+        }
+
+        private fun currentLocale(config: Configuration): Locale? = ConfigurationCompat.getLocales(config)[0]
+    }
+}
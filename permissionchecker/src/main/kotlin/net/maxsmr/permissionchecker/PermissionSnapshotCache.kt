@@ -0,0 +1,180 @@
+package net.maxsmr.permissionchecker
+
+import android.content.Context
+import android.content.pm.PackageManager
+import androidx.core.content.ContextCompat
+import androidx.core.content.pm.PackageInfoCompat
+import androidx.core.util.AtomicFile
+import androidx.lifecycle.LiveData
+import androidx.lifecycle.MutableLiveData
+import net.maxsmr.permissionchecker.core.PermissionPlatform
+import net.maxsmr.permissionchecker.core.PermissionSnapshot
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+
+/**
+ * Сохранённое между запусками последнее известное состояние разрешений (ключ - версия приложения),
+ * чтобы на холодном старте UI мог отрисоваться сразу, не дожидаясь IPC-проверок.
+ *
+ * [load] читает снимок на фоновом потоке и публикует его в [states], затем сверяет с фактическим
+ * состоянием и публикует исправленное значение, только если что-то изменилось.
+ * Снимок не должен использоваться для решения о доступе к защищённым API - только для отрисовки.
+ */
+class PermissionSnapshotCache private constructor(
+        context: Context,
+        private val platform: PermissionPlatform<*>,
+) {
+
+    private val context: Context = context.applicationContext
+
+    private val file = AtomicFile(File(ContextCompat.getNoBackupFilesDir(this.context), FILE_NAME))
+
+    private val lock = Any()
+
+    private val _states = MutableLiveData<PermissionResult>()
+
+    /**
+     * Сначала - состояние из снимка (если он есть), затем - новое состояние только при фактических изменениях
+     */
+    val states: LiveData<PermissionResult> = _states
+
+    @Volatile
+    private var snapshot: PermissionSnapshot? = null
+
+    /**
+     * null - [load] ещё не прочитал версию, снимок пока только в памяти
+     */
+    @Volatile
+    private var appVersion: Long? = null
+
+    private var isLoadStarted = false
+
+    /**
+     * Загруженный и, возможно, ещё не сверенный снимок; null - ещё не загружен
+     */
+    fun peek(): PermissionSnapshot? = snapshot
+
+    /**
+     * @return null, если снимок ещё не загружен или состояние разрешения в нём неизвестно
+     */
+    fun isGranted(permission: String): Boolean? = snapshot?.isGranted(permission)
+
+    /**
+     * Асинхронно загрузить снимок и сверить его с фактическим состоянием; повторные вызовы игнорируются
+     */
+    @JvmOverloads
+    fun load(executor: Executor = defaultExecutor) {
+        synchronized(lock) {
+            if (isLoadStarted) return
+            isLoadStarted = true
+        }
+        executor.execute {
+            val appVersion = readAppVersion()
+            // null - файла нет или он от другой версии приложения
+            val stored = PermissionSnapshot.fromBytes(read(), appVersion)
+            val loaded = synchronized(lock) {
+                // результаты запросов могли прийти раньше окончания чтения
+                this.appVersion = appVersion
+                (stored ?: PermissionSnapshot.empty(appVersion)).merge(snapshot?.states.orEmpty()).also { snapshot = it }
+            }
+            if (!loaded.isEmpty) {
+                _states.postValue(loaded.states)
+            }
+            reconcile(appVersion, stored)
+        }
+    }
+
+    /**
+     * Учесть известные состояния (например, результат запроса); записывается только при изменении
+     */
+    fun update(states: PermissionResult) {
+        if (states.isEmpty()) return
+        val (merged, isLoaded) = synchronized(lock) {
+            val current = snapshot ?: PermissionSnapshot.empty(appVersion ?: 0)
+            val merged = current.merge(states)
+            if (merged === current) return
+            snapshot = merged
+            merged to (appVersion != null)
+        }
+        _states.postValue(merged.states)
+        // до чтения версии не записывается, load запишет после сверки
+        if (isLoaded) {
+            defaultExecutor.execute { write(merged) }
+        }
+    }
+
+    /**
+     * @param stored прочитанный из файла снимок текущей версии; файл перезаписывается, только если он отличается
+     */
+    private fun reconcile(appVersion: Long, stored: PermissionSnapshot?) {
+        val permissions = platform.requestedPermissions.filter {
+            platform.isRequiredByApiVersion(it) && platform.getKind(it) != PermissionPlatform.Kind.INSTALL_TIME
+        }
+        val actual = PermissionSnapshot.check(platform, permissions)
+        val (current, reconciled) = synchronized(lock) {
+            val current = snapshot ?: PermissionSnapshot.empty(appVersion)
+            current to current.merge(actual).retainAll(permissions).also { snapshot = it }
+        }
+        if (reconciled != current) {
+            _states.postValue(reconciled.states)
+        }
+        if (reconciled != stored) {
+            write(reconciled)
+        }
+    }
+
+    private fun readAppVersion(): Long = try {
+        PackageInfoCompat.getLongVersionCode(context.packageManager.getPackageInfo(context.packageName, 0))
+    } catch (e: PackageManager.NameNotFoundException) {
+        0
+    }
+
+    private fun read(): ByteArray? = try {
+        file.readFully()
+    } catch (e: IOException) {
+        null
+    }
+
+    private fun write(snapshot: PermissionSnapshot) {
+        synchronized(file) {
+            val stream = try {
+                file.startWrite()
+            } catch (e: IOException) {
+                return
+            }
+            try {
+                stream.write(snapshot.toBytes())
+                file.finishWrite(stream)
+            } catch (e: IOException) {
+                file.failWrite(stream)
+            }
+        }
+    }
+
+    companion object {
+
+        private const val FILE_NAME = "permission_snapshot"
+
+        /**
+         * Чтение и запись снимка; свой поток, чтобы не ждать загрузки названий разрешений
+         */
+        private val defaultExecutor: Executor by lazy { Executors.newSingleThreadExecutor() }
+
+        @Volatile
+        private var instance: PermissionSnapshotCache? = null
+
+        @JvmStatic
+        fun getInstance(context: Context): PermissionSnapshotCache =
+                instance ?: synchronized(this) {
+                    instance ?: PermissionSnapshotCache(context, AndroidPermissionPlatform.getInstance(context)).also { instance = it }
+                }
+
+        /**
+         * @return экземпляр, если он уже был создан приложением; иначе снимки не ведутся
+         */
+        @JvmStatic
+        fun peekInstance(): PermissionSnapshotCache? = instance
+    }
+}
@@ -1,17 +1,24 @@
 package net.maxsmr.permissionchecker
 
-import android.Manifest.permission.WRITE_EXTERNAL_STORAGE
 import android.app.Activity
 import android.content.Context
 import android.content.SharedPreferences
-import android.content.pm.PackageManager
-import android.os.Build
-import android.os.Environment
 import android.view.View
+import androidx.activity.ComponentActivity
 import androidx.core.app.ActivityCompat
 import androidx.fragment.app.Fragment
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.LifecycleEventObserver
+import androidx.lifecycle.LifecycleOwner
 import androidx.lifecycle.MutableLiveData
-import pub.devrel.easypermissions.EasyPermissions
+import net.maxsmr.permissionchecker.core.PermissionEventRecorder
+import net.maxsmr.permissionchecker.core.PermissionMetricsRegistry
+import net.maxsmr.permissionchecker.core.PermissionPlatform
+import net.maxsmr.permissionchecker.core.PermissionStore
+import net.maxsmr.permissionchecker.core.PermissionsHelperCore
+import net.maxsmr.permissionchecker.core.RequestCodes
+import java.lang.ref.WeakReference
+import java.util.WeakHashMap
 
 
 /**
@@ -19,12 +26,55 @@ import pub.devrel.easypermissions.EasyPermissions
  */
 typealias PermissionResult = Map<String, Boolean>
 
-class PermissionsHelper(private val permanentlyDeniedPrefs: SharedPreferences?) {
+/**
+ * @param platform платформа для проверок и запросов; по умолчанию [AndroidPermissionPlatform],
+ * в тестах можно передать подделку или декоратор, считающий вызовы
+ * @param permanentlyDeniedStore хранилище навсегда запрещённых разрешений; по умолчанию - поверх [permanentlyDeniedPrefs],
+ * для нескольких процессов см. [multiProcess]
+ */
+class PermissionsHelper @JvmOverloads constructor(
+        permanentlyDeniedPrefs: SharedPreferences?,
+        pendingRequestTimeoutMs: Long = DEFAULT_PENDING_REQUEST_TIMEOUT_MS,
+        private val platform: PermissionPlatform<Activity>? = null,
+        private val permanentlyDeniedStore: PermissionStore? = permanentlyDeniedPrefs?.let { SharedPreferencesPermissionStore(it) },
+) {
 
+    /**
+     * Результат последнего запроса; для экономии аллокаций формируется, только если есть активные подписчики
+     */
     val lastPermissionsResult = MutableLiveData<PermissionResult>()
 
+    private val pendingResults = PendingResultRegistry<ResultListener>(pendingRequestTimeoutMs) { it.detachCallbacks() }
+
+    /**
+     * Завершённые без колбэков (см. [rebindCallbacks]) запросы; хост не отслеживается
+     */
+    private val undeliveredResults = PendingResultRegistry<ResultListener>(pendingRequestTimeoutMs)
+
+    private val permissionsStates = mutableMapOf<Set<String>, PermissionsStateLiveData>()
+
+    /**
+     * Ключ - активити или фрагмент
+     */
+    private val launchers = WeakHashMap<Any, PermissionsLauncher>()
+
+    private val launcherReceiver = object : PermissionsLauncher.Receiver {
+
+        override fun onResult(activity: Activity, requestCode: Int, permissions: Array<String>, grantResults: IntArray) =
+                dispatch(activity, requestCode, permissions, grantResults)
+
+        override fun onOrphanedResult(activity: Activity, requestCode: Int, permissions: Array<String>, grantResults: IntArray) {
+            val parsed = core(activity).onRequestPermissionsResult(activity, permissions, grantResults, requestCode)
+            publishResult(parsed.toPermissionResult())
+            forEachPermissionsState { it.onPermissionsResult(parsed) }
+        }
+    }
+
+    @Volatile
+    private var core: PermissionsHelperCore<Activity>? = null
+
     val permanentlyDeniedPermissions: Set<String>
-        get() = permanentlyDeniedPrefs?.all?.keys ?: throw IllegalStateException("permanentlyDeniedPrefs is not specified")
+        get() = permanentlyDeniedStore?.all ?: throw IllegalStateException("permanentlyDeniedPrefs or permanentlyDeniedStore is not specified")
 
     fun doOnPermissionsResult(
             activity: Activity,
@@ -63,6 +113,10 @@ class PermissionsHelper(private val permanentlyDeniedPrefs: SharedPreferences?)
      * 1. иначе запрашивает недостающие разрешения, возвращает [PermissionsHelper.ResultListener] для обработки
      * результата предоставления разрешений
      *
+     * Запрос выполняется через лаунчер из [registerLauncher], если он зарегистрирован; иначе через EasyPermissions
+     * (если подключена в приложении) или напрямую - тогда результат надо передать в [dispatch] из onRequestPermissionsResult
+     *
+     * @param rationale для диалога перехода в настройки; перед системным запросом показывается только EasyPermissions
      * @return объект, в который надо отчитаться о результате или null, если запрос разрешений не требуется
      */
     fun doOnPermissionsResult(
@@ -72,53 +126,158 @@ class PermissionsHelper(private val permanentlyDeniedPrefs: SharedPreferences?)
             perms: Collection<String>,
             callbacks: PermissionsCallbacks,
     ): ResultListener? {
-        val filtered = filterPermissionsByApiVersion(perms)
-        if (filtered.isEmpty() || hasPermissions(activity, false, filtered)) {
-            callbacks.onAllGranted()
-            return null
+        // выдаваемые при установке (normal, signature) не проверяем и не запрашиваем
+        val filtered = when (val decision = core(activity).decide(perms)) {
+            is PermissionsHelperCore.Decision.AllGranted -> {
+                callbacks.onAllGranted()
+                return null
+            }
+            is PermissionsHelperCore.Decision.PermanentlyDenied -> {
+                // В кейсе наличия ходя бы одного отклоненного с опцией "Больше не спрашивать" разрешения,
+                // вызов YesNo диалога с переходом в настройки (в дефолтной реализации)
+                // В диалог передаем не только permanentlyDenied, но и просто denied разрешения, т.к. после возврата
+                // из настроек они также учитываются в полном перечне необходимых для выполнения действия разрешений
+                callbacks.onPermanentlyDeniedPermissions?.invoke(
+                        PermissionsCallbacks.DeniedPermissions(decision.notGranted, decision.permanentlyDenied))
+                decision.permissions
+            }
+            is PermissionsHelperCore.Decision.Request -> {
+                // пакеты запрашиваются по очереди под одним requestCode, см. RequestPlanner
+                val listener = ResultListener(activity, decision.permissions, callbacks, requestCode)
+                return if (listener.startPlan(activity, rationale, decision.batches, decision.granted)) listener else null
+            }
         }
+        return ResultListener(activity, filtered, callbacks, requestCode).also {
+            pendingResults.register(requestCode, it, activity)
+        }
+    }
+
+    /**
+     * Зарегистрировать лаунчер Activity Result API для запросов от [activity] (и её фрагментов без своего лаунчера):
+     * результат будет передан в [dispatch] автоматически, без переопределения onRequestPermissionsResult.
+     * Вызывать до STARTED (например, в onCreate), в т.ч. после каждого пересоздания;
+     * несколько [PermissionsHelper] на одной активити используют общий лаунчер.
+     *
+     * После смены конфигурации результат доходит до исходных [PermissionsCallbacks]. После смерти процесса
+     * они потеряны: результат только сохраняется (навсегда запрещённые, [lastPermissionsResult],
+     * [observePermissions]), а действие после запроса экран должен повторить сам по наблюдаемому состоянию
+     */
+    fun registerLauncher(activity: ComponentActivity) {
+        if (synchronized(launchers) { launchers.containsKey(activity) }) return
+        val launcher = PermissionsLauncher.register(activity, launcherReceiver)
+        synchronized(launchers) { launchers[activity] = launcher }
+    }
+
+    /**
+     * То же, что [registerLauncher] для активити; вызывать до STARTED (например, в onCreate)
+     */
+    fun registerLauncher(fragment: Fragment) {
+        if (synchronized(launchers) { launchers.containsKey(fragment) }) return
+        val launcher = PermissionsLauncher.register(fragment, launcherReceiver)
+        synchronized(launchers) { launchers[fragment] = launcher }
+    }
+
+    /**
+     * Единая точка маршрутизации результата запроса из хостовой активити:
+     * находит ожидающий [ResultListener] по [requestCode]
+     * @return результат [ResultListener.onRequestPermissionsResult] или null, если ожидающего запроса нет
+     */
+    fun dispatch(
+            activity: Activity,
+            requestCode: Int,
+            permissions: Array<out String>,
+            grantResults: IntArray
+    ): Boolean? {
+        return pendingResults.take(requestCode)?.onRequestPermissionsResult(activity, permissions, grantResults)
+    }
+
+    /**
+     * То же, что [dispatch], для возврата с экрана настроек; после запроса специального разрешения
+     * (см. [PermissionPlatform.Kind.SPECIAL]) от активити - [LifecycleOwner] вызывается автоматически
+     * @return результат [ResultListener.onActivityResult] или null, если ожидающего запроса нет
+     */
+    fun dispatchActivityResult(context: Context, requestCode: Int): Boolean? {
+        invalidatePermissionsStates()
+        return pendingResults.take(requestCode)?.onActivityResult(context)
+    }
 
-        val deniedNotAskAgain = filterDeniedNotAskAgain(activity, filtered)
-        if (deniedNotAskAgain.isNotEmpty()) {
-            // В кейсе наличия ходя бы одного отклоненного с опцией "Больше не спрашивать" разрешения,
-            // вызов YesNo диалога с переходом в настройки (в дефолтной реализации)
-            // В диалог передаем не только permanentlyDenied, но и просто denied разрешения, т.к. после возврата
-            // из настроек они также учитываются в полном перечне необходимых для выполнения действия разрешений
-            val notGranted = filtered.filter { !hasPermissions(activity, false, listOf(it)) }.toSet()
-            callbacks.onPermanentlyDeniedPermissions?.invoke(PermissionsCallbacks.DeniedPermissions(notGranted, deniedNotAskAgain))
-        } else {
-            requestPermissions(activity, rationale, requestCode, filtered)
+    /**
+     * @return общий для всех экранов поток состояния [perms]: проверка выполняется только при наличии
+     * активных подписчиков (а также при ON_RESUME подписанного владельца) и публикуется только при фактическом
+     * изменении; поток хранится до отписки последнего подписчика
+     */
+    fun observePermissions(context: Context, perms: Collection<String>): PermissionsStateLiveData {
+        val core = core(context)
+        val key = core.filterPermissionsByApiVersion(perms)
+        return synchronized(permissionsStates) {
+            permissionsStates.getOrPut(key) {
+                PermissionsStateLiveData(context, key, { _, perm -> core.platform.isGranted(perm) }, ::onPermissionsStateObserversChanged)
+            }
         }
-        return ResultListener(activity, filtered.toSet(), callbacks)
     }
 
-    fun filterDeniedNotAskAgain(context: Context, permission: Collection<String>): Set<String> {
-        val result = mutableSetOf<String>()
-        for (perm in permission) {
-            if (isDeniedNotAskAgain(context, perm)) {
-                result.add(perm)
+    /**
+     * Наборы без подписчиков не хранятся; отписанный целиком и снова подписанный набор возвращается в общий доступ,
+     * если для его ключа ещё нет другого
+     */
+    private fun onPermissionsStateObserversChanged(states: PermissionsStateLiveData, isObserved: Boolean) {
+        synchronized(permissionsStates) {
+            if (isObserved) {
+                permissionsStates.getOrPut(states.permissions) { states }
+            } else if (permissionsStates[states.permissions] === states) {
+                permissionsStates.remove(states.permissions)
             }
         }
-        return result
     }
 
-    fun isDeniedNotAskAgain(context: Context, permission: String): Boolean {
-        if (permanentlyDeniedPrefs == null || !permanentlyDeniedPrefs.contains(permission)) return false
-        return !hasPermissions(context, permission)
+    /**
+     * Перепроверить все наблюдаемые наборы разрешений, например, после возврата с экрана настроек,
+     * если подписчики остаются активными (observeForever)
+     */
+    fun invalidatePermissionsStates() {
+        forEachPermissionsState { it.invalidate() }
+    }
+
+    /**
+     * При пересоздании активити со сменой конфигурации ожидающий запрос остаётся, но его колбэки отвязываются,
+     * чтобы не удерживать прежний инстанс; новый инстанс должен передать свои (например, в onCreate).
+     * Пришедший до этого результат доставляется в [callbacks] сразу
+     *
+     * @return false, если запроса с [requestCode] нет или он устарел
+     */
+    fun rebindCallbacks(activity: Activity, requestCode: Int, callbacks: PermissionsCallbacks): Boolean {
+        undeliveredResults.take(requestCode)?.let {
+            it.rebind(activity, callbacks)
+            return true
+        }
+        val listener = pendingResults.take(requestCode) ?: return false
+        pendingResults.register(requestCode, listener, activity)
+        listener.rebind(activity, callbacks)
+        return true
+    }
+
+    fun hasPendingRequest(requestCode: Int) = pendingResults.contains(requestCode)
+
+    fun cancelPendingRequest(requestCode: Int) {
+        pendingResults.remove(requestCode)
     }
 
+    fun filterDeniedNotAskAgain(context: Context, permission: Collection<String>): Set<String> =
+            core(context).filterDeniedNotAskAgain(permission)
+
+    fun isDeniedNotAskAgain(context: Context, permission: String): Boolean =
+            core(context).isDeniedNotAskAgain(permission)
+
     fun hasPermissions(context: Context, vararg perms: String) =
-            hasPermissions(context, true, perms.toSet())
+            core(context).hasPermissions(true, perms.toSet())
 
     fun hasPermissions(context: Context, perms: Collection<String>) =
-            hasPermissions(context, true, perms)
+            core(context).hasPermissions(true, perms)
 
-    private fun hasPermissions(context: Context, filter: Boolean, perms: Collection<String>): Boolean {
-        val target = if (filter) filterPermissionsByApiVersion(perms) else perms
-        val granted = target.filter { EasyPermissions.hasPermissions(context, it) }
-        removeFromDenied(granted)
-        return target.size == granted.size
-    }
+    private fun core(context: Context): PermissionsHelperCore<Activity> =
+            core ?: synchronized(this) {
+                core ?: PermissionsHelperCore(platform ?: AndroidPermissionPlatform.getInstance(context), permanentlyDeniedStore).also { core = it }
+            }
 
     private fun requestPermissions(
             obj: Any?,
@@ -126,73 +285,69 @@ class PermissionsHelper(private val permanentlyDeniedPrefs: SharedPreferences?)
             requestCode: Int,
             perms: Set<String>
     ) {
-        when (obj) {
-            is View -> {
-                requestPermissions(obj.context as? Activity, rationale, requestCode, perms)
-            }
-            is Fragment -> {
-                EasyPermissions.requestPermissions(obj, rationale, requestCode, *perms.toTypedArray())
-            }
-            is Activity -> {
-                EasyPermissions.requestPermissions(obj, rationale, requestCode, *perms.toTypedArray())
-            }
-            else -> {
-                throw IllegalArgumentException("Incompatible type for $obj to requestPermissions")
-            }
+        val host = (if (obj is View) obj.context as? Activity else obj)?.takeIf { it is Fragment || it is Activity }
+                ?: throw IllegalArgumentException("Incompatible type for $obj to requestPermissions")
+        val recorder = PermissionEventRecorder.getDefault()
+        val metrics = PermissionMetricsRegistry.get()
+        perms.forEach {
+            recorder.record(PermissionEventRecorder.Type.REQUEST_SENT, it, requestCode)
+            metrics.onRequestSent(it, requestCode)
         }
-    }
-
-    @Suppress("DEPRECATION")
-    private fun shouldShowRequestPermissionRationale(obj: Any, perm: String): Boolean {
-        return when (obj) {
-            is Activity -> {
-                ActivityCompat.shouldShowRequestPermissionRationale(obj, perm)
-            }
-            is Fragment -> {
-                obj.shouldShowRequestPermissionRationale(perm)
+        val launcher = findLauncher(host)
+        when {
+            launcher != null -> {
+                launcher.launch(launcherReceiver, requestCode, perms)
             }
-            is View -> {
-                shouldShowRequestPermissionRationale(obj.context as Activity, perm)
-            }
-            is android.app.Fragment -> {
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                    obj.shouldShowRequestPermissionRationale(perm)
+            host is Fragment -> {
+                if (EasyPermissionsBackend.isAvailable) {
+                    EasyPermissionsBackend.requestPermissions(host, rationale, requestCode, perms)
                 } else {
-                    shouldShowRequestPermissionRationale(obj.activity, perm)
+                    @Suppress("DEPRECATION")
+                    host.requestPermissions(perms.toTypedArray(), requestCode)
                 }
             }
-            else -> {
-                throw IllegalArgumentException("Incompatible type for $obj to shouldShowRequestPermissionRationale")
+            host is Activity -> {
+                if (EasyPermissionsBackend.isAvailable) {
+                    EasyPermissionsBackend.requestPermissions(host, rationale, requestCode, perms)
+                } else {
+                    ActivityCompat.requestPermissions(host, perms.toTypedArray(), requestCode)
+                }
             }
         }
     }
 
     /**
-     * Фильтрует разрешения, которые не надо запрашивать для определенных версий апи (см. флаги в манифесте приложения)
+     * Специальное разрешение выдаётся на экране настроек, результат - при возврате в [activity]
      */
-    private fun filterPermissionsByApiVersion(perms: Collection<String>): Set<String> {
-        return if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q
-                || Build.VERSION.SDK_INT == Build.VERSION_CODES.Q && Environment.isExternalStorageLegacy()) {
-            // ниже Q или равно Q и legacy
-            // write всегда, если есть (уже включает read)
-            perms.toSet()
-        } else {
-            // > Q (или Q и не legacy) - форсированное использование scoped storage, разрешение на запись не требуется. На чтение нужно для
-            // чтения чужих файлов или своих файлов после переустановки приложения
-            perms.filter {
-                // read возможно нужен для scoped, не убираем
-                it != WRITE_EXTERNAL_STORAGE
-            }.toSet()
+    private fun requestSpecialPermission(activity: Activity, requestCode: Int, permission: String) {
+        PermissionEventRecorder.getDefault().record(PermissionEventRecorder.Type.REQUEST_SENT, permission, requestCode)
+        PermissionMetricsRegistry.get().onRequestSent(permission, requestCode)
+        core(activity).platform.requestPermissions(activity, arrayOf(permission), requestCode)
+        (activity as? LifecycleOwner)?.lifecycle?.addObserver(SettingsReturnObserver(requestCode))
+    }
+
+    private fun findLauncher(host: Any): PermissionsLauncher? = synchronized(launchers) {
+        launchers.values.removeAll { it.isDestroyed }
+        launchers[host] ?: (host as? Fragment)?.activity?.let { launchers[it] }
+    }
+
+    private fun hasResultConsumers() = lastPermissionsResult.hasActiveObservers()
+            || PermissionSnapshotCache.peekInstance() != null || SharedPermissionStateFile.peekInstance() != null
+
+    private fun publishResult(result: PermissionResult) {
+        if (lastPermissionsResult.hasActiveObservers()) {
+            lastPermissionsResult.value = result
         }
+        PermissionSnapshotCache.peekInstance()?.update(result)
+        SharedPermissionStateFile.peekInstance()?.publishStates(result)
     }
 
-    private fun removeFromDenied(perms: Collection<String>) {
-        if (permanentlyDeniedPrefs == null) return
-        perms.filter { permanentlyDeniedPrefs.contains(it) }.takeIf { it.isNotEmpty() }?.let {
-            val editor = permanentlyDeniedPrefs.edit()
-            it.forEach(editor::remove)
-            editor.apply()
+    private inline fun forEachPermissionsState(action: (PermissionsStateLiveData) -> Unit) {
+        val states = synchronized(permissionsStates) {
+            if (permissionsStates.isEmpty()) return
+            permissionsStates.values.toList()
         }
+        states.forEach(action)
     }
 
     /**
@@ -200,11 +355,56 @@ class PermissionsHelper(private val permanentlyDeniedPrefs: SharedPreferences?)
      * в зав-ти от реализации в целевом фрагменте/активити;
      */
     inner class ResultListener(
-            val activity: Activity,
+            activity: Activity,
             val allPermissions: Set<String>,
-            val callbacks: PermissionsCallbacks
+            callbacks: PermissionsCallbacks,
+            val requestCode: Int = RequestCodes.NO_REQUEST_CODE,
     ) {
 
+        private var activityRef = WeakReference(activity)
+
+        /**
+         * null после пересоздания активити до [rebindCallbacks]: колбэки обычно захватывают прежний инстанс
+         */
+        var callbacks: PermissionsCallbacks? = callbacks
+            private set
+
+        /**
+         * Отклонённые из результата, пришедшего без [callbacks]
+         */
+        private var undeliveredDenied: Set<String>? = null
+
+        /**
+         * Момент последнего запроса или показа предложения перейти в настройки
+         */
+        private var startedNanos = System.nanoTime()
+
+        private var rationale = ""
+
+        /**
+         * Ещё не запрошенные пакеты плана
+         */
+        private val remainingBatches = ArrayDeque<Set<String>>()
+
+        private val planGranted = mutableSetOf<String>()
+
+        private val planDenied = mutableSetOf<String>()
+
+        /**
+         * Последний запрошенный пакет
+         */
+        private var requestedBatch: Set<String> = emptySet()
+
+        /**
+         * Пакет со специальным разрешением, ожидающий возврата с экрана настроек
+         */
+        private var settingsBatch: Set<String>? = null
+
+        /**
+         * Исходная активити запроса; null, если она уже уничтожена (например, после смены конфигурации)
+         */
+        val activity: Activity? get() = activityRef.get()
+
         init {
             check(allPermissions.isNotEmpty()) {
                 "Instantiation of PermissionHandle without permissions is useless"
@@ -216,38 +416,187 @@ class PermissionsHelper(private val permanentlyDeniedPrefs: SharedPreferences?)
          * (любой результат)
          * @return true, если заранее известные [allPermissions] были предоставлены
          */
-        fun onActivityResult(): Boolean {
-            val denied = allPermissions.filter { !hasPermissions(activity, false, listOf(it)) }
-            return callbacks.onAfterPermissionResult(denied.toSet())
+        fun onActivityResult(): Boolean = onActivityResult(requireActivity())
+
+        fun onActivityResult(context: Context): Boolean {
+            settingsBatch?.let {
+                settingsBatch = null
+                return onSettingsBatchResult(context, it)
+            }
+            val denied = core(context).filterDenied(allPermissions)
+            PermissionEventRecorder.getDefault().record(PermissionEventRecorder.Type.SETTINGS_RETURNED, null, requestCode, denied.isEmpty())
+            PermissionMetricsRegistry.get().onSettingsRoundTrip(requestCode, denied.isEmpty(), System.nanoTime() - startedNanos)
+            return deliver(denied)
         }
 
         /**
          * Предполагается один вызов из хостовой BaseActivity
          * @return true, если все [permissions] были предоставлены
          */
-        fun onRequestPermissionsResult(permissions: Array<out String>, grantResults: IntArray): Boolean {
-            val deniedNotAskAgain = mutableListOf<String>()
-            val permissionResults = mutableMapOf<String, Boolean>()
-            val filterResult = filterPermissionsByApiVersion(permissions.toSet())
-
-            filterResult.forEachIndexed { i, perm ->
-                val isGranted = grantResults[i] == PackageManager.PERMISSION_GRANTED
-                if (!isGranted && !shouldShowRequestPermissionRationale(activity, perm)) {
-                    deniedNotAskAgain.add(perm)
+        fun onRequestPermissionsResult(permissions: Array<out String>, grantResults: IntArray): Boolean =
+                onRequestPermissionsResult(requireActivity(), permissions, grantResults)
+
+        fun onRequestPermissionsResult(activity: Activity, permissions: Array<out String>, grantResults: IntArray): Boolean {
+            val parsed = core(activity).onRequestPermissionsResult(activity, permissions, grantResults, requestCode, startedNanos)
+            if (hasResultConsumers()) {
+                publishResult(parsed.toPermissionResult())
+            }
+            forEachPermissionsState { it.onPermissionsResult(parsed) }
+
+            if (parsed.size == 0) {
+                // пустой результат - запрос отменён или прерван: запрошенный и оставшиеся пакеты считаем отклонёнными
+                planDenied.addAll(requestedBatch.ifEmpty { allPermissions - planGranted })
+                remainingBatches.forEach { planDenied.addAll(it) }
+                remainingBatches.clear()
+                return deliver(planDenied.toSet())
+            }
+            if (remainingBatches.isEmpty()) {
+                if (planDenied.isEmpty()) {
+                    return deliver(parsed.deniedPermissions())
                 }
-                permissionResults[perm] = isGranted
+                planDenied.addAll(parsed.deniedPermissions())
+                return deliver(planDenied.toSet())
+            }
+            for (i in 0 until parsed.size) {
+                if (parsed.isGranted(i)) planGranted.add(parsed.permission(i)) else planDenied.add(parsed.permission(i))
             }
-            if (deniedNotAskAgain.isNotEmpty() && permanentlyDeniedPrefs != null) {
-                val editor = permanentlyDeniedPrefs.edit()
-                for (perm in deniedNotAskAgain) {
-                    editor.putBoolean(perm, true)
+            if (requestNextBatch(activity)) {
+                return false
+            }
+            remainingBatches.forEach { planDenied.addAll(it) }
+            remainingBatches.clear()
+            return deliver(planDenied.toSet())
+        }
+
+        private fun onSettingsBatchResult(context: Context, batch: Set<String>): Boolean {
+            val denied = core(context).filterDenied(batch)
+            PermissionEventRecorder.getDefault().record(PermissionEventRecorder.Type.SETTINGS_RETURNED, null, requestCode, denied.isEmpty())
+            PermissionMetricsRegistry.get().onSettingsRoundTrip(requestCode, denied.isEmpty(), System.nanoTime() - startedNanos)
+            publishResult(batch.associateWith { it !in denied })
+            invalidatePermissionsStates()
+            batch.forEach { if (it in denied) planDenied.add(it) else planGranted.add(it) }
+            val activity = context as? Activity ?: activity
+            if (activity != null && requestNextBatch(activity)) {
+                return false
+            }
+            remainingBatches.forEach { planDenied.addAll(it) }
+            remainingBatches.clear()
+            return deliver(planDenied.toSet())
+        }
+
+        /**
+         * @return false, если запрашивать нечего - [callbacks] уже вызваны
+         */
+        internal fun startPlan(activity: Activity, rationale: String, batches: List<Set<String>>, granted: Set<String>): Boolean {
+            this.rationale = rationale
+            remainingBatches.addAll(batches)
+            planGranted.addAll(granted)
+            if (requestNextBatch(activity)) {
+                return true
+            }
+            deliver(planDenied.toSet())
+            return false
+        }
+
+        /**
+         * @return false, если запрашивать больше нечего
+         */
+        private fun requestNextBatch(activity: Activity): Boolean {
+            val core = core(activity)
+            while (remainingBatches.isNotEmpty()) {
+                val batch = remainingBatches.removeFirst()
+                val requestable = batch.filterTo(LinkedHashSet()) { core.planner.canRequest(it, planGranted) }
+                // без предоставленных предварительных разрешений система отклонит запрос без диалога
+                batch.filterTo(planDenied) { it !in requestable }
+                if (requestable.isNotEmpty()) {
+                    startedNanos = System.nanoTime()
+                    requestedBatch = requestable
+                    pendingResults.register(requestCode, this, activity)
+                    val special = requestable.singleOrNull()?.takeIf { core.platform.getKind(it) == PermissionPlatform.Kind.SPECIAL }
+                    if (special != null) {
+                        // специальные планировщик ставит отдельными пакетами: системный диалог для них не показывается
+                        settingsBatch = requestable
+                        requestSpecialPermission(activity, requestCode, special)
+                    } else {
+                        requestPermissions(activity, rationale, requestCode, requestable)
+                    }
+                    return true
                 }
-                editor.apply()
             }
-            lastPermissionsResult.value = permissionResults
+            return false
+        }
 
-            val denied = permissionResults.filterValues { !it }.keys
+        internal fun detachCallbacks() {
+            callbacks = null
+        }
+
+        internal fun rebind(activity: Activity, callbacks: PermissionsCallbacks) {
+            activityRef = WeakReference(activity)
+            this.callbacks = callbacks
+            undeliveredDenied?.let {
+                undeliveredDenied = null
+                callbacks.onAfterPermissionResult(it)
+            }
+        }
+
+        /**
+         * @return true, если [denied] пуст
+         */
+        private fun deliver(denied: Set<String>): Boolean {
+            val callbacks = callbacks
+            if (callbacks == null) {
+                undeliveredDenied = denied
+                undeliveredResults.register(requestCode, this, null)
+                return denied.isEmpty()
+            }
             return callbacks.onAfterPermissionResult(denied)
         }
+
+        private fun requireActivity(): Activity =
+                activity ?: throw IllegalStateException("Activity for this request was destroyed, use PermissionsHelper.dispatch")
+    }
+
+    /**
+     * Вызывает [dispatchActivityResult] при первом возобновлении активити после ухода на экран настроек
+     */
+    private inner class SettingsReturnObserver(private val requestCode: Int) : LifecycleEventObserver {
+
+        private var isStopped = false
+
+        override fun onStateChanged(source: LifecycleOwner, event: Lifecycle.Event) {
+            when (event) {
+                Lifecycle.Event.ON_STOP -> isStopped = true
+                Lifecycle.Event.ON_RESUME -> if (isStopped) {
+                    source.lifecycle.removeObserver(this)
+                    (source as? Activity)?.let { dispatchActivityResult(it, requestCode) }
+                }
+                // после пересоздания результат передаётся через dispatchActivityResult вручную
+                Lifecycle.Event.ON_DESTROY -> source.lifecycle.removeObserver(this)
+                else -> {}
+            }
+        }
+    }
+
+    companion object {
+
+        const val DEFAULT_PENDING_REQUEST_TIMEOUT_MS = 10 * 60 * 1000L
+
+        /**
+         * Хелпер для приложений с несколькими процессами: навсегда запрещённые разрешения и состояния
+         * согласованы между процессами через [SharedPermissionStateFile], в процессах без UI проверки
+         * берутся из опубликованного процессом-владельцем состояния
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun multiProcess(
+                context: Context,
+                pendingRequestTimeoutMs: Long = DEFAULT_PENDING_REQUEST_TIMEOUT_MS,
+                stateFile: SharedPermissionStateFile = SharedPermissionStateFile.getInstance(context),
+        ) = PermissionsHelper(
+                null,
+                pendingRequestTimeoutMs,
+                SharedStatePermissionPlatform(AndroidPermissionPlatform.getInstance(context), stateFile),
+                SharedFilePermissionStore(stateFile)
+        )
     }
 }
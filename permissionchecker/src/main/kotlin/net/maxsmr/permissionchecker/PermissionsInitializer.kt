@@ -0,0 +1,19 @@
+package net.maxsmr.permissionchecker
+
+import android.content.Context
+import androidx.startup.Initializer
+
+/**
+ * Запуск [PermissionsWarmUp] с аргументами по умолчанию при старте процесса через App Startup.
+ * Чтобы передать свои аргументы, приложение удаляет этот инициализатор из манифеста
+ * (tools:node="remove" для meta-data) и вызывает [PermissionsWarmUp.warmUp] само
+ */
+class PermissionsInitializer : Initializer<PermissionsWarmUp> {
+
+    override fun create(context: Context): PermissionsWarmUp {
+        PermissionsWarmUp.warmUp(context)
+        return PermissionsWarmUp
+    }
+
+    override fun dependencies(): List<Class<out Initializer<*>>> = emptyList()
+}
@@ -0,0 +1,163 @@
+package net.maxsmr.permissionchecker
+
+import android.app.Activity
+import android.os.Bundle
+import androidx.activity.ComponentActivity
+import androidx.annotation.MainThread
+import androidx.activity.result.ActivityResultCaller
+import androidx.activity.result.contract.ActivityResultContracts
+import androidx.fragment.app.Fragment
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.LifecycleEventObserver
+import androidx.lifecycle.LifecycleOwner
+import androidx.savedstate.SavedStateRegistry
+import net.maxsmr.permissionchecker.core.PermissionPlatform
+import net.maxsmr.permissionchecker.core.RequestCodes
+import java.util.WeakHashMap
+
+/**
+ * Заранее зарегистрированный для активити или фрагмента лаунчер [ActivityResultContracts.RequestMultiplePermissions],
+ * один на владельца и общий для всех [Receiver] (например, нескольких [PermissionsHelper]).
+ * Результат приходит в [Receiver] без рефлексии и ручной маршрутизации onRequestPermissionsResult;
+ * requestCode ожидающего запроса сохраняется в [SavedStateRegistry] и переживает пересоздание и смерть процесса.
+ * После пересоздания результат получает тот [Receiver], у которого есть ожидающий запрос с этим requestCode;
+ * после смерти процесса ожидающих запросов нет - результат передаётся в [Receiver.onOrphanedResult] первого получателя
+ */
+internal class PermissionsLauncher private constructor(
+        caller: ActivityResultCaller,
+        private val owner: LifecycleOwner,
+        private val savedStateRegistry: SavedStateRegistry,
+        private val activityProvider: () -> Activity?,
+) : SavedStateRegistry.SavedStateProvider {
+
+    private var pendingRequestCode = RequestCodes.NO_REQUEST_CODE
+
+    /**
+     * Получатель запроса, запущенного через этот экземпляр; null после пересоздания
+     */
+    private var pendingReceiver: Receiver? = null
+
+    private val receivers = mutableListOf<Receiver>()
+
+    private val launcher = caller.registerForActivityResult(ActivityResultContracts.RequestMultiplePermissions()) {
+        onLauncherResult(it)
+    }
+
+    init {
+        savedStateRegistry.registerSavedStateProvider(KEY_STATE, this)
+        owner.lifecycle.addObserver(object : LifecycleEventObserver {
+            override fun onStateChanged(source: LifecycleOwner, event: Lifecycle.Event) {
+                if (event == Lifecycle.Event.ON_DESTROY) {
+                    source.lifecycle.removeObserver(this)
+                    launchers.remove(source)
+                }
+            }
+        })
+        if (savedStateRegistry.isRestored) {
+            restoreState()
+        } else {
+            owner.lifecycle.addObserver(object : LifecycleEventObserver {
+                override fun onStateChanged(source: LifecycleOwner, event: Lifecycle.Event) {
+                    if (event == Lifecycle.Event.ON_CREATE) {
+                        source.lifecycle.removeObserver(this)
+                        restoreState()
+                    }
+                }
+            })
+        }
+    }
+
+    val isDestroyed get() = owner.lifecycle.currentState == Lifecycle.State.DESTROYED
+
+    /**
+     * Незавершённый предыдущий запрос через этот лаунчер будет потерян
+     */
+    fun launch(receiver: Receiver, requestCode: Int, permissions: Collection<String>) {
+        pendingRequestCode = requestCode
+        pendingReceiver = receiver
+        launcher.launch(permissions.toTypedArray())
+    }
+
+    override fun saveState(): Bundle = Bundle().apply {
+        putInt(KEY_REQUEST_CODE, pendingRequestCode)
+    }
+
+    private fun restoreState() {
+        savedStateRegistry.consumeRestoredStateForKey(KEY_STATE)?.let {
+            pendingRequestCode = it.getInt(KEY_REQUEST_CODE, RequestCodes.NO_REQUEST_CODE)
+        }
+    }
+
+    private fun onLauncherResult(result: Map<String, Boolean>) {
+        val requestCode = pendingRequestCode
+        val receiver = pendingReceiver
+        pendingRequestCode = RequestCodes.NO_REQUEST_CODE
+        pendingReceiver = null
+        if (requestCode == RequestCodes.NO_REQUEST_CODE) return
+        val activity = activityProvider() ?: return
+        val permissions = arrayOfNulls<String>(result.size)
+        val grantResults = IntArray(result.size)
+        var i = 0
+        for ((permission, granted) in result) {
+            permissions[i] = permission
+            grantResults[i] = if (granted) PermissionPlatform.PERMISSION_GRANTED else PermissionPlatform.PERMISSION_DENIED
+            i++
+        }
+        @Suppress("UNCHECKED_CAST")
+        permissions as Array<String>
+        if (receiver != null) {
+            receiver.onResult(activity, requestCode, permissions, grantResults)
+            return
+        }
+        if (receivers.none { it.onResult(activity, requestCode, permissions, grantResults) != null }) {
+            receivers.firstOrNull()?.onOrphanedResult(activity, requestCode, permissions, grantResults)
+        }
+    }
+
+    private fun addReceiver(receiver: Receiver) {
+        if (receiver !in receivers) {
+            receivers.add(receiver)
+        }
+    }
+
+    interface Receiver {
+
+        /**
+         * @return null, если ожидающего запроса с [requestCode] нет
+         */
+        fun onResult(activity: Activity, requestCode: Int, permissions: Array<String>, grantResults: IntArray): Boolean?
+
+        /**
+         * Результат запроса, который не ожидает ни один получатель: обработчики запроса не пережили смерть процесса
+         */
+        fun onOrphanedResult(activity: Activity, requestCode: Int, permissions: Array<String>, grantResults: IntArray)
+    }
+
+    companion object {
+
+        private const val KEY_STATE = "net.maxsmr.permissionchecker.PermissionsLauncher"
+        private const val KEY_REQUEST_CODE = "request_code"
+
+        /**
+         * Ключ - активити или фрагмент
+         */
+        private val launchers = WeakHashMap<LifecycleOwner, PermissionsLauncher>()
+
+        /**
+         * Должен вызываться до STARTED, например в onCreate; повторные вызовы для того же [activity]
+         * добавляют [receiver] к уже зарегистрированному лаунчеру
+         */
+        @MainThread
+        fun register(activity: ComponentActivity, receiver: Receiver): PermissionsLauncher =
+                obtain(activity) { PermissionsLauncher(activity, activity, activity.savedStateRegistry) { activity } }
+                        .also { it.addReceiver(receiver) }
+
+        @MainThread
+        fun register(fragment: Fragment, receiver: Receiver): PermissionsLauncher =
+                obtain(fragment) { PermissionsLauncher(fragment, fragment, fragment.savedStateRegistry) { fragment.activity } }
+                        .also { it.addReceiver(receiver) }
+
+        private inline fun obtain(owner: LifecycleOwner, create: () -> PermissionsLauncher): PermissionsLauncher =
+                launchers[owner] ?: create().also { launchers[owner] = it }
+    }
+}
@@ -0,0 +1,140 @@
+package net.maxsmr.permissionchecker
+
+import android.content.Context
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.LifecycleEventObserver
+import androidx.lifecycle.LifecycleOwner
+import androidx.lifecycle.LiveData
+import androidx.lifecycle.Observer
+import net.maxsmr.permissionchecker.core.PermissionsResultParser
+
+/**
+ * Текущее состояние набора [permissions], общее для всех подписчиков.
+ * Проверка выполняется лениво - только при появлении активных подписчиков, при возобновлении (ON_RESUME)
+ * подписанного владельца после паузы (например, при возврате из настроек приложения, в т.ч. когда другие
+ * подписчики оставались активными) или по [invalidate] при наличии активных подписчиков.
+ * Новое значение публикуется только если состояние фактически изменилось.
+ *
+ * @param onObserversChanged вызывается при появлении первого подписчика (true) и после отписки последнего (false)
+ */
+class PermissionsStateLiveData internal constructor(
+        context: Context,
+        val permissions: Set<String>,
+        private val checker: (Context, String) -> Boolean,
+        private val onObserversChanged: (PermissionsStateLiveData, Boolean) -> Unit = { _, _ -> },
+) : LiveData<PermissionResult>() {
+
+    private val context: Context = context.applicationContext
+
+    /**
+     * Владельцы подписчиков с наблюдателем возобновления, по одному на владельца
+     */
+    private val resumeObservers = HashMap<LifecycleOwner, ResumeObserver>()
+
+    /**
+     * Увеличивается при каждой проверке; по нему возобновление после [onActive] не проверяет повторно
+     */
+    private var evaluations = 0
+
+    override fun observe(owner: LifecycleOwner, observer: Observer<in PermissionResult>) {
+        val hadObservers = hasObservers()
+        if (owner.lifecycle.currentState != Lifecycle.State.DESTROYED && !resumeObservers.containsKey(owner)) {
+            // до super.observe: ON_START владельца приходит сюда раньше, чем активация LiveData
+            ResumeObserver(owner).also {
+                resumeObservers[owner] = it
+                owner.lifecycle.addObserver(it)
+            }
+        }
+        super.observe(owner, observer)
+        if (!hadObservers && hasObservers()) {
+            onObserversChanged(this, true)
+        }
+    }
+
+    override fun observeForever(observer: Observer<in PermissionResult>) {
+        val hadObservers = hasObservers()
+        super.observeForever(observer)
+        if (!hadObservers) {
+            onObserversChanged(this, true)
+        }
+    }
+
+    override fun removeObserver(observer: Observer<in PermissionResult>) {
+        val hadObservers = hasObservers()
+        super.removeObserver(observer)
+        if (hadObservers && !hasObservers()) {
+            onObserversChanged(this, false)
+        }
+    }
+
+    override fun onActive() {
+        super.onActive()
+        evaluate()
+    }
+
+    /**
+     * Перепроверить состояние, если есть активные подписчики;
+     * иначе проверка произойдёт при следующей активации
+     */
+    fun invalidate() {
+        if (hasActiveObservers()) {
+            evaluate()
+        }
+    }
+
+    internal fun onPermissionsResult(result: PermissionsResultParser) {
+        if (permissions.none { result.contains(it) }) return
+        invalidate()
+    }
+
+    private fun evaluate() {
+        evaluations++
+        val previous = value
+        val current = LinkedHashMap<String, Boolean>(permissions.size)
+        var changed = previous == null
+        for (perm in permissions) {
+            val granted = checker(context, perm)
+            current[perm] = granted
+            if (!changed && previous?.get(perm) != granted) {
+                changed = true
+            }
+        }
+        if (changed) {
+            value = current
+            PermissionSnapshotCache.peekInstance()?.update(current)
+            SharedPermissionStateFile.peekInstance()?.publishStates(current)
+        }
+    }
+
+    /**
+     * Перепроверяет при ON_RESUME после паузы, если с момента паузы или старта владельца проверки не было
+     * (например, её уже выполнил [onActive] при старте)
+     */
+    private inner class ResumeObserver(private val owner: LifecycleOwner) : LifecycleEventObserver {
+
+        private var isPaused = false
+
+        private var evaluationsMark = 0
+
+        override fun onStateChanged(source: LifecycleOwner, event: Lifecycle.Event) {
+            when (event) {
+                Lifecycle.Event.ON_START -> evaluationsMark = evaluations
+                Lifecycle.Event.ON_PAUSE -> {
+                    isPaused = true
+                    evaluationsMark = evaluations
+                }
+                Lifecycle.Event.ON_RESUME -> if (isPaused) {
+                    isPaused = false
+                    if (evaluationsMark == evaluations) {
+                        invalidate()
+                    }
+                }
+                Lifecycle.Event.ON_DESTROY -> {
+                    source.lifecycle.removeObserver(this)
+                    resumeObservers.remove(owner)
+                }
+                else -> {}
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package net.maxsmr.permissionchecker
+
+import android.content.Context
+import net.maxsmr.permissionchecker.core.HistogramPermissionMetrics
+import net.maxsmr.permissionchecker.core.PermissionEventRecorder
+import net.maxsmr.permissionchecker.core.PermissionMetricsRegistry
+import net.maxsmr.permissionchecker.core.PermissionsHelperCore
+import net.maxsmr.permissionchecker.core.RequestCodes
+import net.maxsmr.permissionchecker.core.RequestPlanner
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+
+/**
+ * Подготовка инфраструктуры разрешений на фоновом потоке (например, из Application.onCreate),
+ * чтобы [PermissionChecker.initInstance] и создание [PermissionsHelper] на главном потоке были дешёвыми:
+ * - запрос манифеста и уровней защиты ([PermissionsMetadataIndex], [AndroidPermissionPlatform]);
+ * - чтение SharedPreferences с навсегда запрещёнными разрешениями;
+ * - генерация requestCode для [PermissionChecker];
+ * - загрузка классов горячего пути.
+ *
+ * Ждать окончания не нужно: синглтоны общие, а неподготовленное создаётся при первом использовании, как раньше.
+ * Вызывается автоматически из [PermissionsInitializer], если он не удалён из манифеста
+ */
+object PermissionsWarmUp {
+
+    private val hotClasses = arrayOf(
+            PermissionsHelper::class.java,
+            PermissionsHelperCore::class.java,
+            PermissionsStateLiveData::class.java,
+            PendingResultRegistry::class.java,
+            BaseDeniedPermissionsHandler::class.java,
+            RequestPlanner::class.java,
+            RequestCodes::class.java,
+            PermissionEventRecorder::class.java,
+            PermissionMetricsRegistry::class.java,
+            HistogramPermissionMetrics::class.java,
+    )
+
+    private var latch: CountDownLatch? = null
+
+    val isStarted: Boolean
+        @JvmStatic get() = synchronized(this) { latch != null }
+
+    val isDone: Boolean
+        @JvmStatic get() = synchronized(this) { latch?.count == 0L }
+
+    /**
+     * Действует только первый вызов; подготовленный [PermissionChecker] используется,
+     * только если аргументы [PermissionChecker.initInstance] совпадут с переданными сюда
+     *
+     * @param permanentlyDeniedPrefsNames имена SharedPreferences, передаваемых в [PermissionsHelper]
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun warmUp(
+            context: Context,
+            permanentlyDeniedPrefsNames: Collection<String> = emptyList(),
+            showAllSystemDialogs: Boolean = false,
+            permissionsToIgnore: Collection<String>? = null,
+            permissionsToIgnoreAfterCheck: Collection<String>? = null,
+            executor: Executor = PermissionLabelsCache.defaultExecutor,
+    ) {
+        val latch = synchronized(this) {
+            if (latch != null) return
+            CountDownLatch(1).also { latch = it }
+        }
+        val appContext = context.applicationContext
+        executor.execute {
+            try {
+                loadClasses()
+                val platform = AndroidPermissionPlatform.getInstance(appContext)
+                permanentlyDeniedPrefsNames.forEach {
+                    // getAll ждёт окончания чтения файла, последующие чтения на главном потоке не блокируются
+                    appContext.getSharedPreferences(it, Context.MODE_PRIVATE).all
+                }
+                PermissionChecker.prepare(platform, showAllSystemDialogs, permissionsToIgnore, permissionsToIgnoreAfterCheck)
+            } finally {
+                latch.countDown()
+            }
+        }
+    }
+
+    /**
+     * Для корректности не требуется, например для замеров старта
+     *
+     * @return false, если подготовка не запускалась или не завершилась за [timeout]
+     */
+    @JvmStatic
+    @Throws(InterruptedException::class)
+    fun await(timeout: Long, unit: TimeUnit): Boolean {
+        val latch = synchronized(this) { latch } ?: return false
+        return latch.await(timeout, unit)
+    }
+
+    private fun loadClasses() {
+        hotClasses.forEach {
+            try {
+                Class.forName(it.name, true, it.classLoader)
+            } catch (e: ClassNotFoundException) {
+                // уже загружен по литералу
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package net.maxsmr.permissionchecker
+
+import net.maxsmr.permissionchecker.core.PermissionStore
+
+/**
+ * [PermissionStore] навсегда запрещённых разрешений, общий для всех процессов приложения,
+ * в отличие от SharedPreferences
+ */
+class SharedFilePermissionStore(private val stateFile: SharedPermissionStateFile) : PermissionStore {
+
+    override fun getAll(): Set<String> = stateFile.view().permanentlyDenied
+
+    override fun contains(permission: String): Boolean = stateFile.view().permanentlyDenied.contains(permission)
+
+    override fun addAll(permissions: Collection<String>) {
+        stateFile.updatePermanentlyDenied(permissions, emptySet())
+    }
+
+    override fun removeAll(permissions: Collection<String>) {
+        stateFile.updatePermanentlyDenied(emptySet(), permissions)
+    }
+}
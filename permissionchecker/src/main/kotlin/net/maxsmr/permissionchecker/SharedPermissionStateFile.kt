@@ -0,0 +1,262 @@
+package net.maxsmr.permissionchecker
+
+import android.app.ActivityManager
+import android.app.Application
+import android.content.Context
+import android.os.Build
+import android.os.FileObserver
+import android.os.Process
+import android.os.SystemClock
+import androidx.core.content.ContextCompat
+import androidx.core.util.AtomicFile
+import androidx.lifecycle.LiveData
+import androidx.lifecycle.MutableLiveData
+import net.maxsmr.permissionchecker.core.SharedPermissionState
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+
+/**
+ * Общее для всех процессов приложения состояние разрешений в файле под межпроцессной блокировкой
+ * ([java.nio.channels.FileLock]) с уведомлением об изменениях через [FileObserver].
+ *
+ * Процесс-владелец (по умолчанию - основной, с именем пакета) проверяет разрешения сам и публикует состояния
+ * через [publishStates] на фоновом потоке; остальные процессы берут из закэшированного [view] только
+ * предоставленные разрешения и только пока процесс-публикатор жив (проверяется не чаще раза в [LIVENESS_TTL_MS]):
+ * отзыв разрешения убивает все процессы приложения, а вот выдача - нет, поэтому запрет всегда перепроверяется.
+ * Навсегда запрещённые разрешения хранятся постоянно и могут меняться из любого процесса, см. [SharedFilePermissionStore]
+ */
+class SharedPermissionStateFile private constructor(
+        context: Context,
+        private val ownerProcessName: String,
+) {
+
+    private val context: Context = context.applicationContext
+
+    private val dir = ContextCompat.getNoBackupFilesDir(this.context)
+
+    private val file = AtomicFile(File(dir, FILE_NAME))
+
+    private val lockFile = File(dir, LOCK_FILE_NAME)
+
+    private val lock = Any()
+
+    private val myPid = Process.myPid()
+
+    val isOwnerProcess: Boolean = currentProcessName(this.context) == ownerProcessName
+
+    @Volatile
+    private var cached: SharedPermissionState? = null
+
+    @Volatile
+    private var liveness: Liveness? = null
+
+    /**
+     * Ещё не записанные состояния; доступ под собственной блокировкой
+     */
+    private val pendingStates = LinkedHashMap<String, Boolean>()
+
+    private var isPublishScheduled = false
+
+    @Volatile
+    private var isDirty = true
+
+    private val _changes = MutableLiveData<SharedPermissionState>()
+
+    /**
+     * Новое состояние после изменения файла любым процессом; файл перечитывается, только если есть активные подписчики
+     */
+    val changes: LiveData<SharedPermissionState> = _changes
+
+    @Suppress("DEPRECATION")
+    private val observer = object : FileObserver(dir.path, CLOSE_WRITE or MOVED_TO or DELETE) {
+
+        override fun onEvent(event: Int, path: String?) {
+            if (path != FILE_NAME) return
+            isDirty = true
+            if (_changes.hasActiveObservers()) {
+                _changes.postValue(view())
+            }
+        }
+    }
+
+    init {
+        observer.startWatching()
+    }
+
+    /**
+     * Закэшированное состояние; файл читается только после его изменения
+     */
+    fun view(): SharedPermissionState = load()
+
+    /**
+     * @return true, если разрешение опубликовано предоставленным и публикатор жив; иначе null -
+     * разрешение нужно проверить самостоятельно (в т.ч. всегда в процессе-владельце)
+     */
+    fun isGranted(permission: String): Boolean? {
+        if (isOwnerProcess) return null
+        val state = load()
+        // запрет мог смениться выдачей в настройках без перезапуска процессов
+        if (state.isGranted(permission) != true) return null
+        return if (isPublisherAlive(state.publisherPid)) true else null
+    }
+
+    /**
+     * Опубликовать известные состояния (результат проверки или запроса); только в процессе-владельце.
+     * Файл пишется на фоновом потоке и только при фактическом изменении, подряд идущие публикации объединяются
+     */
+    fun publishStates(states: PermissionResult) {
+        if (!isOwnerProcess || states.isEmpty()) return
+        synchronized(pendingStates) {
+            val current = cached
+            if (pendingStates.isEmpty() && !isDirty && current != null && current.withStates(myPid, states) === current) return
+            pendingStates.putAll(states)
+            if (isPublishScheduled) return
+            isPublishScheduled = true
+        }
+        publishExecutor.execute { flushStates() }
+    }
+
+    fun updatePermanentlyDenied(added: Collection<String>, removed: Collection<String>) {
+        if (added.isEmpty() && removed.isEmpty()) return
+        update { it.withPermanentlyDenied(added, removed) }
+    }
+
+    private fun flushStates() {
+        val states = synchronized(pendingStates) {
+            isPublishScheduled = false
+            LinkedHashMap(pendingStates).also { pendingStates.clear() }
+        }
+        if (states.isNotEmpty()) {
+            update { it.withStates(myPid, states) }
+        }
+    }
+
+    private fun load(): SharedPermissionState {
+        cached?.takeIf { !isDirty }?.let { return it }
+        synchronized(lock) {
+            cached?.takeIf { !isDirty }?.let { return it }
+            // изменения во время чтения снова выставят флаг
+            isDirty = false
+            return (withFileLock(true) { read() } ?: SharedPermissionState.empty()).also { cached = it }
+        }
+    }
+
+    private fun update(transform: (SharedPermissionState) -> SharedPermissionState) {
+        synchronized(lock) {
+            withFileLock(false) {
+                val current = read() ?: SharedPermissionState.empty()
+                val updated = transform(current)
+                if (updated !== current) {
+                    write(updated)
+                }
+                cached = updated
+            }
+        }
+    }
+
+    private fun isPublisherAlive(pid: Int): Boolean {
+        if (pid == SharedPermissionState.NO_PID) return false
+        if (pid == myPid) return true
+        val now = SystemClock.elapsedRealtime()
+        liveness?.takeIf { it.pid == pid && now - it.checkedAtMillis < LIVENESS_TTL_MS }?.let { return it.isAlive }
+        return checkProcessAlive(pid).also { liveness = Liveness(pid, it, now) }
+    }
+
+    private fun checkProcessAlive(pid: Int): Boolean {
+        val activityManager = context.getSystemService(Context.ACTIVITY_SERVICE) as? ActivityManager ?: return false
+        return activityManager.runningAppProcesses.orEmpty().any { it.pid == pid && it.processName == ownerProcessName }
+    }
+
+    /**
+     * Внутри процесса доступ к файлу сериализуется [lock], между процессами - блокировкой [lockFile]
+     */
+    private fun <T> withFileLock(shared: Boolean, action: () -> T): T? = try {
+        RandomAccessFile(lockFile, "rw").use { lockAccess ->
+            val fileLock = lockAccess.channel.lock(0, Long.MAX_VALUE, shared)
+            try {
+                action()
+            } finally {
+                fileLock.release()
+            }
+        }
+    } catch (e: IOException) {
+        null
+    }
+
+    private fun read(): SharedPermissionState? = try {
+        SharedPermissionState.fromBytes(file.readFully())
+    } catch (e: IOException) {
+        null
+    }
+
+    private fun write(state: SharedPermissionState) {
+        val stream = try {
+            file.startWrite()
+        } catch (e: IOException) {
+            return
+        }
+        try {
+            stream.write(state.toBytes())
+            file.finishWrite(stream)
+        } catch (e: IOException) {
+            file.failWrite(stream)
+        }
+    }
+
+    private class Liveness(
+            val pid: Int,
+            val isAlive: Boolean,
+            val checkedAtMillis: Long,
+    )
+
+    companion object {
+
+        /**
+         * Как долго считать результат проверки жизни публикатора актуальным
+         */
+        const val LIVENESS_TTL_MS = 2000L
+
+        private const val FILE_NAME = "permission_state_shared"
+        private const val LOCK_FILE_NAME = "permission_state_shared.lock"
+
+        private val publishExecutor: Executor by lazy { Executors.newSingleThreadExecutor() }
+
+        @Volatile
+        private var instance: SharedPermissionStateFile? = null
+
+        /**
+         * @param ownerProcessName процесс с UI, публикующий состояния; по умолчанию - основной
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun getInstance(context: Context, ownerProcessName: String = context.packageName): SharedPermissionStateFile =
+                instance ?: synchronized(this) {
+                    instance ?: SharedPermissionStateFile(context, ownerProcessName).also { instance = it }
+                }
+
+        /**
+         * @return экземпляр, если он уже был создан приложением; иначе состояния не публикуются
+         */
+        @JvmStatic
+        fun peekInstance(): SharedPermissionStateFile? = instance
+
+        private fun currentProcessName(context: Context): String {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                return Application.getProcessName()
+            }
+            return try {
+                FileInputStream("/proc/self/cmdline").use { input ->
+                    val bytes = input.readBytes()
+                    val end = bytes.indexOf(0).takeIf { it >= 0 } ?: bytes.size
+                    String(bytes, 0, end).trim()
+                }
+            } catch (e: IOException) {
+                context.packageName
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package net.maxsmr.permissionchecker
+
+import android.app.Activity
+import net.maxsmr.permissionchecker.core.PermissionPlatform
+
+/**
+ * Декоратор [platform], согласующий проверки между процессами через [stateFile]:
+ * в процессе-владельце результаты проверок публикуются, в остальных берутся из опубликованного состояния,
+ * а IPC-проверка выполняется для всех, кроме опубликованных предоставленными
+ */
+class SharedStatePermissionPlatform(
+        private val platform: PermissionPlatform<Activity>,
+        private val stateFile: SharedPermissionStateFile,
+) : PermissionPlatform<Activity> by platform {
+
+    override fun isGranted(permission: String): Boolean {
+        stateFile.isGranted(permission)?.let { return it }
+        return platform.isGranted(permission).also {
+            stateFile.publishStates(mapOf(permission to it))
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package net.maxsmr.permissionchecker;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import net.maxsmr.permissionchecker.core.CountingPermissionPlatform;
+import net.maxsmr.permissionchecker.core.IpcBudget;
+import net.maxsmr.permissionchecker.core.PermissionPlatform;
+import net.maxsmr.permissionchecker.gui.activities.BaseSplashPermissionActivityTest;
+import net.maxsmr.permissionchecker.gui.activities.SplashFlowStateMachine;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowActivity;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.Collections;
+
+import kotlin.Unit;
+
+import static net.maxsmr.permissionchecker.core.CountingPermissionPlatform.Call.CHECK;
+import static net.maxsmr.permissionchecker.core.CountingPermissionPlatform.Call.MANIFEST;
+import static net.maxsmr.permissionchecker.core.CountingPermissionPlatform.Call.RATIONALE;
+import static net.maxsmr.permissionchecker.core.CountingPermissionPlatform.Call.REQUEST;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Full flows over real {@link AndroidPermissionPlatform} must not make more platform calls than their {@link IpcBudget};
+ * requests of {@link PermissionsHelper} go through ActivityCompat or launcher, so they are checked by {@link ShadowActivity}
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@SuppressWarnings("deprecation")
+public class AndroidIpcBudgetTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String RECORD_AUDIO = "android.permission.RECORD_AUDIO";
+
+    private static final int REQUEST_CODE = 42;
+
+    @After
+    public void tearDown() {
+        PermissionChecker.releaseInstance();
+    }
+
+    @Test
+    public void checkerColdStartAllGranted() {
+        CountingPermissionPlatform<Activity> platform = initChecker(CAMERA, RECORD_AUDIO);
+        CountingAndroidPlatform.setGranted(CAMERA, true);
+        CountingAndroidPlatform.setGranted(RECORD_AUDIO, true);
+        Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+
+        PermissionChecker checker = PermissionChecker.getInstance();
+        assertTrue(checker.checkAppPermissions());
+        checker.requestAppPermissions(activity, false);
+
+        IpcBudget.none().allow(MANIFEST, 1).allow(CHECK, 2)
+                .verify("checker cold start, all granted", platform);
+    }
+
+    @Test
+    public void checkerFirstRunAllDeniedAndReturnFromSettings() {
+        CountingPermissionPlatform<Activity> platform = initChecker(CAMERA, RECORD_AUDIO);
+        Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+
+        PermissionChecker checker = PermissionChecker.getInstance();
+        checker.checkAppPermissions();
+        checker.requestAppPermissions(activity, false);
+        ShadowActivity.PermissionsRequest request = shadowOf(activity).getLastRequestedPermission();
+        checker.onRequestPermissionsResult(activity, request.requestCode, request.requestedPermissions,
+                new int[]{PermissionPlatform.PERMISSION_DENIED});
+
+        IpcBudget.none().allow(MANIFEST, 1).allow(CHECK, 2).allow(RATIONALE, 1).allow(REQUEST, 1)
+                .verify("checker first run, all denied", platform);
+
+        // all granted in settings, recheck on return
+        CountingAndroidPlatform.setGranted(CAMERA, true);
+        CountingAndroidPlatform.setGranted(RECORD_AUDIO, true);
+        platform.reset();
+        assertTrue(checker.checkAppPermissions());
+
+        IpcBudget.none().allow(CHECK, 2)
+                .verify("checker return from settings", platform);
+    }
+
+    @Test
+    public void checkerRotationWithPendingRequest() {
+        CountingPermissionPlatform<Activity> platform = initChecker(CAMERA, RECORD_AUDIO);
+        ActivityController<Activity> activity = Robolectric.buildActivity(Activity.class).setup();
+
+        PermissionChecker checker = PermissionChecker.getInstance();
+        checker.checkAppPermissions();
+        checker.requestAppPermissions(activity.get(), false);
+        ShadowActivity.PermissionsRequest request = shadowOf(activity.get()).getLastRequestedPermission();
+        platform.reset();
+
+        TestActivities.rotate(activity);
+        CountingAndroidPlatform.setGranted(request.requestedPermissions[0], true);
+        checker.onRequestPermissionsResult(activity.get(), request.requestCode, request.requestedPermissions,
+                new int[]{PermissionPlatform.PERMISSION_GRANTED});
+
+        // only next not checked one is checked and requested
+        IpcBudget.none().allow(CHECK, 1).allow(RATIONALE, 1).allow(REQUEST, 1)
+                .verify("checker rotation with pending request", platform);
+    }
+
+    @Test
+    public void helperColdStartAllGranted() {
+        CountingPermissionPlatform<Activity> platform = CountingAndroidPlatform.create(CAMERA);
+        CountingAndroidPlatform.setGranted(CAMERA, true);
+        PermissionsHelper helper = newHelper(platform);
+        ActivityController<PermissionsHelperTest.HostActivity> activity = Robolectric.buildActivity(PermissionsHelperTest.HostActivity.class).setup();
+        platform.reset();
+
+        int[] allGranted = new int[1];
+        helper.doOnPermissionsResult(activity.get(), "", REQUEST_CODE, Collections.singleton(CAMERA), callbacks(allGranted));
+
+        assertEquals(1, allGranted[0]);
+        IpcBudget.none().allow(CHECK, 1)
+                .verify("helper cold start, all granted", platform);
+    }
+
+    @Test
+    public void helperFirstRunDeniedAndReturnFromSettings() {
+        CountingPermissionPlatform<Activity> platform = CountingAndroidPlatform.create(CAMERA);
+        PermissionsHelper helper = newHelper(platform);
+        ActivityController<PermissionsHelperTest.HostActivity> activity = Robolectric.buildActivity(PermissionsHelperTest.HostActivity.class).setup();
+        platform.reset();
+
+        int[] allGranted = new int[1];
+        helper.doOnPermissionsResult(activity.get(), "", REQUEST_CODE, Collections.singleton(CAMERA), callbacks(allGranted));
+        helper.dispatch(activity.get(), REQUEST_CODE, new String[]{CAMERA}, new int[]{PermissionPlatform.PERMISSION_DENIED});
+
+        ShadowActivity.PermissionsRequest request = shadowOf(activity.get()).getLastRequestedPermission();
+        assertEquals(REQUEST_CODE, request.requestCode);
+        IpcBudget.none().allow(CHECK, 1).allow(RATIONALE, 1)
+                .verify("helper first run, all denied", platform);
+
+        // permanently denied: settings screen instead of request, granted there
+        platform.reset();
+        helper.doOnPermissionsResult(activity.get(), "", REQUEST_CODE, Collections.singleton(CAMERA), callbacks(allGranted));
+        CountingAndroidPlatform.setGranted(CAMERA, true);
+        helper.dispatchActivityResult(activity.get(), REQUEST_CODE);
+
+        assertEquals(1, allGranted[0]);
+        assertSame(request, shadowOf(activity.get()).getLastRequestedPermission());
+        IpcBudget.none().allow(CHECK, 2)
+                .verify("helper return from settings", platform);
+    }
+
+    @Test
+    public void helperRotationWithPendingRequest() {
+        CountingPermissionPlatform<Activity> platform = CountingAndroidPlatform.create(CAMERA);
+        PermissionsHelper helper = newHelper(platform);
+        ActivityController<PermissionsHelperTest.HostActivity> activity = Robolectric.buildActivity(PermissionsHelperTest.HostActivity.class).setup();
+        helper.doOnPermissionsResult(activity.get(), "", REQUEST_CODE, Collections.singleton(CAMERA), callbacks(new int[1]));
+        platform.reset();
+
+        TestActivities.rotate(activity);
+        int[] allGranted = new int[1];
+        helper.rebindCallbacks(activity.get(), REQUEST_CODE, callbacks(allGranted));
+        CountingAndroidPlatform.setGranted(CAMERA, true);
+        helper.dispatch(activity.get(), REQUEST_CODE, new String[]{CAMERA}, new int[]{PermissionPlatform.PERMISSION_GRANTED});
+
+        assertEquals(1, allGranted[0]);
+        IpcBudget.none()
+                .verify("helper rotation with pending request", platform);
+    }
+
+    @Test
+    public void splashColdStartAllGranted() {
+        CountingPermissionPlatform<Activity> platform = initChecker(CAMERA);
+        CountingAndroidPlatform.setGranted(CAMERA, true);
+        BaseSplashPermissionActivityTest.HostActivity.finalActions = 0;
+
+        ActivityController<BaseSplashPermissionActivityTest.HostActivity> activity = Robolectric.buildActivity(BaseSplashPermissionActivityTest.HostActivity.class).setup();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertEquals(1, BaseSplashPermissionActivityTest.HostActivity.finalActions);
+        assertEquals(SplashFlowStateMachine.State.FINISHED, activity.get().getFlowState());
+        IpcBudget.none().allow(MANIFEST, 1).allow(CHECK, 1)
+                .verify("splash cold start, all granted", platform);
+    }
+
+    @Test
+    public void splashFirstRunDeniedAndReturnFromSettings() {
+        CountingPermissionPlatform<Activity> platform = initChecker(CAMERA);
+        BaseSplashPermissionActivityTest.HostActivity.finalActions = 0;
+
+        ActivityController<BaseSplashPermissionActivityTest.HostActivity> activity = Robolectric.buildActivity(BaseSplashPermissionActivityTest.HostActivity.class).setup();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        ShadowActivity.PermissionsRequest request = shadowOf(activity.get()).getLastRequestedPermission();
+        activity.get().onRequestPermissionsResult(request.requestCode, new String[]{CAMERA}, new int[]{PermissionPlatform.PERMISSION_DENIED});
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        IpcBudget.none().allow(MANIFEST, 1).allow(CHECK, 1).allow(RATIONALE, 1).allow(REQUEST, 1)
+                .verify("splash first run, all denied", platform);
+
+        activity.get().openAppSettings();
+        CountingAndroidPlatform.setGranted(CAMERA, true);
+        platform.reset();
+        activity.pause().stop().start().resume();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertEquals(1, BaseSplashPermissionActivityTest.HostActivity.finalActions);
+        IpcBudget.none().allow(CHECK, 1)
+                .verify("splash return from settings", platform);
+    }
+
+    @Test
+    public void splashRotationWithPendingRequest() {
+        CountingPermissionPlatform<Activity> platform = initChecker(CAMERA);
+        BaseSplashPermissionActivityTest.HostActivity.finalActions = 0;
+        ActivityController<BaseSplashPermissionActivityTest.HostActivity> activity = Robolectric.buildActivity(BaseSplashPermissionActivityTest.HostActivity.class).setup();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        ShadowActivity.PermissionsRequest request = shadowOf(activity.get()).getLastRequestedPermission();
+        platform.reset();
+
+        TestActivities.rotate(activity);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        CountingAndroidPlatform.setGranted(CAMERA, true);
+        activity.get().onRequestPermissionsResult(request.requestCode, new String[]{CAMERA}, new int[]{PermissionPlatform.PERMISSION_GRANTED});
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertEquals(1, BaseSplashPermissionActivityTest.HostActivity.finalActions);
+        // state is retained: no checks and requests on recreation
+        IpcBudget.none()
+                .verify("splash rotation with pending request", platform);
+    }
+
+    @NotNull
+    private static CountingPermissionPlatform<Activity> initChecker(@NotNull String... requested) {
+        CountingPermissionPlatform<Activity> platform = CountingAndroidPlatform.create(requested);
+        // activity's own initInstance is no-op when instance exists
+        PermissionChecker.initInstance(platform, false, null, null);
+        return platform;
+    }
+
+    @NotNull
+    private static PermissionsHelper newHelper(@NotNull PermissionPlatform<Activity> platform) {
+        SharedPreferences prefs = ApplicationProvider.getApplicationContext()
+                .getSharedPreferences("permanently_denied", Context.MODE_PRIVATE);
+        prefs.edit().clear().commit();
+        return new PermissionsHelper(prefs, PermissionsHelper.DEFAULT_PENDING_REQUEST_TIMEOUT_MS, platform);
+    }
+
+    @NotNull
+    private static PermissionsCallbacks callbacks(@NotNull int[] allGranted) {
+        return new PermissionsCallbacks(null, null, () -> {
+            allGranted[0]++;
+            return Unit.INSTANCE;
+        });
+    }
+}
@@ -0,0 +1,55 @@
+package net.maxsmr.permissionchecker;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.pm.PermissionInfo;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import net.maxsmr.permissionchecker.core.CountingPermissionPlatform;
+
+import org.jetbrains.annotations.NotNull;
+import org.robolectric.shadows.ShadowPackageManager;
+import org.robolectric.util.ReflectionHelpers;
+
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Real {@link AndroidPermissionPlatform} over Robolectric package manager with counted calls,
+ * to check {@link net.maxsmr.permissionchecker.core.IpcBudget} of full flows
+ */
+public final class CountingAndroidPlatform {
+
+    private CountingAndroidPlatform() {
+        throw new AssertionError("no instances.");
+    }
+
+    /**
+     * @param requested dangerous permissions declared in manifest, not granted
+     */
+    @NotNull
+    public static CountingPermissionPlatform<Activity> create(@NotNull String... requested) {
+        Application application = ApplicationProvider.getApplicationContext();
+        ShadowPackageManager packageManager = shadowOf(application.getPackageManager());
+        packageManager.getInternalMutablePackageInfo(application.getPackageName()).requestedPermissions = requested;
+        for (String permission : requested) {
+            PermissionInfo info = new PermissionInfo();
+            info.name = permission;
+            info.protectionLevel = PermissionInfo.PROTECTION_DANGEROUS;
+            packageManager.addPermissionInfo(info);
+        }
+        // process scoped singletons keep application and manifest of previous test
+        ReflectionHelpers.setStaticField(PermissionsMetadataIndex.class, "sInstance", null);
+        ReflectionHelpers.setStaticField(AndroidPermissionPlatform.class, "sInstance", null);
+        return new CountingPermissionPlatform<>(AndroidPermissionPlatform.getInstance(application));
+    }
+
+    public static void setGranted(@NotNull String permission, boolean isGranted) {
+        Application application = ApplicationProvider.getApplicationContext();
+        if (isGranted) {
+            shadowOf(application).grantPermissions(permission);
+        } else {
+            shadowOf(application).denyPermissions(permission);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package net.maxsmr.permissionchecker;
+
+import android.app.Activity;
+import android.app.Dialog;
+
+import net.maxsmr.permissionchecker.core.PermissionPlatform;
+
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PermissionCheckerTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String RECORD_AUDIO = "android.permission.RECORD_AUDIO";
+
+    private TestPermissionPlatform platform;
+
+    private Activity activity;
+
+    private final RecordingListener listener = new RecordingListener();
+
+    @Before
+    public void setUp() {
+        platform = new TestPermissionPlatform(CAMERA, RECORD_AUDIO);
+        PermissionChecker.initInstance(platform, false, null, null);
+        PermissionChecker.getInstance().getDialogShowObservable().registerObserver(listener);
+        activity = Robolectric.buildActivity(Activity.class).setup().get();
+    }
+
+    @After
+    public void tearDown() {
+        PermissionChecker.releaseInstance();
+    }
+
+    @Test
+    public void allGrantedWithoutRequests() {
+        platform.setGranted(CAMERA, true);
+        platform.setGranted(RECORD_AUDIO, true);
+        PermissionChecker checker = PermissionChecker.getInstance();
+
+        assertTrue(checker.checkAppPermissions());
+        checker.requestAppPermissions(activity, false);
+
+        assertEquals(0, platform.getRequestsCount());
+        assertTrue(checker.isAllPermissionsGranted());
+    }
+
+    @Test
+    public void requestsOnePermissionAtATime() {
+        PermissionChecker checker = PermissionChecker.getInstance();
+        assertFalse(checker.checkAppPermissions());
+        checker.requestAppPermissions(activity, false);
+
+        assertEquals(1, platform.getRequestsCount());
+        String first = platform.requests.get(0)[0];
+        assertEquals(checker.getRequestCodeForPermission(first), platform.lastRequestCode);
+        assertTrue(checker.hasPendingRequests());
+
+        platform.setGranted(first, true);
+        checker.onRequestPermissionsResult(activity, platform.lastRequestCode, new String[]{first}, new int[]{PermissionPlatform.PERMISSION_GRANTED});
+
+        // next one is requested after result of previous
+        assertEquals(2, platform.getRequestsCount());
+        String second = platform.requests.get(1)[0];
+        assertFalse(first.equals(second));
+        platform.setGranted(second, true);
+        assertTrue(checker.onRequestPermissionsResult(activity, platform.lastRequestCode, new String[]{second}, new int[]{PermissionPlatform.PERMISSION_GRANTED}));
+
+        assertFalse(checker.hasPendingRequests());
+        assertTrue(checker.isAllPermissionsGranted());
+        assertEquals(2, listener.granted.size());
+    }
+
+    @Test
+    public void deniedDialogShownOnDenial() {
+        Dialog deniedDialog = new Dialog(activity);
+        PermissionChecker checker = PermissionChecker.getInstance();
+        checker.setDeniedDialog(deniedDialog);
+
+        checker.requestAppPermissions(activity);
+        String permission = platform.requests.get(0)[0];
+        assertFalse(checker.onRequestPermissionsResult(activity, platform.lastRequestCode, new String[]{permission}, new int[]{PermissionPlatform.PERMISSION_DENIED}));
+
+        assertEquals(1, listener.denied.size());
+        assertSame(deniedDialog, listener.lastDeniedDialog);
+        assertTrue(deniedDialog.isShowing());
+        assertTrue(checker.getLastDeniedPermissions().contains(permission));
+        deniedDialog.dismiss();
+    }
+
+    @Test
+    public void releaseDialogsDropsOnlyDialogsOfActivity() {
+        Activity other = Robolectric.buildActivity(Activity.class).setup().get();
+        PermissionChecker checker = PermissionChecker.getInstance();
+        checker.setDeniedDialog(new Dialog(activity));
+        checker.setGrantedDialog(new Dialog(other));
+
+        checker.releaseDialogs(activity);
+
+        checker.requestAppPermissions(activity);
+        String first = platform.requests.get(0)[0];
+        checker.onRequestPermissionsResult(activity, platform.lastRequestCode, new String[]{first}, new int[]{PermissionPlatform.PERMISSION_DENIED});
+        assertNull(listener.lastDeniedDialog);
+
+        checker.requestAppPermissions(activity);
+        platform.setGranted(first, true);
+        checker.onRequestPermissionsResult(activity, platform.lastRequestCode, new String[]{first}, new int[]{PermissionPlatform.PERMISSION_GRANTED});
+        Dialog grantedDialog = listener.lastGrantedDialog;
+        assertTrue(grantedDialog != null && grantedDialog.isShowing());
+        grantedDialog.dismiss();
+    }
+
+    @Test
+    public void pendingRequestRestoredAfterProcessDeath() {
+        PermissionChecker checker = PermissionChecker.getInstance();
+        checker.requestAppPermissions(activity);
+        String permission = platform.requests.get(0)[0];
+        int requestCode = platform.lastRequestCode;
+        byte[] state = checker.saveState();
+
+        PermissionChecker.releaseInstance();
+        PermissionChecker.initInstance(platform, false, null, null);
+        PermissionChecker restored = PermissionChecker.getInstance();
+
+        assertTrue(restored.restoreState(state));
+        assertTrue(restored.hasPendingRequests());
+        assertEquals(requestCode, restored.getRequestCodeForPermission(permission));
+
+        platform.setGranted(permission, true);
+        restored.onRequestPermissionsResult(activity, requestCode, new String[]{permission}, new int[]{PermissionPlatform.PERMISSION_GRANTED});
+
+        assertTrue(restored.getLastGrantedPermissions().contains(permission));
+        // only not checked one is requested next, restored one is not requested again
+        assertEquals(2, platform.getRequestsCount());
+        assertFalse(permission.equals(platform.requests.get(1)[0]));
+    }
+
+    @Test
+    public void stateIsNotRestoredForOtherPermissions() {
+        byte[] state = PermissionChecker.getInstance().saveState();
+
+        PermissionChecker.releaseInstance();
+        platform = new TestPermissionPlatform(CAMERA);
+        PermissionChecker.initInstance(platform, false, null, null);
+
+        assertFalse(PermissionChecker.getInstance().restoreState(state));
+        assertEquals(Collections.singleton(CAMERA), PermissionChecker.getInstance().getPermissions());
+    }
+
+    private static class RecordingListener implements PermissionChecker.OnDialogShowListener {
+
+        final List<String> granted = new ArrayList<>();
+
+        final List<String> denied = new ArrayList<>();
+
+        @Nullable
+        Dialog lastGrantedDialog;
+
+        @Nullable
+        Dialog lastDeniedDialog;
+
+        @Override
+        public void onDismissAllDialogs() {
+        }
+
+        @Override
+        public void onBeforeGrantedDialogShow(@Nullable Dialog dialog, String permission) {
+            granted.add(permission);
+            lastGrantedDialog = dialog;
+        }
+
+        @Override
+        public void onBeforeDeniedDialogShow(@Nullable Dialog dialog, String permission) {
+            denied.add(permission);
+            lastDeniedDialog = dialog;
+        }
+    }
+}
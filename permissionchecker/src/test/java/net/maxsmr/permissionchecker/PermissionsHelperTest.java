@@ -0,0 +1,256 @@
+package net.maxsmr.permissionchecker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.lifecycle.Observer;
+import androidx.test.core.app.ApplicationProvider;
+
+import net.maxsmr.permissionchecker.core.PermissionPlatform;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowActivity;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import kotlin.Unit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PermissionsHelperTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+
+    private static final List<String> PERMISSIONS = Collections.singletonList(CAMERA);
+
+    private static final int REQUEST_CODE = 42;
+
+    private TestPermissionPlatform platform;
+
+    private PermissionsHelper helper;
+
+    private ActivityController<HostActivity> activity;
+
+    @Before
+    public void setUp() {
+        platform = new TestPermissionPlatform(CAMERA);
+        SharedPreferences prefs = ApplicationProvider.getApplicationContext()
+                .getSharedPreferences("permanently_denied", Context.MODE_PRIVATE);
+        prefs.edit().clear().commit();
+        helper = new PermissionsHelper(prefs, PermissionsHelper.DEFAULT_PENDING_REQUEST_TIMEOUT_MS, platform);
+        activity = Robolectric.buildActivity(HostActivity.class).setup();
+    }
+
+    @Test
+    public void allGrantedWithoutRequest() {
+        platform.setGranted(CAMERA, true);
+        RecordingCallbacks callbacks = new RecordingCallbacks();
+
+        assertNull(helper.doOnPermissionsResult(activity.get(), "", REQUEST_CODE, PERMISSIONS, callbacks.create()));
+
+        assertEquals(1, callbacks.allGranted);
+        assertNull(shadowOf(activity.get()).getLastRequestedPermission());
+        assertFalse(helper.hasPendingRequest(REQUEST_CODE));
+    }
+
+    @Test
+    public void grantedResultDispatchedByRequestCode() {
+        RecordingCallbacks callbacks = new RecordingCallbacks();
+
+        assertNotNull(helper.doOnPermissionsResult(activity.get(), "", REQUEST_CODE, PERMISSIONS, callbacks.create()));
+
+        ShadowActivity.PermissionsRequest request = shadowOf(activity.get()).getLastRequestedPermission();
+        assertEquals(REQUEST_CODE, request.requestCode);
+        assertArrayEquals(new String[]{CAMERA}, request.requestedPermissions);
+        assertTrue(helper.hasPendingRequest(REQUEST_CODE));
+
+        platform.setGranted(CAMERA, true);
+        assertEquals(Boolean.TRUE, helper.dispatch(activity.get(), REQUEST_CODE, new String[]{CAMERA}, new int[]{PermissionPlatform.PERMISSION_GRANTED}));
+
+        assertEquals(1, callbacks.allGranted);
+        assertFalse(helper.hasPendingRequest(REQUEST_CODE));
+        // result is delivered once
+        assertNull(helper.dispatch(activity.get(), REQUEST_CODE, new String[]{CAMERA}, new int[]{PermissionPlatform.PERMISSION_GRANTED}));
+    }
+
+    @Test
+    public void deniedWithoutRationaleIsPermanentlyDenied() {
+        RecordingCallbacks callbacks = new RecordingCallbacks();
+        helper.doOnPermissionsResult(activity.get(), "", REQUEST_CODE, PERMISSIONS, callbacks.create());
+
+        assertEquals(Boolean.FALSE, helper.dispatch(activity.get(), REQUEST_CODE, new String[]{CAMERA}, new int[]{PermissionPlatform.PERMISSION_DENIED}));
+
+        assertEquals(Collections.singleton(CAMERA), callbacks.denied);
+        assertTrue(helper.isDeniedNotAskAgain(activity.get(), CAMERA));
+
+        // settings screen is offered instead of system request
+        RecordingCallbacks next = new RecordingCallbacks();
+        assertNotNull(helper.doOnPermissionsResult(activity.get(), "", REQUEST_CODE, PERMISSIONS, next.create()));
+        assertNotNull(next.permanentlyDenied);
+        assertEquals(Collections.singleton(CAMERA), next.permanentlyDenied.getPermanentlyDenied());
+        assertTrue(helper.hasPendingRequest(REQUEST_CODE));
+
+        // granted in settings
+        platform.setGranted(CAMERA, true);
+        assertEquals(Boolean.TRUE, helper.dispatchActivityResult(activity.get(), REQUEST_CODE));
+        assertEquals(1, next.allGranted);
+        assertFalse(helper.isDeniedNotAskAgain(activity.get(), CAMERA));
+    }
+
+    @Test
+    public void deniedWithRationaleIsNotPermanentlyDenied() {
+        RecordingCallbacks callbacks = new RecordingCallbacks();
+        helper.doOnPermissionsResult(activity.get(), "", REQUEST_CODE, PERMISSIONS, callbacks.create());
+
+        platform.setShowRationale(CAMERA);
+        helper.dispatch(activity.get(), REQUEST_CODE, new String[]{CAMERA}, new int[]{PermissionPlatform.PERMISSION_DENIED});
+
+        assertEquals(Collections.singleton(CAMERA), callbacks.denied);
+        assertFalse(helper.isDeniedNotAskAgain(activity.get(), CAMERA));
+    }
+
+    @Test
+    public void emptyLauncherResultIsDenied() {
+        ActivityController<HostActivity> launcherActivity = Robolectric.buildActivity(HostActivity.class).create();
+        helper.registerLauncher(launcherActivity.get());
+        launcherActivity.start().resume();
+        RecordingCallbacks callbacks = new RecordingCallbacks();
+        helper.doOnPermissionsResult(launcherActivity.get(), "", REQUEST_CODE, PERMISSIONS, callbacks.create());
+        ShadowActivity.PermissionsRequest request = shadowOf(launcherActivity.get()).getLastRequestedPermission();
+
+        // request cancelled: RequestMultiplePermissions gives empty map
+        launcherActivity.get().onRequestPermissionsResult(request.requestCode, new String[0], new int[0]);
+
+        assertEquals(0, callbacks.allGranted);
+        assertEquals(Collections.singleton(CAMERA), callbacks.denied);
+        assertFalse(helper.hasPendingRequest(REQUEST_CODE));
+    }
+
+    @Test
+    public void resultAfterRotationDeliveredToReboundCallbacks() {
+        RecordingCallbacks before = new RecordingCallbacks();
+        helper.doOnPermissionsResult(activity.get(), "", REQUEST_CODE, PERMISSIONS, before.create());
+
+        TestActivities.rotate(activity);
+
+        assertTrue(helper.hasPendingRequest(REQUEST_CODE));
+        RecordingCallbacks after = new RecordingCallbacks();
+        assertTrue(helper.rebindCallbacks(activity.get(), REQUEST_CODE, after.create()));
+
+        platform.setGranted(CAMERA, true);
+        assertEquals(Boolean.TRUE, helper.dispatch(activity.get(), REQUEST_CODE, new String[]{CAMERA}, new int[]{PermissionPlatform.PERMISSION_GRANTED}));
+
+        assertEquals(0, before.allGranted);
+        assertEquals(1, after.allGranted);
+    }
+
+    @Test
+    public void resultBeforeRebindIsDeliveredOnRebind() {
+        RecordingCallbacks before = new RecordingCallbacks();
+        helper.doOnPermissionsResult(activity.get(), "", REQUEST_CODE, PERMISSIONS, before.create());
+
+        TestActivities.rotate(activity);
+        platform.setGranted(CAMERA, true);
+        helper.dispatch(activity.get(), REQUEST_CODE, new String[]{CAMERA}, new int[]{PermissionPlatform.PERMISSION_GRANTED});
+
+        assertEquals(0, before.allGranted);
+        RecordingCallbacks after = new RecordingCallbacks();
+        assertTrue(helper.rebindCallbacks(activity.get(), REQUEST_CODE, after.create()));
+        assertEquals(1, after.allGranted);
+        assertFalse(helper.rebindCallbacks(activity.get(), REQUEST_CODE, after.create()));
+    }
+
+    @Test
+    public void pendingRequestDroppedWhenActivityFinished() {
+        helper.doOnPermissionsResult(activity.get(), "", REQUEST_CODE, PERMISSIONS, new RecordingCallbacks().create());
+        assertTrue(helper.hasPendingRequest(REQUEST_CODE));
+
+        activity.pause().stop().destroy();
+
+        assertFalse(helper.hasPendingRequest(REQUEST_CODE));
+    }
+
+    @Test
+    public void observedStatesRecheckedOnResume() {
+        PermissionsStateLiveData states = helper.observePermissions(activity.get(), PERMISSIONS);
+        states.observe(activity.get(), result -> {
+        });
+        assertEquals(Boolean.FALSE, states.getValue().get(CAMERA));
+
+        // granted in settings while paused
+        platform.setGranted(CAMERA, true);
+        activity.pause().resume();
+
+        assertEquals(Boolean.TRUE, states.getValue().get(CAMERA));
+    }
+
+    @Test
+    public void unobservedStatesAreDropped() {
+        PermissionsStateLiveData states = helper.observePermissions(activity.get(), PERMISSIONS);
+        Observer<Map<String, Boolean>> observer = result -> {
+        };
+        states.observeForever(observer);
+        assertSame(states, helper.observePermissions(activity.get(), PERMISSIONS));
+
+        states.removeObserver(observer);
+
+        assertNotSame(states, helper.observePermissions(activity.get(), PERMISSIONS));
+    }
+
+    private static class RecordingCallbacks {
+
+        int allGranted;
+
+        @Nullable
+        Set<String> denied;
+
+        @Nullable
+        PermissionsCallbacks.DeniedPermissions permanentlyDenied;
+
+        @NotNull
+        PermissionsCallbacks create() {
+            return new PermissionsCallbacks(permissions -> {
+                permanentlyDenied = permissions;
+                return Unit.INSTANCE;
+            }, permissions -> {
+                denied = permissions;
+                return Unit.INSTANCE;
+            }, () -> {
+                allGranted++;
+                return Unit.INSTANCE;
+            });
+        }
+    }
+
+    public static class HostActivity extends AppCompatActivity {
+
+        @Override
+        protected void onCreate(Bundle savedInstanceState) {
+            setTheme(R.style.Theme_AppCompat_Light);
+            super.onCreate(savedInstanceState);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package net.maxsmr.permissionchecker;
+
+import android.app.Activity;
+
+import org.jetbrains.annotations.NotNull;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.util.ReflectionHelpers;
+
+public final class TestActivities {
+
+    private TestActivities() {
+        throw new AssertionError("no instances.");
+    }
+
+    /**
+     * Recreates activity as on configuration change: {@link Activity#isChangingConfigurations()} is true
+     * for destroyed instance, so view models and pending requests are retained
+     */
+    @NotNull
+    public static <T extends Activity> ActivityController<T> rotate(@NotNull ActivityController<T> controller) {
+        ReflectionHelpers.setField(Activity.class, controller.get(), "mChangingConfigurations", true);
+        return controller.recreate();
+    }
+}
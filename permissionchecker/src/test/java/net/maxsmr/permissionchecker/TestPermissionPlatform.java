@@ -0,0 +1,99 @@
+package net.maxsmr.permissionchecker;
+
+import android.app.Activity;
+
+import net.maxsmr.permissionchecker.core.PermissionPlatform;
+import net.maxsmr.permissionchecker.core.RequestCodes;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runtime permissions declared in manifest and granted / denied by test; records requests instead of showing dialogs
+ */
+public class TestPermissionPlatform implements PermissionPlatform<Activity> {
+
+    @NotNull
+    private final Set<String> requested;
+
+    @NotNull
+    private final Set<String> granted = new HashSet<>();
+
+    @NotNull
+    private final Set<String> special = new HashSet<>();
+
+    @NotNull
+    private final Set<String> rationale = new HashSet<>();
+
+    @NotNull
+    public final List<String[]> requests = new ArrayList<>();
+
+    public int lastRequestCode = RequestCodes.NO_REQUEST_CODE;
+
+    public TestPermissionPlatform(@NotNull String... requested) {
+        this.requested = new LinkedHashSet<>(Arrays.asList(requested));
+    }
+
+    public void setGranted(@NotNull String permission, boolean isGranted) {
+        if (isGranted) {
+            granted.add(permission);
+        } else {
+            granted.remove(permission);
+        }
+    }
+
+    public void setSpecial(@NotNull String permission) {
+        special.add(permission);
+    }
+
+    /**
+     * Denied once without "don't ask again"
+     */
+    public void setShowRationale(@NotNull String permission) {
+        rationale.add(permission);
+    }
+
+    public int getRequestsCount() {
+        return requests.size();
+    }
+
+    @Override
+    public boolean isGranted(@NotNull String permission) {
+        return granted.contains(permission);
+    }
+
+    @Override
+    public boolean shouldShowRationale(@NotNull Activity host, @NotNull String permission) {
+        return rationale.contains(permission);
+    }
+
+    @Override
+    public void requestPermissions(@NotNull Activity host, @NotNull String[] permissions, int requestCode) {
+        requests.add(permissions);
+        lastRequestCode = requestCode;
+    }
+
+    @NotNull
+    @Override
+    public Collection<String> getRequestedPermissions() {
+        return requested;
+    }
+
+    @NotNull
+    @Override
+    public Kind getKind(@NotNull String permission) {
+        return special.contains(permission) ? Kind.SPECIAL : Kind.RUNTIME;
+    }
+
+    @Override
+    public boolean isRequiredByApiVersion(@NotNull String permission) {
+        return true;
+    }
+}
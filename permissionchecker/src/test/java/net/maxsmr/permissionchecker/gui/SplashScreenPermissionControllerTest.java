@@ -0,0 +1,146 @@
+package net.maxsmr.permissionchecker.gui;
+
+import android.os.Bundle;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import net.maxsmr.permissionchecker.PermissionChecker;
+import net.maxsmr.permissionchecker.R;
+import net.maxsmr.permissionchecker.TestActivities;
+import net.maxsmr.permissionchecker.TestPermissionPlatform;
+import net.maxsmr.permissionchecker.core.PermissionPlatform;
+import net.maxsmr.permissionchecker.gui.activities.SplashFlowStateMachine;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SplashScreenPermissionControllerTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+
+    private TestPermissionPlatform platform;
+
+    @Before
+    public void setUp() {
+        platform = new TestPermissionPlatform(CAMERA);
+        PermissionChecker.initInstance(platform, false, null, null);
+        HostActivity.finalActions = 0;
+        HostActivity.splashTimeout = 0;
+    }
+
+    @After
+    public void tearDown() {
+        PermissionChecker.releaseInstance();
+    }
+
+    @Test
+    public void recreationDuringRequestDoesNotRequestAgain() {
+        ActivityController<HostActivity> activity = Robolectric.buildActivity(HostActivity.class).setup();
+        assertEquals(1, platform.getRequestsCount());
+
+        TestActivities.rotate(activity);
+
+        assertEquals(1, platform.getRequestsCount());
+        assertEquals(SplashFlowStateMachine.State.CHECKING_PERMISSIONS, activity.get().controller.getFlowState());
+        assertTrue(activity.get().controller.shouldKeepOnScreen());
+    }
+
+    @Test
+    public void resultAfterRecreationFiresFinalActionOnce() {
+        ActivityController<HostActivity> activity = Robolectric.buildActivity(HostActivity.class).setup();
+        int requestCode = platform.lastRequestCode;
+        TestActivities.rotate(activity);
+
+        platform.setGranted(CAMERA, true);
+        activity.get().onRequestPermissionsResult(requestCode, new String[]{CAMERA}, new int[]{PermissionPlatform.PERMISSION_GRANTED});
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(1, HostActivity.finalActions);
+        assertTrue(activity.get().controller.isFinalActionDone());
+
+        TestActivities.rotate(activity);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertEquals(1, HostActivity.finalActions);
+        assertEquals(1, platform.getRequestsCount());
+        assertFalse(activity.get().controller.shouldKeepOnScreen());
+    }
+
+    @Test
+    public void timeoutIsNotRearmedOnRecreation() {
+        platform.setGranted(CAMERA, true);
+        HostActivity.splashTimeout = 1000;
+        ActivityController<HostActivity> activity = Robolectric.buildActivity(HostActivity.class).setup();
+        ShadowLooper.idleMainLooper(600, TimeUnit.MILLISECONDS);
+        assertEquals(0, HostActivity.finalActions);
+
+        TestActivities.rotate(activity);
+        ShadowLooper.idleMainLooper(600, TimeUnit.MILLISECONDS);
+
+        assertEquals(1, HostActivity.finalActions);
+        assertEquals(0, platform.getRequestsCount());
+    }
+
+    @Test
+    public void finalActionWaitsForGuard() {
+        platform.setGranted(CAMERA, true);
+        HostActivity.isFinalActionAllowed = false;
+        try {
+            ActivityController<HostActivity> activity = Robolectric.buildActivity(HostActivity.class).setup();
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+            assertEquals(0, HostActivity.finalActions);
+
+            HostActivity.isFinalActionAllowed = true;
+            activity.get().controller.invalidateFinalAction();
+
+            assertEquals(1, HostActivity.finalActions);
+        } finally {
+            HostActivity.isFinalActionAllowed = true;
+        }
+    }
+
+    public static class HostActivity extends AppCompatActivity {
+
+        static int finalActions;
+
+        static long splashTimeout;
+
+        static boolean isFinalActionAllowed = true;
+
+        SplashScreenPermissionController controller;
+
+        @Override
+        protected void onCreate(Bundle savedInstanceState) {
+            setTheme(R.style.Theme_AppCompat_Light);
+            controller = new SplashScreenPermissionController(this, splashTimeout, () -> finalActions++) {
+                @Override
+                protected boolean isFinalActionAllowed() {
+                    return isFinalActionAllowed;
+                }
+            };
+            controller.install();
+            super.onCreate(savedInstanceState);
+        }
+
+        @Override
+        public void onRequestPermissionsResult(int requestCode, @NotNull String[] permissions, @NotNull int[] grantResults) {
+            super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+            controller.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        }
+    }
+}
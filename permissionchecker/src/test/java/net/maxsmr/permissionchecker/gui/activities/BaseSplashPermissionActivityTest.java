@@ -0,0 +1,245 @@
+package net.maxsmr.permissionchecker.gui.activities;
+
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.view.View;
+
+import net.maxsmr.permissionchecker.PermissionChecker;
+import net.maxsmr.permissionchecker.R;
+import net.maxsmr.permissionchecker.TestActivities;
+import net.maxsmr.permissionchecker.TestPermissionPlatform;
+import net.maxsmr.permissionchecker.core.PermissionPlatform;
+
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@SuppressWarnings("deprecation")
+public class BaseSplashPermissionActivityTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+
+    private TestPermissionPlatform platform;
+
+    @Before
+    public void setUp() {
+        platform = new TestPermissionPlatform(CAMERA);
+        // activity's own initInstance is no-op when instance exists
+        PermissionChecker.initInstance(platform, false, null, null);
+        HostActivity.finalActions = 0;
+    }
+
+    @After
+    public void tearDown() {
+        PermissionChecker.releaseInstance();
+    }
+
+    @Test
+    public void allGrantedFinishesWithoutRequest() {
+        platform.setGranted(CAMERA, true);
+
+        ActivityController<HostActivity> activity = Robolectric.buildActivity(HostActivity.class).setup();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertEquals(0, platform.getRequestsCount());
+        assertEquals(1, HostActivity.finalActions);
+        assertEquals(SplashFlowStateMachine.State.FINISHED, activity.get().getFlowState());
+    }
+
+    @Test
+    public void grantedResultFinishesFlow() {
+        ActivityController<HostActivity> activity = Robolectric.buildActivity(HostActivity.class).setup();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(1, platform.getRequestsCount());
+        assertEquals(SplashFlowStateMachine.State.CHECKING_PERMISSIONS, activity.get().getFlowState());
+        assertEquals(0, HostActivity.finalActions);
+
+        grant(activity.get(), platform.lastRequestCode);
+
+        assertEquals(1, HostActivity.finalActions);
+        assertEquals(SplashFlowStateMachine.State.FINISHED, activity.get().getFlowState());
+    }
+
+    @Test
+    public void rotationDuringRequestDoesNotRequestAgain() {
+        ActivityController<HostActivity> activity = Robolectric.buildActivity(HostActivity.class).setup();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        int requestCode = platform.lastRequestCode;
+
+        TestActivities.rotate(activity);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertEquals(1, platform.getRequestsCount());
+        assertEquals(SplashFlowStateMachine.State.CHECKING_PERMISSIONS, activity.get().getFlowState());
+        assertEquals(0, HostActivity.finalActions);
+
+        // result of in-flight request is delivered to new instance
+        grant(activity.get(), requestCode);
+
+        assertEquals(1, HostActivity.finalActions);
+        assertEquals(SplashFlowStateMachine.State.FINISHED, activity.get().getFlowState());
+    }
+
+    @Test
+    public void rotationAfterFinishDoesNotRepeatFinalAction() {
+        ActivityController<HostActivity> activity = Robolectric.buildActivity(HostActivity.class).setup();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        grant(activity.get(), platform.lastRequestCode);
+        assertEquals(1, HostActivity.finalActions);
+
+        TestActivities.rotate(activity);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertEquals(1, HostActivity.finalActions);
+        assertEquals(1, platform.getRequestsCount());
+        assertEquals(SplashFlowStateMachine.State.FINISHED, activity.get().getFlowState());
+    }
+
+    @Test
+    public void deniedDialogRestoredAfterRotation() {
+        ActivityController<HostActivity> activity = Robolectric.buildActivity(HostActivity.class).setup();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        activity.get().onRequestPermissionsResult(platform.lastRequestCode, new String[]{CAMERA}, new int[]{PermissionPlatform.PERMISSION_DENIED});
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(1, activity.get().getDeniedDialogs().size());
+        assertTrue(activity.get().getDeniedDialogs().get(0).isShowing());
+
+        TestActivities.rotate(activity);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertEquals(1, activity.get().getDeniedDialogs().size());
+        assertTrue(activity.get().getDeniedDialogs().get(0).isShowing());
+        assertEquals(1, platform.getRequestsCount());
+        assertFalse(activity.get().getFlowState() == SplashFlowStateMachine.State.FINISHED);
+        assertEquals(0, HostActivity.finalActions);
+    }
+
+    @Test
+    public void resumeAfterSettingsRechecksWithoutRequest() {
+        ActivityController<HostActivity> activity = Robolectric.buildActivity(HostActivity.class).setup();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        activity.get().onRequestPermissionsResult(platform.lastRequestCode, new String[]{CAMERA}, new int[]{PermissionPlatform.PERMISSION_DENIED});
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        // denied dialog is confirmed: settings screen is opened
+        ((AlertDialog) activity.get().getDeniedDialogs().get(0)).getButton(DialogInterface.BUTTON_POSITIVE).performClick();
+        assertEquals(SplashFlowStateMachine.State.IN_SETTINGS, activity.get().getFlowState());
+
+        // returned without granting
+        activity.pause().stop().start().resume();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(SplashFlowStateMachine.State.PERMISSIONS_REQUIRED, activity.get().getFlowState());
+
+        activity.pause().resume();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(1, platform.getRequestsCount());
+        assertEquals(0, HostActivity.finalActions);
+
+        // system dialog only on explicit retry
+        activity.get().retryPermissions();
+        assertEquals(2, platform.getRequestsCount());
+    }
+
+    @Test
+    public void grantedInSettingsFinishesFlowOnResume() {
+        ActivityController<HostActivity> activity = Robolectric.buildActivity(HostActivity.class).setup();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        activity.get().onRequestPermissionsResult(platform.lastRequestCode, new String[]{CAMERA}, new int[]{PermissionPlatform.PERMISSION_DENIED});
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        activity.get().openAppSettings();
+
+        platform.setGranted(CAMERA, true);
+        activity.pause().stop().start().resume();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertEquals(1, platform.getRequestsCount());
+        assertEquals(1, HostActivity.finalActions);
+        assertEquals(SplashFlowStateMachine.State.FINISHED, activity.get().getFlowState());
+        assertTrue(activity.get().getDeniedDialogs().isEmpty());
+    }
+
+    private void grant(HostActivity activity, int requestCode) {
+        platform.setGranted(CAMERA, true);
+        activity.onRequestPermissionsResult(requestCode, new String[]{CAMERA}, new int[]{PermissionPlatform.PERMISSION_GRANTED});
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+    }
+
+    public static class HostActivity extends BaseSplashPermissionActivity {
+
+        static int finalActions;
+
+        @Override
+        public void onCreate(Bundle savedInstanceState) {
+            setTheme(R.style.Theme_AppCompat_Light);
+            super.onCreate(savedInstanceState);
+        }
+
+        @Override
+        protected boolean isShowingSplashEnabled() {
+            return false;
+        }
+
+        @Override
+        protected boolean isCheckingPermissionsEnabled() {
+            return true;
+        }
+
+        @Override
+        protected boolean isShowingAllSystemDialogsEnabled() {
+            return false;
+        }
+
+        @Override
+        protected boolean isShowingGrantedDialogEnabled(String permission) {
+            return false;
+        }
+
+        @Nullable
+        @Override
+        protected Collection<String> getPermissionsToIgnore() {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        protected Collection<String> getPermissionsToIgnoreAfterCheck() {
+            return null;
+        }
+
+        @Override
+        protected long getBaseSplashTimeout() {
+            return 0;
+        }
+
+        @Override
+        protected void doFinalAction() {
+            finalActions++;
+        }
+
+        @Nullable
+        @Override
+        protected View getClickableView() {
+            return null;
+        }
+
+        @Override
+        protected boolean allowRemoveCallbackWhenScreenIsOff() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package net.maxsmr.permissionchecker.gui.activities;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class StartupTaskSchedulerTest {
+
+    @Test
+    public void listenerReplacedAfterFinishIsNotNotified() {
+        AtomicInteger destroyed = new AtomicInteger();
+        AtomicInteger recreated = new AtomicInteger();
+        StartupTaskScheduler scheduler = new StartupTaskScheduler();
+        ShadowLooper.pauseMainLooper();
+
+        // nothing to wait for: notification is posted right away
+        scheduler.start(failures -> destroyed.incrementAndGet());
+        // activity recreated before posted notification is run
+        scheduler.setListener(null);
+        scheduler.setListener(failures -> recreated.incrementAndGet());
+        ShadowLooper.unPauseMainLooper();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertEquals(0, destroyed.get());
+        assertEquals(1, recreated.get());
+    }
+
+    @Test
+    public void cancelledSchedulerDoesNotNotify() {
+        AtomicInteger notified = new AtomicInteger();
+        StartupTaskScheduler scheduler = new StartupTaskScheduler();
+        ShadowLooper.pauseMainLooper();
+
+        scheduler.start(failures -> notified.incrementAndGet());
+        scheduler.cancel();
+        ShadowLooper.unPauseMainLooper();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertEquals(0, notified.get());
+    }
+}
@@ -111,7 +111,7 @@ public class TestPermissionsActivity extends AppCompatActivity implements Permis
         dismissGrantedDialogs();
         dismissDeniedDialogs();
         if (!PermissionChecker.getInstance().checkAppPermissions()) {
-            /*if (!*/PermissionChecker.getInstance().requestAppPermissions();/*) {*/
+            /*if (!*/PermissionChecker.getInstance().requestAppPermissions(this);/*) {*/
 //                openAppSettingsScreen();
 //            }
         }
@@ -149,7 +149,7 @@ public class TestPermissionsActivity extends AppCompatActivity implements Permis
     public void onRequestPermissionsResult(int requestCode, @NotNull String[] permissions, @NotNull int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
         Log.d(TestPermissionsActivity.class.getSimpleName(), "onRequestPermissionsResult: requestCode=" + requestCode + ", permissions=" + Arrays.toString(permissions) + ", grantResults=" + Arrays.toString(grantResults));
-        /*boolean result = */PermissionChecker.getInstance().onRequestPermissionsResult(requestCode, permissions, grantResults);
+        /*boolean result = */PermissionChecker.getInstance().onRequestPermissionsResult(this, requestCode, permissions, grantResults);
 //        if (!result) {
 //            openAppSettingsScreen();
 //        }
@@ -191,8 +191,9 @@ public class TestPermissionsActivity extends AppCompatActivity implements Permis
                 if (deniedDialogs.size() == 1) {
                     openAppSettingsScreen();
                 }
-                TestPermissionsActivity.this.finish();
-                System.exit(0);
+                // process is kept alive, permissions are re-checked in onResume
+                dismissDeniedDialogs();
+                messageView.setText(R.string.text_permissions_required);
             }
         } : null));
         PermissionChecker.getInstance().setDeniedDialog(deniedDialogs.peek());